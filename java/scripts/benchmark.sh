@@ -0,0 +1,22 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# rebuild the database from data/ plus generated history (ORDERS orders,
+# 1M unless set); pass --no-seed to benchmark the database as it is
+if [ "$1" != "--no-seed" ]; then
+   psql -h 127.0.0.1 -f $DIR/../../sql/src/create_tables.sql mydb
+   psql -h 127.0.0.1 mydb < $DIR/../../sql/src/create_indexes.sql
+   psql -h 127.0.0.1 -v datadir=$DIR/../../data -f $DIR/../../sql/src/seed_bench.sql mydb
+   psql -h 127.0.0.1 -v orders=${ORDERS:-1000000} mydb < $DIR/../../sql/src/generate_orders.sql
+else
+   shift
+fi
+
+#run the benchmark: [warmup] [iterations] [case regex]
+java -cp $DIR/../classes:$CLASSPATH CafeBenchmark mydb $PGPORT "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#export Orders and ItemStatus to <out dir>: [workers] [parts]
+java -cp $DIR/../classes:$CLASSPATH OrderExport mydb $PGPORT "${1:-$DIR/../../export}" "${@:2}"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#load data/*.csv into the tables: [workers] [--truncate]
+java -cp $DIR/../classes:$CLASSPATH BulkImport mydb $PGPORT $DIR/../../data "$@"
@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run the load generator against the database as it is:
+#[customers] [employees] [seconds] [peak ops/s] [profile] [pool size]
+#profiles: steady, ramp, morning_rush, lunch_peak, full_day
+java -cp $DIR/../classes:$CLASSPATH LoadGenerator mydb $PGPORT "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compile the java program and its tests
+javac -d $DIR/../classes $DIR/../src/*.java $DIR/../test/*.java
+
+#run the tests against a database loaded with data/; each exits non-zero on failure
+java -cp $DIR/../classes:$CLASSPATH KitchenQueueTest mydb $PGPORT
@@ -0,0 +1,803 @@
+/*
+ * HTTP/JSON API for the Cafe application
+ * ======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the Cafe operations as JSON over HTTP, for kiosks and
+ * point of sale terminals, using only the JDK's built-in HTTP server.  Every
+ * request runs as a short-lived Cafe session on the shared connection pool
+ * and calls the same static methods as the console menus.  On Java 21 and
+ * later each request gets its own virtual thread, so thousands of mostly
+ * idle clients cost little more than their sockets; older runtimes fall
+ * back to a fixed pool of platform threads.
+ *
+ * Clients log in with POST /login and send the token it returns as
+ * "Authorization: Bearer <token>" on every other request.
+ *
+ *    POST   /login                         {"login", "password"} -> {"token", "type"}
+ *    POST   /logout
+ *    GET    /menu[?type=T]                 menu items, optionally of one type
+ *    GET    /menu?q=Q                      menu items matching a search, best first
+ *    GET    /menu/types                    menu types
+ *    GET    /menu/{item}                   one menu item
+ *    POST   /menu                          {"name", "type", "price", "description", "imageUrl"}  (Manager)
+ *    PATCH  /menu/{item}                   any of "name", "type", "price", "description", "imageUrl"  (Manager)
+ *    DELETE /menu/{item}                   (Manager)
+ *    POST   /orders                        {"items": [names]} -> {"orderid", "total"}
+ *    GET    /orders                        the caller's unpaid orders, newest first
+ *    GET    /orders/current                unpaid orders of the last day, from the kitchen queue  (Employee, Manager)
+ *    GET    /orders/history[?before=OID&limit=N]   a page of the caller's orders, newest first -> {"orders", "next"}
+ *    GET    /orders/{oid}                  an order and the status of its items
+ *    DELETE /orders/{oid}                  cancel one of the caller's unpaid orders
+ *    POST   /orders/{oid}/items            {"name"}: add an item
+ *    PUT    /orders/{oid}/items/{item}     {"name"}: swap an item for another
+ *    DELETE /orders/{oid}/items/{item}     remove an item
+ *    POST   /orders/{oid}/paid             (Employee, Manager)
+ *    PUT    /orders/{oid}/items/{item}/status   {"status"}: Preparing, Ready or Finished  (Employee, Manager)
+ *    GET    /favorites                     the caller's favorite items -> {"items"}
+ *    PUT    /favorites                     {"items": [names]}: replace the caller's favorites
+ *    POST   /favorites/order               order the caller's favorites -> the new order
+ *
+ */
+public class ApiServer {
+
+   // worker threads when virtual threads are not available
+   private static final int FALLBACK_THREADS = 256;
+
+   // largest request body accepted, in bytes
+   private static final int MAX_BODY = 64 * 1024;
+
+   // most orders one page of /orders/history may ask for
+   private static final int MAX_HISTORY_PAGE = 100;
+
+   // request sessions never read input or print, so they share these
+   private static final BufferedReader NO_INPUT = new BufferedReader (new StringReader (""));
+   private static final PrintStream NO_OUTPUT = new PrintStream (OutputStream.nullOutputStream ());
+
+   /**
+    * An error answered with an HTTP status and a JSON message.
+    */
+   static class ApiException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      final int status;
+
+      ApiException (int status, String message) {
+         super (message);
+         this.status = status;
+      }//end ApiException
+   }//end ApiException
+
+   /**
+    * One request being served: its method, path below the context, query
+    * string, body and the Cafe session it runs as.
+    */
+   static class Request {
+      final String method;
+      final List<String> path;
+      final Map<String, String> query;
+      final String body;
+      final Cafe esql;
+      final String token;
+
+      Request (String method, List<String> path, Map<String, String> query, String body, Cafe esql, String token) {
+         this.method = method;
+         this.path = path;
+         this.query = query;
+         this.body = body;
+         this.esql = esql;
+         this.token = token;
+      }//end Request
+
+      /**
+       * @return the body as a JSON object
+       * @throws ApiException when the body is not a JSON object
+       */
+      @SuppressWarnings("unchecked")
+      Map<String, Object> json () throws ApiException {
+         Object value;
+         try{
+            value = Json.parse (this.body);
+         }catch (IllegalArgumentException e){
+            throw new ApiException (400, "Malformed JSON: " + e.getMessage ());
+         }//end try
+         if (!(value instanceof Map))
+            throw new ApiException (400, "Expected a JSON object");
+         return (Map<String, Object>) value;
+      }//end json
+   }//end Request
+
+   /**
+    * Serves the requests under one context path.
+    */
+   interface Endpoint {
+      Object handle (Request req) throws Exception;
+   }//end Endpoint
+
+   private final ConnectionPool _pool;
+   private final MenuCache _menu;
+   private final SessionManager _sessions;
+   private final KitchenQueue _kitchen;
+   private final StatusWriter _statuses;
+   private final ExecutorService _executor;
+   private final HttpServer _server;
+
+   /**
+    * Creates the server; nothing is served until start is called.
+    *
+    * @param pool the connection pool requests run on
+    * @param menu the menu cache shared with the pool's other sessions
+    * @param sessions the session manager that issues and resolves tokens
+    * @param kitchen the kitchen queue shared with the pool's other sessions
+    * @param statuses the status writer shared with the pool's other sessions, or null
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public ApiServer (ConnectionPool pool, MenuCache menu, SessionManager sessions, KitchenQueue kitchen,
+                     StatusWriter statuses, int port)
+      throws IOException {
+      this._pool = pool;
+      this._menu = menu;
+      this._sessions = sessions;
+      this._kitchen = kitchen;
+      this._statuses = statuses;
+      this._executor = requestExecutor ();
+      this._server = HttpServer.create (new InetSocketAddress (port), 1024);
+      this._server.setExecutor (this._executor);
+      this._server.createContext ("/login", handler (new Endpoint () {
+         public Object handle (Request req) throws Exception { return login (req); }
+      }));
+      this._server.createContext ("/logout", handler (new Endpoint () {
+         public Object handle (Request req) throws Exception { return logout (req); }
+      }));
+      this._server.createContext ("/menu", handler (new Endpoint () {
+         public Object handle (Request req) throws Exception { return menu (req); }
+      }));
+      this._server.createContext ("/orders", handler (new Endpoint () {
+         public Object handle (Request req) throws Exception { return orders (req); }
+      }));
+      this._server.createContext ("/favorites", handler (new Endpoint () {
+         public Object handle (Request req) throws Exception { return favorites (req); }
+      }));
+   }//end ApiServer
+
+   /**
+    * Returns an executor that runs each task on a new virtual thread when
+    * the runtime has them, and on a fixed pool of platform threads when it
+    * does not.
+    */
+   static ExecutorService requestExecutor () {
+      try{
+         return (ExecutorService) Executors.class.getMethod ("newVirtualThreadPerTaskExecutor").invoke (null);
+      }catch (ReflectiveOperationException e){
+         return Executors.newFixedThreadPool (FALLBACK_THREADS);
+      }//end try
+   }//end requestExecutor
+
+   public void start () {
+      this._server.start ();
+   }//end start
+
+   public void stop () {
+      this._server.stop (1);
+      this._executor.shutdown ();
+   }//end stop
+
+   /**
+    * Runs the HTTP mode until the process is killed.
+    *
+    * @param url the JDBC connection URL
+    * @param port the TCP port to listen on
+    * @param pool the pool requests run on, closed when the server stops
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public static void Serve (String url, int port, ConnectionPool pool) throws IOException {
+      MenuCache menu = new MenuCache ();
+      SessionManager sessions = new SessionManager ();
+      KitchenQueue kitchen = new KitchenQueue ();
+      StatusWriter statuses = new StatusWriter (pool, kitchen);
+      NotificationListener listener = Cafe.startListener (url, menu, sessions, kitchen);
+      MetricsExporter exporter = Cafe.startExporter (pool.metrics);
+      ApiServer server = new ApiServer (pool, menu, sessions, kitchen, statuses, port);
+      statuses.start ();
+      server.start ();
+      System.out.println ("Cafe HTTP API listening on port " + port);
+      try{
+         Thread.currentThread ().join ();
+      }catch (InterruptedException e){
+         // shutting down.
+      }finally{
+         server.stop ();
+         if (exporter != null)
+            exporter.stop ();
+         statuses.stop ();
+         listener.stop ();
+         pool.close ();
+      }//end try
+   }//end Serve
+
+   /*****************************************************************************/
+
+   private HttpHandler handler (final Endpoint endpoint) {
+      return new HttpHandler () {
+         public void handle (HttpExchange exchange) throws IOException {
+            int status = 200;
+            Object result;
+            try{
+               result = endpoint.handle (request (exchange));
+            }catch (ApiException e){
+               status = e.status;
+               result = error (e.getMessage ());
+            }catch (SQLException e){
+               // integrity violations and lost edit races are the client's to fix
+               String state = e.getSQLState ();
+               status = state != null && (state.startsWith ("23") || state.equals (Cafe.EDIT_CONFLICT)) ? 409 : 500;
+               result = error (e.getMessage ());
+            }catch (NumberFormatException e){
+               status = 400;
+               result = error ("Invalid number: " + e.getMessage ());
+            }catch (IllegalArgumentException e){
+               // e.g. a status the item may not move to
+               status = 400;
+               result = error (e.getMessage ());
+            }catch (Exception e){
+               status = 500;
+               result = error (String.valueOf (e.getMessage ()));
+            }//end try
+            respond (exchange, status, result);
+         }
+      };
+   }//end handler
+
+   private Request request (HttpExchange exchange) throws IOException, SQLException, ApiException {
+      String method = exchange.getRequestMethod ().toUpperCase ();
+      String context = exchange.getHttpContext ().getPath ();
+      String rawPath = exchange.getRequestURI ().getRawPath ().substring (context.length ());
+      List<String> path = new ArrayList<String> ();
+      for (String segment : rawPath.split ("/"))
+         if (!segment.isEmpty ())
+            path.add (decode (segment));
+      Map<String, String> query = new LinkedHashMap<String, String> ();
+      String rawQuery = exchange.getRequestURI ().getRawQuery ();
+      if (rawQuery != null)
+         for (String pair : rawQuery.split ("&")){
+            int eq = pair.indexOf ('=');
+            if (eq > 0)
+               query.put (decode (pair.substring (0, eq)), decode (pair.substring (eq + 1)));
+         }//end for
+
+      InputStream in = exchange.getRequestBody ();
+      byte[] bytes = in.readNBytes (MAX_BODY + 1);
+      in.close ();
+      if (bytes.length > MAX_BODY)
+         throw new ApiException (413, "Request body too large");
+
+      String token = null;
+      String auth = exchange.getRequestHeaders ().getFirst ("Authorization");
+      if (auth != null && auth.startsWith ("Bearer "))
+         token = auth.substring (7).trim ();
+
+      Cafe esql = new Cafe (this._pool, this._menu, this._sessions, this._kitchen, this._statuses, NO_INPUT, NO_OUTPUT);
+      String login = token == null ? null : this._sessions.resolve (token);
+      // the role comes from the cached profile, so a changed type applies at once
+      SessionManager.Profile profile = login == null ? null : this._sessions.profile (esql, login);
+      if (profile != null){
+         esql.session.setLogin (profile.login);
+         esql.session.setType (profile.type);
+      }//end if
+      return new Request (method, path, query, new String (bytes, StandardCharsets.UTF_8), esql, token);
+   }//end request
+
+   private static String decode (String s) {
+      // in a path a plus sign is a plus sign, not a space
+      return URLDecoder.decode (s.replace ("+", "%2B"), StandardCharsets.UTF_8);
+   }//end decode
+
+   private static void respond (HttpExchange exchange, int status, Object result) throws IOException {
+      byte[] body = Json.write (result == null ? new LinkedHashMap<String, Object> () : result).getBytes (StandardCharsets.UTF_8);
+      exchange.getResponseHeaders ().set ("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders (status, body.length);
+      OutputStream out = exchange.getResponseBody ();
+      out.write (body);
+      out.close ();
+   }//end respond
+
+   private static Map<String, Object> error (String message) {
+      Map<String, Object> error = new LinkedHashMap<String, Object> ();
+      error.put ("error", message);
+      return error;
+   }//end error
+
+   /*****************************************************************************/
+
+   private static void requireLogin (Request req) throws ApiException {
+      if (!req.esql.session.isLoggedIn ())
+         throw new ApiException (401, "Log in first");
+   }//end requireLogin
+
+   private static void requireRole (Request req, String... roles) throws ApiException {
+      requireLogin (req);
+      String type = req.esql.session.getType ();
+      for (String role : roles)
+         if (role.equals (type))
+            return;
+      throw new ApiException (403, "Not allowed for " + type);
+   }//end requireRole
+
+   private static ApiException notFound () {
+      return new ApiException (404, "Not found");
+   }//end notFound
+
+   private static ApiException badMethod (Request req) {
+      return new ApiException (405, req.method + " not allowed here");
+   }//end badMethod
+
+   private static String string (Map<String, Object> json, String key) throws ApiException {
+      Object value = json.get (key);
+      if (!(value instanceof String) || ((String) value).isEmpty ())
+         throw new ApiException (400, "Missing \"" + key + "\"");
+      return (String) value;
+   }//end string
+
+   private static long price (Object value) throws ApiException {
+      try{
+         if (value instanceof BigDecimal)
+            return Money.fromDecimal ((BigDecimal) value);
+         if (value instanceof String)
+            return Money.parse ((String) value);
+      }catch (ArithmeticException e){
+         throw new ApiException (400, "\"price\" is out of range");
+      }//end try
+      throw new ApiException (400, "Missing \"price\"");
+   }//end price
+
+   /*****************************************************************************/
+
+   private Object login (Request req) throws Exception {
+      if (!req.method.equals ("POST"))
+         throw badMethod (req);
+      Map<String, Object> json = req.json ();
+      long start = req.esql.metrics.start ();
+      SessionManager.Profile profile = this._sessions.authenticate (req.esql, string (json, "login"), string (json, "password"));
+      req.esql.metrics.operation ("LogIn", start);
+      if (profile == null)
+         throw new ApiException (401, "Invalid Log In Credentials");
+
+      Map<String, Object> result = new LinkedHashMap<String, Object> ();
+      result.put ("token", this._sessions.open (profile.login));
+      result.put ("login", profile.login);
+      result.put ("type", profile.type);
+      return result;
+   }//end login
+
+   private Object logout (Request req) throws Exception {
+      if (!req.method.equals ("POST"))
+         throw badMethod (req);
+      requireLogin (req);
+      this._sessions.close (req.token);
+      return null;
+   }//end logout
+
+   /*****************************************************************************/
+
+   private Object menu (Request req) throws Exception {
+      requireLogin (req);
+      Cafe esql = req.esql;
+      MenuCache.Snapshot menu = esql.menu.get (esql);
+
+      if (req.path.isEmpty ()){
+         if (req.method.equals ("GET")){
+            String type = req.query.get ("type");
+            String q = req.query.get ("q");
+            List<Object> items = new ArrayList<Object> ();
+            for (MenuCache.Item item : q != null ? menu.search.search (q, Cafe.MENU_SEARCH_RESULTS)
+                                     : type == null ? menu.items : menu.byType (type))
+               items.add (item (item));
+            Map<String, Object> result = new LinkedHashMap<String, Object> ();
+            result.put ("items", items);
+            return result;
+         }//end if
+         if (req.method.equals ("POST")){
+            requireRole (req, "Manager");
+            Map<String, Object> json = req.json ();
+            String name = string (json, "name");
+            Cafe.InsertMenuItem (esql, name, string (json, "type"), price (json.get ("price")),
+                                 (String) json.get ("description"), (String) json.get ("imageUrl"));
+            return item (esql.menu.get (esql).byName (name));
+         }//end if
+         throw badMethod (req);
+      }//end if
+
+      if (req.path.size () == 1 && req.path.get (0).equals ("types") && req.method.equals ("GET")){
+         Map<String, Object> result = new LinkedHashMap<String, Object> ();
+         List<Object> types = new ArrayList<Object> ();
+         for (String type : menu.types)
+            types.add (type);
+         result.put ("types", types);
+         return result;
+      }//end if
+
+      if (req.path.size () != 1)
+         throw notFound ();
+      String name = req.path.get (0);
+      if (menu.byName (name) == null)
+         throw notFound ();
+      switch (req.method){
+         case "GET":
+            return item (menu.byName (name));
+         case "PATCH":
+            requireRole (req, "Manager");
+            Map<String, Object> json = req.json ();
+            // the rename goes last, so the other fields still find the item
+            if (json.containsKey ("type"))
+               Cafe.UpdateMenuItem (esql, name, "type", string (json, "type"));
+            if (json.containsKey ("price"))
+               Cafe.UpdateMenuItem (esql, name, "price", price (json.get ("price")));
+            if (json.containsKey ("description"))
+               Cafe.UpdateMenuItem (esql, name, "description", json.get ("description"));
+            if (json.containsKey ("imageUrl"))
+               Cafe.UpdateMenuItem (esql, name, "imageURL", json.get ("imageUrl"));
+            if (json.containsKey ("name")){
+               Cafe.UpdateMenuItem (esql, name, "itemName", string (json, "name"));
+               name = string (json, "name");
+            }//end if
+            return item (esql.menu.get (esql).byName (name));
+         case "DELETE":
+            requireRole (req, "Manager");
+            Cafe.DeleteMenuItem (esql, name);
+            return null;
+         default:
+            throw badMethod (req);
+      }//end switch
+   }//end menu
+
+   private static Map<String, Object> item (MenuCache.Item item) {
+      Map<String, Object> result = new LinkedHashMap<String, Object> ();
+      if (item == null)
+         return result;
+      result.put ("name", item.name);
+      result.put ("type", item.type);
+      result.put ("price", Money.format (item.priceCents));
+      result.put ("description", item.description);
+      result.put ("imageUrl", item.imageUrl);
+      return result;
+   }//end item
+
+   /*****************************************************************************/
+
+   private Object orders (Request req) throws Exception {
+      requireLogin (req);
+      Cafe esql = req.esql;
+      List<String> path = req.path;
+
+      if (path.isEmpty ()){
+         if (req.method.equals ("POST"))
+            return placeOrder (req);
+         if (req.method.equals ("GET"))
+            return listOrders (esql,
+               "SELECT O.orderid, O.login, O.paid, O.total, I.itemName, I.status, I.lastUpdated, I.comments " +
+               "FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved " +
+               "WHERE O.login = ? AND O.paid = false ORDER BY O.orderid DESC",
+               esql.session.getLogin ());
+         throw badMethod (req);
+      }//end if
+
+      if (path.get (0).equals ("history")){
+         if (!req.method.equals ("GET") || path.size () != 1)
+            throw notFound ();
+         return history (req);
+      }//end if
+
+      if (path.get (0).equals ("current")){
+         if (!req.method.equals ("GET") || path.size () != 1)
+            throw notFound ();
+         requireRole (req, "Employee", "Manager");
+         return kitchenOrders (esql.kitchen.open (esql));
+      }//end if
+
+      int oid;
+      try{
+         oid = Integer.parseInt (path.get (0));
+      }catch (NumberFormatException e){
+         throw notFound ();
+      }//end try
+
+      if (path.size () == 1){
+         if (req.method.equals ("GET"))
+            return order (req, oid);
+         if (req.method.equals ("DELETE")){
+            Cafe.CancelOrder (esql, oid, requireOwnUnpaid (req, oid));
+            return null;
+         }//end if
+         throw badMethod (req);
+      }//end if
+
+      if (path.size () == 2 && path.get (1).equals ("paid")){
+         if (!req.method.equals ("POST"))
+            throw badMethod (req);
+         requireRole (req, "Employee", "Manager");
+         Cafe.SetOrderPaid (esql, oid);
+         return order (req, oid);
+      }//end if
+
+      if (!path.get (1).equals ("items"))
+         throw notFound ();
+      MenuCache.Snapshot menu = esql.menu.get (esql);
+
+      if (path.size () == 2){
+         if (!req.method.equals ("POST"))
+            throw badMethod (req);
+         int version = requireOwnUnpaid (req, oid);
+         MenuCache.Item item = menu.byName (string (req.json (), "name"));
+         if (item == null)
+            throw new ApiException (400, "No such menu item");
+         Cafe.AddOrderItem (esql, oid, version, item);
+         return order (req, oid);
+      }//end if
+
+      String itemName = path.get (2);
+      if (path.size () == 4 && path.get (3).equals ("status")){
+         if (!req.method.equals ("PUT"))
+            throw badMethod (req);
+         requireRole (req, "Employee", "Manager");
+         Cafe.SetItemStatus (esql, oid, itemName, string (req.json (), "status"));
+         return order (req, oid);
+      }//end if
+      if (path.size () != 3)
+         throw notFound ();
+      if (menu.byName (itemName) == null)
+         throw notFound ();
+
+      switch (req.method){
+         case "PUT":
+            int version = requireOwnUnpaid (req, oid);
+            MenuCache.Item newItem = menu.byName (string (req.json (), "name"));
+            if (newItem == null)
+               throw new ApiException (400, "No such menu item");
+            Cafe.SwapOrderItem (esql, oid, version, itemName, newItem);
+            return order (req, oid);
+         case "DELETE":
+            if (Cafe.RemoveOrderItem (esql, oid, requireOwnUnpaid (req, oid), itemName) < 0){
+               Map<String, Object> result = new LinkedHashMap<String, Object> ();
+               result.put ("orderid", oid);
+               result.put ("deleted", true);
+               return result;
+            }//end if
+            return order (req, oid);
+         default:
+            throw badMethod (req);
+      }//end switch
+   }//end orders
+
+   private Object placeOrder (Request req) throws Exception {
+      Cafe esql = req.esql;
+      Object items = req.json ().get ("items");
+      if (!(items instanceof List) || ((List<?>) items).isEmpty ())
+         throw new ApiException (400, "Missing \"items\"");
+      MenuCache.Snapshot menu = esql.menu.get (esql);
+      List<String> names = new ArrayList<String> ();
+      for (Object name : (List<?>) items){
+         MenuCache.Item item = name instanceof String ? menu.byName ((String) name) : null;
+         if (item == null)
+            throw new ApiException (400, "No such menu item: " + name);
+         if (names.contains (item.name))
+            throw new ApiException (400, "Can only add one of each item");
+         names.add (item.name);
+      }//end for
+      // the total is summed from Menu by the insert itself
+      int oid = Cafe.PlaceOrder (esql, esql.session.getLogin (), names);
+      return order (req, oid);
+   }//end placeOrder
+
+   /*****************************************************************************/
+
+   private Object favorites (Request req) throws Exception {
+      requireLogin (req);
+      Cafe esql = req.esql;
+      String login = esql.session.getLogin ();
+
+      if (req.path.isEmpty ()){
+         if (req.method.equals ("PUT")){
+            Object items = req.json ().get ("items");
+            if (!(items instanceof List))
+               throw new ApiException (400, "Missing \"items\"");
+            MenuCache.Snapshot menu = esql.menu.get (esql);
+            List<String> names = new ArrayList<String> ();
+            for (Object name : (List<?>) items){
+               MenuCache.Item item = name instanceof String ? menu.byName ((String) name) : null;
+               if (item == null)
+                  throw new ApiException (400, "No such menu item: " + name);
+               if (!names.contains (item.name))
+                  names.add (item.name);
+            }//end for
+            Cafe.SetFavorites (esql, login, names);
+         }else if (!req.method.equals ("GET"))
+            throw badMethod (req);
+         Map<String, Object> result = new LinkedHashMap<String, Object> ();
+         result.put ("items", new ArrayList<Object> (Cafe.Favorites (esql, login)));
+         return result;
+      }//end if
+
+      if (req.path.size () != 1 || !req.path.get (0).equals ("order"))
+         throw notFound ();
+      if (!req.method.equals ("POST"))
+         throw badMethod (req);
+      int oid = Cafe.ReorderFavorites (esql, login);
+      if (oid < 0)
+         throw new ApiException (404, "No favorites to order");
+      return order (req, oid);
+   }//end favorites
+
+   /**
+    * Only the customer who placed an order may change it, and only until
+    * it is paid; the same rule UpdateOrder applies at the console.
+    *
+    * @return the order's version, for the edit's optimistic check
+    */
+   private static int requireOwnUnpaid (Request req, int oid) throws Exception {
+      Timestamp placed = Cafe.OrderPlaced (req.esql, oid);
+      String query = "SELECT O.version FROM Orders O " +
+         "WHERE O.login = ? AND O.paid = false AND O.orderid = ? AND O.timeStampRecieved = ?";
+      long[][] version = placed == null ? new long[0][]
+         : req.esql.queryLongColumns (query, 0, req.esql.session.getLogin (), oid, placed);
+      if (version.length == 0)
+         throw new ApiException (404, "No unpaid order #" + oid + " found for this user");
+      return (int) version[0][0];
+   }//end requireOwnUnpaid
+
+   private static Object order (Request req, int oid) throws Exception {
+      // the order's month, so only its partitions are read
+      Timestamp placed = Cafe.OrderPlaced (req.esql, oid);
+      if (placed == null)
+         throw notFound ();
+      List<Object> orders = listOrders (req.esql,
+         "SELECT O.orderid, O.login, O.paid, O.total, I.itemName, I.status, I.lastUpdated, I.comments " +
+         "FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved " +
+         "WHERE O.orderid = ? AND O.timeStampRecieved = ?",
+         oid, placed);
+      if (orders.isEmpty ())
+         throw notFound ();
+      @SuppressWarnings("unchecked")
+      Map<String, Object> order = (Map<String, Object>) orders.get (0);
+      // customers see only their own orders
+      String type = req.esql.session.getType ();
+      if ("Customer".equals (type)
+          && !String.valueOf (order.get ("login")).equals (req.esql.session.getLogin ()))
+         throw notFound ();
+      return order;
+   }//end order
+
+   /**
+    * One page of the caller's order history; "next" is the "before" of the
+    * following page, or null on the last one.
+    */
+   private static Object history (Request req) throws Exception {
+      int before, limit;
+      try{
+         before = req.query.containsKey ("before") ? Integer.parseInt (req.query.get ("before")) : Integer.MAX_VALUE;
+         limit = req.query.containsKey ("limit") ? Integer.parseInt (req.query.get ("limit")) : Cafe.HISTORY_PAGE_SIZE;
+      }catch (NumberFormatException e){
+         throw new ApiException (400, "\"before\" and \"limit\" must be numbers");
+      }//end try
+      if (limit < 1 || limit > MAX_HISTORY_PAGE)
+         throw new ApiException (400, "\"limit\" must be between 1 and " + MAX_HISTORY_PAGE);
+
+      String login = req.esql.session.getLogin ();
+      List<Cafe.HistoryOrder> page = Cafe.OrderHistoryPage (req.esql, login, before, limit);
+      List<Object> orders = new ArrayList<Object> (page.size ());
+      for (Cafe.HistoryOrder o : page){
+         List<Object> items = new ArrayList<Object> (o.items.size ());
+         for (String[] i : o.items){
+            Map<String, Object> item = new LinkedHashMap<String, Object> ();
+            item.put ("name", i[0]);
+            item.put ("status", i[2]);
+            item.put ("lastUpdated", i[1]);
+            items.add (item);
+         }//end for
+         Map<String, Object> order = new LinkedHashMap<String, Object> ();
+         order.put ("orderid", o.orderid);
+         order.put ("login", login);
+         order.put ("paid", o.paid);
+         order.put ("placed", String.valueOf (o.placed));
+         order.put ("total", Money.format (o.totalCents));
+         order.put ("items", items);
+         orders.add (order);
+      }//end for
+      Map<String, Object> result = new LinkedHashMap<String, Object> ();
+      result.put ("orders", orders);
+      result.put ("next", page.size () < limit ? null : page.get (page.size () - 1).orderid);
+      return result;
+   }//end history
+
+   /**
+    * Lays out the kitchen queue's orders the way listOrders does.
+    */
+   private static List<Object> kitchenOrders (List<KitchenQueue.Order> open) {
+      List<Object> orders = new ArrayList<Object> (open.size ());
+      for (KitchenQueue.Order o : open){
+         List<Object> items = new ArrayList<Object> (o.items.size ());
+         for (KitchenQueue.Item i : o.items){
+            Map<String, Object> item = new LinkedHashMap<String, Object> ();
+            item.put ("name", i.name);
+            item.put ("status", i.status);
+            item.put ("lastUpdated", i.lastUpdated);
+            item.put ("comments", i.comments);
+            items.add (item);
+         }//end for
+         Map<String, Object> order = new LinkedHashMap<String, Object> ();
+         order.put ("orderid", o.orderid);
+         order.put ("login", o.login);
+         order.put ("paid", false);
+         order.put ("total", Money.format (o.totalCents));
+         order.put ("items", items);
+         orders.add (order);
+      }//end for
+      return orders;
+   }//end kitchenOrders
+
+   /**
+    * Runs a query of orders joined to their items, ordered so that each
+    * order's rows arrive together, and nests the items inside their order.
+    */
+   private static List<Object> listOrders (Cafe esql, String query, Object... params) throws SQLException {
+      final List<Object> orders = new ArrayList<Object> ();
+      esql.forEachRow (query, Cafe.STREAM_FETCH_SIZE, new Cafe.RowHandler () {
+         int oid = -1;
+         List<Object> items;
+
+         public void handle (ResultSet rs) throws SQLException {
+            if (rs.getInt (1) != oid){
+               oid = rs.getInt (1);
+               items = new ArrayList<Object> ();
+               Map<String, Object> order = new LinkedHashMap<String, Object> ();
+               order.put ("orderid", oid);
+               order.put ("login", rs.getString (2));
+               order.put ("paid", rs.getBoolean (3));
+               order.put ("total", Money.format (Money.read (rs, 4)));
+               order.put ("items", items);
+               orders.add (order);
+            }//end if
+            if (rs.getString (5) == null)
+               return;
+            Map<String, Object> item = new LinkedHashMap<String, Object> ();
+            // a status change still queued for writing shows as made
+            String shown = esql.statuses == null ? null : esql.statuses.shown (oid, rs.getString (5));
+            item.put ("name", rs.getString (5));
+            item.put ("status", shown != null ? shown : rs.getString (6));
+            item.put ("lastUpdated", String.valueOf (rs.getTimestamp (7)));
+            item.put ("comments", rs.getString (8));
+            items.add (item);
+         }
+      }, params);
+      return orders;
+   }//end listOrders
+
+}//end ApiServer
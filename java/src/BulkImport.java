@@ -0,0 +1,499 @@
+/*
+ * Bulk CSV importer for the Cafe application
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class loads data/*.csv into the Cafe tables from the client, through
+ * the PostgreSQL driver's COPY API, so it works against a server on any host
+ * and needs no file access on the server.  The files are in the format
+ * load_data.sql always read: COPY text format with ';' between fields.
+ *
+ * One thread reads each file in chunks of lines; several workers validate
+ * the chunks in parallel and stream the good lines into their own COPY, one
+ * connection each.  Lines that fail validation are written, with their
+ * line number and the reason, to <file>.rejects next to the file instead of
+ * failing the load.  The workers commit together once every one of them has
+ * finished, and after Orders the orderid sequence is moved past the largest
+ * orderid loaded.  Memory use is bounded by the chunk queue, whatever the
+ * size of the files.
+ *
+ * Some files go through a staging table first: users.csv, whose favorites
+ * list is split into UserFavorites, orders.csv, so that the monthly
+ * partitions its orders fall in are created before they are moved in, and
+ * itemStatus.csv, whose items take their order's timeStampRecieved.
+ *
+ *    java -cp classes:$CLASSPATH BulkImport <dbname> <port> [data dir] [workers] [--truncate]
+ *
+ */
+public class BulkImport {
+
+   // lines handed to a worker at a time
+   private static final int CHUNK_LINES = 10000;
+
+   /**
+    * The kinds of value a column is validated as.
+    */
+   enum Kind { TEXT, INTEGER, NUMERIC, BOOLEAN, TIMESTAMP }
+
+   /**
+    * One column of a table being loaded.
+    */
+   static class Column {
+      final String name;
+      final Kind kind;
+      // longest text accepted, for varchar(N) columns
+      final int maxLength;
+      final boolean required;
+
+      Column (String name, Kind kind, int maxLength, boolean required) {
+         this.name = name;
+         this.kind = kind;
+         this.maxLength = maxLength;
+         this.required = required;
+      }//end Column
+   }//end Column
+
+   /**
+    * One table and the file it is loaded from.
+    */
+   static class Table {
+      final String name;
+      final String file;
+      final Column[] columns;
+
+      // table the file is copied into instead, and the statements that move it on from there
+      String staging = null;
+      String[] moves = new String[0];
+
+      Table (String name, String file, Column... columns) {
+         this.name = name;
+         this.file = file;
+         this.columns = columns;
+      }//end Table
+
+      /**
+       * Loads the file into a staging table of its own columns first, for
+       * files that do not map one to one onto the table.
+       *
+       * @param staging the staging table's name
+       * @param moves statements that move the rows from staging into place
+       * @return this table
+       */
+      Table via (String staging, String... moves) {
+         this.staging = staging;
+         this.moves = moves;
+         return this;
+      }//end via
+
+      /**
+       * @return the COPY statement for the file's columns; the table may have more, e.g. Orders.version
+       */
+      String copy () {
+         StringBuilder sql = new StringBuilder ("COPY ").append (this.staging == null ? this.name : this.staging).append (" (");
+         for (int i = 0; i < this.columns.length; ++i)
+            sql.append (i == 0 ? "" : ", ").append (this.columns[i].name);
+         return sql.append (") FROM STDIN WITH (DELIMITER ';')").toString ();
+      }//end copy
+
+      /**
+       * @return the CREATE statement for the staging table, with one column per file column
+       */
+      String createStaging () {
+         StringBuilder sql = new StringBuilder ("CREATE UNLOGGED TABLE ").append (this.staging).append (" (");
+         for (int i = 0; i < this.columns.length; ++i){
+            Column column = this.columns[i];
+            sql.append (i == 0 ? "" : ", ").append (column.name).append (' ');
+            switch (column.kind){
+               case TEXT: sql.append ("varchar(").append (column.maxLength).append (')'); break;
+               case INTEGER: sql.append ("integer"); break;
+               case NUMERIC: sql.append ("numeric"); break;
+               case BOOLEAN: sql.append ("boolean"); break;
+               default: sql.append ("timestamp"); break;
+            }//end switch
+         }//end for
+         return sql.append (')').toString ();
+      }//end createStaging
+   }//end Table
+
+   // in load order, so every foreign key finds its parent row
+   static final Table[] TABLES = {
+      new Table ("Menu", "menu.csv",
+         new Column ("itemName", Kind.TEXT, 50, true),
+         new Column ("type", Kind.TEXT, 20, true),
+         new Column ("price", Kind.NUMERIC, 0, true),
+         new Column ("description", Kind.TEXT, 400, false),
+         new Column ("imageURL", Kind.TEXT, 256, false)),
+      new Table ("Users", "users.csv",
+         new Column ("login", Kind.TEXT, 50, true),
+         new Column ("phoneNum", Kind.TEXT, 16, false),
+         new Column ("password", Kind.TEXT, 50, true),
+         new Column ("favItems", Kind.TEXT, 400, false),
+         new Column ("type", Kind.TEXT, 8, true))
+         // favItems is a comma separated list, matched to menu items ignoring case
+         .via ("users_import",
+            "INSERT INTO Users (login, phoneNum, password, type) SELECT login, phoneNum, password, type FROM users_import",
+            "INSERT INTO UserFavorites (login, itemName, position) " +
+               "SELECT U.login, M.itemName, row_number() OVER (PARTITION BY U.login ORDER BY min(F.n)) - 1 " +
+               "FROM users_import U " +
+               "CROSS JOIN LATERAL unnest(string_to_array(U.favItems, ',')) WITH ORDINALITY AS F(name, n) " +
+               "JOIN Menu M ON lower(M.itemName) = lower(trim(F.name)) " +
+               "GROUP BY U.login, M.itemName",
+            "ANALYZE UserFavorites"),
+      new Table ("Orders", "orders.csv",
+         new Column ("orderid", Kind.INTEGER, 0, true),
+         new Column ("login", Kind.TEXT, 50, false),
+         new Column ("paid", Kind.BOOLEAN, 0, false),
+         new Column ("timeStampRecieved", Kind.TIMESTAMP, 0, true),
+         new Column ("total", Kind.NUMERIC, 0, true))
+         .via ("orders_import",
+            "SET LOCAL cafe.bulk_load = on",
+            "SELECT add_order_partitions(min(timeStampRecieved), max(timeStampRecieved)) FROM orders_import",
+            // the primary key includes timeStampRecieved, so it cannot catch a repeated orderid
+            "SELECT check_import_orderids('orders_import')",
+            "INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total) " +
+               "SELECT orderid, login, paid, timeStampRecieved, total FROM orders_import"),
+      new Table ("ItemStatus", "itemStatus.csv",
+         new Column ("orderid", Kind.INTEGER, 0, true),
+         new Column ("itemName", Kind.TEXT, 50, true),
+         new Column ("lastUpdated", Kind.TIMESTAMP, 0, true),
+         new Column ("status", Kind.TEXT, 20, false),
+         new Column ("comments", Kind.TEXT, 130, false))
+         // an item of an unknown order fails on the missing timeStampRecieved
+         .via ("itemstatus_import",
+            "SET LOCAL cafe.bulk_load = on",
+            "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved) " +
+               "SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, O.timeStampRecieved " +
+               "FROM itemstatus_import I LEFT JOIN Orders O ON O.orderid = I.orderid")
+   };
+
+   /**
+    * A run of consecutive lines of a file.
+    */
+   static class Chunk {
+      final long firstLine;
+      final List<String> lines;
+
+      Chunk (long firstLine, List<String> lines) {
+         this.firstLine = firstLine;
+         this.lines = lines;
+      }//end Chunk
+   }//end Chunk
+
+   // marks the end of a file on the chunk queue
+   private static final Chunk END = new Chunk (0, null);
+
+   // a date with an optional time and zone, in any form PostgreSQL reads back from its own output
+   private static final Pattern TIMESTAMP = Pattern.compile (
+      "\\d{4}-\\d{1,2}-\\d{1,2}([ T]\\d{1,2}:\\d{2}(:\\d{2}(\\.\\d+)?)?)?\\s*([+-]\\d{1,2}(:?\\d{2})?|Z)?");
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkImport.class.getName () +
+            " <dbname> <port> [data dir] [workers] [--truncate]");
+         return;
+      }//end if
+      List<String> positional = new ArrayList<String> ();
+      boolean truncate = false;
+      for (String arg : args){
+         if (arg.equals ("--truncate"))
+            truncate = true;
+         else
+            positional.add (arg);
+      }//end for
+      Path dir = Paths.get (positional.size () > 2 ? positional.get (2) : "data");
+      int workers = positional.size () > 3 ? Integer.parseInt (positional.get (3))
+                                           : Math.max (1, Runtime.getRuntime ().availableProcessors ());
+
+      Class.forName ("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool (Cafe.connectionUrl (positional.get (0), positional.get (1)), workers, 0, 0, 60 * 1000);
+      try{
+         if (truncate)
+            execute (pool, "TRUNCATE ItemStatus, Orders, UserFavorites, Users, Menu, SalesHourly, ItemDaily, RollupStale",
+                     "UPDATE RollupWatermark SET openFrom = '-infinity', refreshedAt = NULL");
+         for (Table table : TABLES){
+            Path file = dir.resolve (table.file);
+            if (!Files.isRegularFile (file)){
+               System.out.println (table.name + ": no " + file + ", skipped");
+               continue;
+            }//end if
+            if (table.staging != null){
+               execute (pool, "DROP TABLE IF EXISTS " + table.staging);
+               execute (pool, table.createStaging ());
+            }//end if
+            load (pool, table, file, workers);
+            if (table.staging != null){
+               execute (pool, table.moves);
+               execute (pool, "DROP TABLE " + table.staging);
+            }//end if
+            if (table.name.equals ("Orders"))
+               execute (pool, "SELECT setval('orders_orderid_seq', COALESCE((SELECT max(orderid) FROM Orders), 0) + 1, false)");
+            execute (pool, "ANALYZE " + table.name);
+         }//end for
+         // roll up the loaded history now rather than in the first report
+         execute (pool, "SELECT refresh_rollups(interval '1 day')");
+         execute (pool, "NOTIFY " + KitchenQueue.CHANNEL);
+      }finally{
+         pool.close ();
+      }//end try
+   }//end main
+
+   /**
+    * Runs statements on one connection, as one transaction when there are
+    * several.
+    */
+   static void execute (ConnectionPool pool, String... sql) throws SQLException {
+      ConnectionPool.PooledConnection conn = pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (sql.length == 1);
+         Statement stmt = conn.getConnection ().createStatement ();
+         for (String s : sql)
+            stmt.execute (s);
+         stmt.close ();
+         if (sql.length > 1){
+            conn.getConnection ().commit ();
+            conn.getConnection ().setAutoCommit (true);
+         }//end if
+      }finally{
+         // the pool rolls back a transaction left open by a failure
+         pool.release (conn);
+      }//end try
+   }//end execute
+
+   /**
+    * Loads one file into one table with the given number of workers.
+    */
+   static void load (ConnectionPool pool, final Table table, Path file, int workers) throws Exception {
+      long start = System.nanoTime ();
+      final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk> (workers * 2);
+      final AtomicLong loaded = new AtomicLong ();
+      final AtomicLong rejected = new AtomicLong ();
+      Path rejectsFile = file.resolveSibling (file.getFileName () + ".rejects");
+      final Writer rejects = Files.newBufferedWriter (rejectsFile, StandardCharsets.UTF_8);
+
+      final List<ConnectionPool.PooledConnection> conns = new ArrayList<ConnectionPool.PooledConnection> ();
+      final AtomicReference<Exception> failure = new AtomicReference<Exception> ();
+      List<Thread> threads = new ArrayList<Thread> ();
+      try{
+         for (int i = 0; i < workers; ++i){
+            final ConnectionPool.PooledConnection conn = pool.borrow ();
+            conns.add (conn);
+            conn.getConnection ().setAutoCommit (false);
+            // no per-row kitchen notifications; running processes resynchronize once at the end
+            Statement stmt = conn.getConnection ().createStatement ();
+            stmt.execute ("SET LOCAL cafe.bulk_load = on");
+            stmt.close ();
+            final CopyIn copy = conn.getConnection ().unwrap (PGConnection.class).getCopyAPI ().copyIn (table.copy ());
+            Thread worker = new Thread (new Runnable () {
+               public void run () {
+                  try{
+                     while (true){
+                        Chunk chunk = queue.take ();
+                        if (chunk == END)
+                           break;
+                        if (failure.get () != null)
+                           continue;
+                        copyChunk (table, chunk, copy, rejects, loaded, rejected);
+                     }//end while
+                     copy.endCopy ();
+                  }catch (Exception e){
+                     failure.compareAndSet (null, e);
+                     try{
+                        if (copy.isActive ())
+                           copy.cancelCopy ();
+                     }catch (SQLException ignored){
+                        // the rollback below discards it anyway.
+                     }//end try
+                  }//end try
+               }
+            }, "cafe-import-" + table.name + "-" + i);
+            threads.add (worker);
+            worker.start ();
+         }//end for
+
+         // the reader: hand out chunks until the file ends or a worker fails
+         try (BufferedReader in = Files.newBufferedReader (file, StandardCharsets.UTF_8)){
+            long lineNo = 1;
+            List<String> lines = new ArrayList<String> (CHUNK_LINES);
+            String line;
+            while ((line = in.readLine ()) != null && failure.get () == null){
+               lines.add (line);
+               if (lines.size () == CHUNK_LINES){
+                  queue.put (new Chunk (lineNo, lines));
+                  lineNo += lines.size ();
+                  lines = new ArrayList<String> (CHUNK_LINES);
+               }//end if
+            }//end while
+            if (!lines.isEmpty ())
+               queue.put (new Chunk (lineNo, lines));
+         }finally{
+            for (int i = 0; i < workers; ++i)
+               queue.put (END);
+            for (Thread t : threads)
+               t.join ();
+         }//end try
+
+         if (failure.get () != null)
+            throw failure.get ();
+         // every COPY went through, so make them all visible together
+         for (ConnectionPool.PooledConnection conn : conns){
+            conn.getConnection ().commit ();
+            conn.getConnection ().setAutoCommit (true);
+         }//end for
+      }catch (Exception e){
+         System.err.println (table.name + ": load failed and was rolled back: " + e.getMessage ());
+         throw e;
+      }finally{
+         rejects.close ();
+         // the pool rolls back whatever was not committed
+         for (ConnectionPool.PooledConnection conn : conns)
+            pool.release (conn);
+      }//end try
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      System.out.println (String.format ("%-10s %12d rows %8d rejected %8.1f s %12.0f rows/s", table.name,
+         loaded.get (), rejected.get (), seconds, loaded.get () / seconds));
+      if (rejected.get () == 0)
+         Files.delete (rejectsFile);
+      else
+         System.out.println ("           rejected lines are listed in " + rejectsFile);
+   }//end load
+
+   /**
+    * Validates a chunk's lines and streams the good ones into a COPY.
+    */
+   static void copyChunk (Table table, Chunk chunk, CopyIn copy, Writer rejects, AtomicLong loaded, AtomicLong rejected)
+      throws SQLException, IOException {
+      StringBuilder good = new StringBuilder (chunk.lines.size () * 64);
+      StringBuilder bad = null;
+      int accepted = 0;
+      for (int i = 0; i < chunk.lines.size (); ++i){
+         String line = chunk.lines.get (i);
+         String reason = validate (table, line);
+         if (reason == null){
+            good.append (line).append ('\n');
+            ++accepted;
+         }else{
+            if (bad == null)
+               bad = new StringBuilder ();
+            bad.append (chunk.firstLine + i).append (": ").append (reason).append (": ").append (line).append ('\n');
+         }//end if
+      }//end for
+      byte[] bytes = good.toString ().getBytes (StandardCharsets.UTF_8);
+      copy.writeToCopy (bytes, 0, bytes.length);
+      loaded.addAndGet (accepted);
+      if (bad != null){
+         rejected.addAndGet (chunk.lines.size () - accepted);
+         synchronized (rejects){
+            rejects.write (bad.toString ());
+         }//end synchronized
+      }//end if
+   }//end copyChunk
+
+   /**
+    * Checks one line against a table's columns.
+    *
+    * @return null when the line is valid, otherwise why it is not
+    */
+   static String validate (Table table, String line) {
+      List<String> fields = split (line);
+      if (fields.size () != table.columns.length)
+         return "expected " + table.columns.length + " fields, found " + fields.size ();
+      for (int i = 0; i < fields.size (); ++i){
+         Column column = table.columns[i];
+         String value = fields.get (i);
+         if (value == null || value.isEmpty ()){
+            if (column.required)
+               return column.name + " is missing";
+            continue;
+         }//end if
+         try{
+            switch (column.kind){
+               case TEXT:
+                  if (value.length () > column.maxLength)
+                     return column.name + " is longer than " + column.maxLength + " characters";
+                  break;
+               case INTEGER:
+                  Integer.parseInt (value.trim ());
+                  break;
+               case NUMERIC:
+                  if (new BigDecimal (value.trim ()).signum () < 0)
+                     return column.name + " is negative";
+                  break;
+               case BOOLEAN:
+                  if (!value.trim ().toLowerCase ().matches ("t|f|true|false|y|n|yes|no|on|off|1|0"))
+                     return column.name + " is not a boolean";
+                  break;
+               case TIMESTAMP:
+                  if (!TIMESTAMP.matcher (value.trim ()).matches ())
+                     return column.name + " is not a valid timestamp";
+                  break;
+            }//end switch
+         }catch (IllegalArgumentException e){
+            return column.name + " is not a valid " + column.kind.name ().toLowerCase ();
+         }//end try
+      }//end for
+      return null;
+   }//end validate
+
+   /**
+    * Splits a COPY text format line on ';', undoing backslash escapes.
+    *
+    * @return the fields, with null for \N
+    */
+   static List<String> split (String line) {
+      List<String> fields = new ArrayList<String> ();
+      StringBuilder field = new StringBuilder ();
+      boolean isNull = false;
+      for (int i = 0; i < line.length (); ++i){
+         char c = line.charAt (i);
+         if (c == ';'){
+            fields.add (isNull ? null : field.toString ());
+            field.setLength (0);
+            isNull = false;
+         }else if (c == '\\' && i + 1 < line.length ()){
+            char next = line.charAt (++i);
+            switch (next){
+               case 'N': isNull = true; break;
+               case 't': field.append ('\t'); break;
+               case 'n': field.append ('\n'); break;
+               case 'r': field.append ('\r'); break;
+               default: field.append (next); break;
+            }//end switch
+         }else{
+            field.append (c);
+         }//end if
+      }//end for
+      fields.add (isNull ? null : field.toString ());
+      return fields;
+   }//end split
+
+}//end BulkImport
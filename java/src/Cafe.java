@@ -11,16 +11,24 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.math.BigDecimal;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.*;
@@ -32,34 +40,112 @@ import java.util.*;
  */
 public class Cafe {
 
-   //login info for later use
-   private static String authorisedUser = null;
+   // milliseconds an idle pooled connection is kept in server mode
+   private static final long SERVER_IDLE_TIMEOUT = 10 * 60 * 1000;
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // milliseconds a pooled connection is used before it is replaced
+   private static final long SERVER_MAX_LIFETIME = 30 * 60 * 1000;
+
+   // milliseconds a session waits for a free connection
+   private static final long BORROW_TIMEOUT = 30 * 1000;
+
+   // rows fetched per round trip when a query is streamed through a cursor
+   public static final int STREAM_FETCH_SIZE = 500;
+
+   // times an order edit is retried when another session changed the order first
+   public static final int EDIT_RETRIES = 3;
+
+   // SQLState of an order edit that lost to a concurrent change, as for a serialization failure
+   public static final String EDIT_CONFLICT = "40001";
+
+   // most items a menu search lists
+   public static final int MENU_SEARCH_RESULTS = 20;
+
+   // orders a session remembers the placed time of
+   private static final int PLACED_CACHE = 1024;
+
+   // orders per page of ViewOrderHistory, set with -Dcafe.history.page
+   public static final int HISTORY_PAGE_SIZE = Integer.getInteger("cafe.history.page", 5);
+
+   // pool of physical database connections, shared by every session in server mode
+   private final ConnectionPool _pool;
+
+   // whether this instance created the pool and must close it on cleanup
+   private final boolean _ownsPool;
+
+   // in-process copy of the menu, shared by every session in server mode
+   public final MenuCache menu;
+
+   // cached user profiles and API tokens, shared by every session in server mode
+   public final SessionManager sessions;
+
+   // open orders for the kitchen, kept current by NOTIFY and shared in server mode
+   public final KitchenQueue kitchen;
+
+   // queues item status changes and writes them in batches, owned by whoever created the pool;
+   // null when status changes are written right away
+   public final StatusWriter statuses;
+
+   // LISTEN/NOTIFY connection, owned by whoever created the pool
+   private final NotificationListener _listener;
+
+   // statement and operation timings, shared by every session on the pool
+   public final Metrics metrics;
+
+   // publishes the metrics when cafe.metrics.* is set, owned by whoever created the pool
+   private final MetricsExporter _exporter;
+
+   // connection held for the open transaction, or null in autocommit mode
+   private ConnectionPool.PooledConnection _pinned = null;
+
+   // the logged in user and role for this session
+   public final Session session = new Session();
 
    // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // In server mode each session reads from and writes to its own socket.
+   public final BufferedReader in;
+   public final PrintStream out;
+   public final PrintStream err;
+
+   // when orders this session worked on were placed, see OrderPlaced; at most PLACED_CACHE of them
+   private final Map<Integer, Timestamp> _placed = new HashMap<Integer, Timestamp>();
+
+   // buffered printer for query results written to out, made on first use
+   private ResultFormatter _printer = null;
+   private ResultFormatter.Format _printFormat = ResultFormatter.Format.TSV;
 
    /**
     * Creates a new instance of Cafe
     *
-    * @param hostname the MySQL or PostgreSQL server hostname
-    * @param database the name of the database
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
     * @throws java.sql.SQLException when failed to make a connection.
     */
    public Cafe (String dbname, String dbport) throws SQLException {
+      this.in = new BufferedReader(new InputStreamReader(System.in));
+      this.out = System.out;
+      this.err = System.err;
+      this._ownsPool = true;
 
       System.out.print("Connecting to database...");
+      // constructs the connection URL
+      String url = connectionUrl(dbname, dbport);
+      System.out.println ("Connection URL: " + url + "\n");
+
+      // a console session needs just one connection, kept for the whole run,
+      // and the status writer another while it writes
+      this._pool = new ConnectionPool(url, 2, 0, 0, BORROW_TIMEOUT);
+      this.menu = new MenuCache();
+      this.sessions = new SessionManager();
+      this.kitchen = new KitchenQueue();
+      this.statuses = new StatusWriter(this._pool, this.kitchen);
+      this.statuses.start();
+      this._listener = startListener(url, this.menu, this.sessions, this.kitchen);
+      this.metrics = this._pool.metrics;
+      this._exporter = startExporter(this.metrics);
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://127.0.0.1:" + dbport + "/" + dbname;
-         System.out.println ("Connection URL: " + url + "\n");
-
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url);
+         // obtain a physical connection up front so a bad URL fails fast
+         this._pool.release(this._pool.borrow());
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,219 +154,692 @@ public class Cafe {
       }//end catch
    }//end Cafe
 
+   /**
+    * Creates a new session on a shared connection pool
+    *
+    * @param pool the pool the session borrows connections from
+    * @param menu the menu cache shared by the pool's sessions
+    * @param sessions the session manager shared by the pool's sessions
+    * @param kitchen the kitchen queue shared by the pool's sessions
+    * @param statuses the status writer shared by the pool's sessions, or null to write statuses right away
+    * @param in the session's input
+    * @param out the session's output, which also receives error messages
+    */
+   public Cafe (ConnectionPool pool, MenuCache menu, SessionManager sessions, KitchenQueue kitchen,
+                StatusWriter statuses, BufferedReader in, PrintStream out) {
+      this._pool = pool;
+      this._ownsPool = false;
+      this.menu = menu;
+      this.sessions = sessions;
+      this.kitchen = kitchen;
+      this.statuses = statuses;
+      this._listener = null;
+      this.metrics = pool.metrics;
+      this._exporter = null;
+      this.in = in;
+      this.out = out;
+      this.err = out;
+   }//end Cafe
+
+   /**
+    * Sets the layout executeQueryAndPrintResult prints in
+    *
+    * @param format aligned table, TSV or CSV
+    */
+   public void setPrintFormat (ResultFormatter.Format format) {
+      this._printFormat = format;
+      this._printer = null;
+   }//end setPrintFormat
+
+   /**
+    * Builds the JDBC connection URL for a database on this machine
+    *
+    * @param dbname the name of the database
+    * @param dbport the port the PostgreSQL server listens on
+    * @return the connection URL
+    */
+   public static String connectionUrl (String dbname, String dbport) {
+      return "jdbc:postgresql://127.0.0.1:" + dbport + "/" + dbname;
+   }//end connectionUrl
+
+   /**
+    * Starts the LISTEN/NOTIFY connection that keeps the process's caches in
+    * step with changes made by other processes.
+    *
+    * @param url the JDBC connection URL
+    * @param menu the menu cache to invalidate when Menu changes
+    * @param sessions the session manager to invalidate when Users changes
+    * @param kitchen the kitchen queue to update when Orders or ItemStatus change
+    * @return the running listener
+    */
+   public static NotificationListener startListener (String url, MenuCache menu, SessionManager sessions,
+                                                     KitchenQueue kitchen) {
+      NotificationListener listener = new NotificationListener(url);
+      listener.listen(MenuCache.CHANNEL, menu);
+      listener.listen(SessionManager.CHANNEL, sessions);
+      listener.listen(KitchenQueue.CHANNEL, kitchen);
+      listener.start();
+      return listener;
+   }//end startListener
+
+   /**
+    * Starts the metrics exporters configured by the cafe.metrics system
+    * properties, if any.  A failure to start them is reported and otherwise
+    * ignored, since the application works without them.
+    *
+    * @param metrics the metrics to publish
+    * @return the running exporter, or null when none is configured
+    */
+   public static MetricsExporter startExporter (Metrics metrics) {
+      try{
+         return MetricsExporter.fromSystemProperties(metrics);
+      }catch (Exception e){
+         System.err.println("Unable to export metrics: " + e.getMessage());
+         return null;
+      }//end try
+   }//end startExporter
+
+   /**
+    * Method to borrow a connection from the pool for one operation.  Inside
+    * a transaction every operation runs on the transaction's connection.
+    *
+    * @return a pooled connection, to be handed back with release
+    * @throws java.sql.SQLException when no connection is available
+    */
+   private ConnectionPool.PooledConnection acquire () throws SQLException {
+      if (this._pinned != null)
+         return this._pinned;
+      return this._pool.borrow ();
+   }//end acquire
+
+   private void release (ConnectionPool.PooledConnection conn) {
+      if (conn != this._pinned)
+         this._pool.release (conn);
+   }//end release
+
+   /**
+    * Method to start a transaction.  The session keeps one connection with
+    * autocommit off until commit or rollback is called, and every statement
+    * issued in between runs on it.
+    *
+    * @throws java.sql.SQLException when a transaction is already open or no connection is available
+    */
+   public void beginTransaction () throws SQLException {
+      if (this._pinned != null)
+         throw new SQLException ("A transaction is already open");
+      ConnectionPool.PooledConnection conn = this._pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (false);
+      }catch (SQLException e){
+         this._pool.release (conn);
+         throw e;
+      }//end try
+      this._pinned = conn;
+   }//end beginTransaction
+
+   /**
+    * Method to commit the open transaction and hand its connection back.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commit () throws SQLException {
+      ConnectionPool.PooledConnection conn = this._pinned;
+      this._pinned = null;
+      try{
+         this.metrics.commit ();
+         conn.getConnection ().commit ();
+         conn.getConnection ().setAutoCommit (true);
+      }finally{
+         // the pool rolls back anything the failed commit left open
+         this._pool.release (conn);
+      }//end try
+   }//end commit
+
+   /**
+    * Method to roll back the open transaction, if any, and hand its
+    * connection back.
+    */
+   public void rollback () {
+      ConnectionPool.PooledConnection conn = this._pinned;
+      this._pinned = null;
+      if (conn != null)
+         this._pool.release (conn);
+   }//end rollback
+
+   /**
+    * Method to bind parameters to a PreparedStatement by their Java type.
+    * Integer, Double, BigDecimal, String and Timestamp values are bound with
+    * the matching typed setter, an Integer[] as an integer array, e.g. for
+    * "= ANY(?)", and null is bound as SQL NULL.
+    *
+    * @param stmt the statement to bind
+    * @param params the parameter values, in placeholder order
+    * @throws java.sql.SQLException when a parameter could not be bound
+    */
+   public static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      for (int i = 0; i < params.length; ++i){
+         Object param = params[i];
+         if (param instanceof Integer)
+            stmt.setInt (i + 1, (Integer) param);
+         else if (param instanceof Double)
+            stmt.setDouble (i + 1, (Double) param);
+         else if (param instanceof BigDecimal)
+            stmt.setBigDecimal (i + 1, (BigDecimal) param);
+         else if (param instanceof String)
+            stmt.setString (i + 1, (String) param);
+         else if (param instanceof Timestamp)
+            stmt.setTimestamp (i + 1, (Timestamp) param);
+         else if (param instanceof Integer[])
+            stmt.setArray (i + 1, stmt.getConnection ().createArrayOf ("integer", (Integer[]) param));
+         else if (param == null)
+            stmt.setNull (i + 1, java.sql.Types.NULL);
+         else
+            throw new SQLException ("Unsupported parameter type: " + param.getClass ().getName ());
+      }//end for
+   }//end bind
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, using ? for each parameter
+    * @param params the parameter values, in placeholder order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = this.metrics.start ();
+      ConnectionPool.PooledConnection conn = acquire ();
+      try{
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = conn.prepare (sql);
+         bind (stmt, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         return stmt.executeUpdate ();
+      }finally{
+         this.metrics.statement (sql, start, 0, 1);
+         release (conn);
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute one update SQL statement for many sets of parameters.
+    * The rows are sent to the DBMS as a single JDBC batch.
+    *
+    * @param sql the input SQL string, using ? for each parameter
+    * @param rows the parameter values for each execution, in placeholder order
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      long start = this.metrics.start ();
+      ConnectionPool.PooledConnection conn = acquire ();
+      try{
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = conn.prepare (sql);
+         for (Object[] params : rows){
+            bind (stmt, params);
+            stmt.addBatch ();
+         }//end for
+
+         // issues every queued instruction at once
+         return stmt.executeBatch ();
+      }finally{
+         this.metrics.statement (sql, start, 0, 1);
+         release (conn);
+      }//end try
+   }//end executeBatch
+
+   /**
+    * Receives each row of a query streamed by forEachRow.
+    */
+   public interface RowHandler {
+      void handle (ResultSet rs) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and hand
+    * each row to a callback as it arrives.  The query runs through a
+    * forward-only cursor that fetches fetchSize rows per round trip, so only
+    * one batch of rows is held in memory at a time.  A fetchSize of 0 reads
+    * the whole result in one round trip, which suits small results.
+    *
+    * @param query the input query string, using ? for each parameter
+    * @param fetchSize the number of rows to fetch per round trip, or 0 for all
+    * @param handler the callback that receives each row
+    * @param params the parameter values, in placeholder order
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int forEachRow (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      long start = this.metrics.start ();
+      ConnectionPool.PooledConnection conn = acquire ();
+      Connection c = conn.getConnection ();
+      // the PostgreSQL driver only uses a cursor outside autocommit
+      boolean autoCommit = fetchSize > 0 && c.getAutoCommit ();
+      int rowCount = 0;
+      try{
+         if (autoCommit)
+            c.setAutoCommit (false);
+
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+         stmt.setFetchSize (fetchSize);
+
+         try{
+            ResultSet rs = stmt.executeQuery ();
+            while (rs.next ()){
+               handler.handle (rs);
+               ++rowCount;
+            }//end while
+            rs.close ();
+         }finally{
+            // the statement is cached, so leave it as it was found
+            stmt.setFetchSize (0);
+         }//end try
+
+         if (autoCommit){
+            this.metrics.commit ();
+            c.commit ();
+         }//end if
+         return rowCount;
+      }finally{
+         // a cursor takes one more round trip per batch of rows
+         this.metrics.statement (query, start, rowCount, fetchSize > 0 ? 1 + rowCount / fetchSize : 1);
+         if (autoCommit)
+            c.setAutoCommit (true);
+         release (conn);
+      }//end try
+   }//end forEachRow
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * the session's output in the session's print format.
     *
-    * @param query the input query string
+    * @param query the input query string, using ? for each parameter
+    * @param params the parameter values, in placeholder order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = this.metrics.start ();
       int rowCount = 0;
+      ConnectionPool.PooledConnection conn = acquire ();
+      try{
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+
+         // prints the rows through the session's buffered formatter
+         try{
+            // sessions that never print, e.g. API requests, skip the buffer
+            if (this._printer == null)
+               this._printer = new ResultFormatter (this.out, this._printFormat);
+            rowCount = this._printer.print (rs);
+            return rowCount;
+         }catch (IOException e){
+            throw new SQLException ("Unable to print result: " + e.getMessage (), e);
+         }finally{
+            rs.close ();
+         }//end try
+      }finally{
+         this.metrics.statement (query, start, rowCount, 1);
+         release (conn);
+      }//end try
    }//end executeQuery
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the results as
-    * a list of records. Each record in turn is a list of attribute values
+    * a list of records. Each record in turn is a list of attribute values.
+    * The whole result is held in memory as Strings, so large or numeric
+    * results should go through forEachRow or queryLongColumns instead.
     *
-    * @param query the input query string
+    * @param query the input query string, using ? for each parameter
+    * @param params the parameter values, in placeholder order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
- 
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
- 
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
- 
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException { 
+      long start = this.metrics.start ();
+      int rowCount = 0;
+      ConnectionPool.PooledConnection conn = acquire ();
+      try{
+         // fetches the prepared statement for this query shape
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction 
+         ResultSet rs = stmt.executeQuery (); 
+
+         /* 
+          ** obtains the metadata object for the returned result set.  The metadata 
+          ** contains row and column info. 
+          */ 
+         ResultSetMetaData rsmd = rs.getMetaData (); 
+         int numCol = rsmd.getColumnCount (); 
+
+         // iterates through the result set and saves the data returned by the query. 
+         List<List<String>> result  = new ArrayList<List<String>>(); 
+         while (rs.next()){
+            List<String> record = new ArrayList<String>(); 
+            for (int i=1; i<=numCol; ++i) 
+               record.add(rs.getString (i)); 
+            result.add(record); 
+         }//end while 
+         rs.close (); 
+         rowCount = result.size ();
+         return result; 
+      }finally{
+         this.metrics.statement (query, start, rowCount, 1);
+         release (conn);
+      }//end try
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) whose
+    * columns are all integers, and project the rows into one primitive
+    * array per column.  Rows are streamed with the given fetch size and read
+    * with getLong, so no String or boxed number is made per cell.
+    *
+    * @param query the input query string, using ? for each parameter
+    * @param fetchSize the number of rows to fetch per round trip, or 0 for all
+    * @param params the parameter values, in placeholder order
+    * @return one array per column, each with one value per row; no columns
+    *         at all when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public long[][] queryLongColumns (String query, int fetchSize, Object... params) throws SQLException {
+      class Collector implements RowHandler {
+         long[][] columns = new long[0][];
+         int rows = 0;
+
+         public void handle (ResultSet rs) throws SQLException {
+            if (rows == 0)
+               columns = new long[rs.getMetaData ().getColumnCount ()][16];
+            else if (rows == columns[0].length)
+               for (int i = 0; i < columns.length; ++i)
+                  columns[i] = Arrays.copyOf (columns[i], rows * 2);
+            for (int i = 0; i < columns.length; ++i)
+               columns[i][rows] = rs.getLong (i + 1);
+            ++rows;
+         }
+      }//end Collector
+      Collector collector = new Collector ();
+      forEachRow (query, fetchSize, collector, params);
+      for (int i = 0; i < collector.columns.length; ++i)
+         collector.columns[i] = Arrays.copyOf (collector.columns[i], collector.rows);
+      return collector.columns;
+   }//end queryLongColumns
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) whose
+    * columns are all numeric, and project the rows into one primitive
+    * double array per column.  Rows are streamed with the given fetch size
+    * and read with getDouble, so no String or boxed number is made per cell.
+    *
+    * @param query the input query string, using ? for each parameter
+    * @param fetchSize the number of rows to fetch per round trip, or 0 for all
+    * @param params the parameter values, in placeholder order
+    * @return one array per column, each with one value per row; no columns
+    *         at all when the query returned no rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public double[][] queryDoubleColumns (String query, int fetchSize, Object... params) throws SQLException {
+      class Collector implements RowHandler {
+         double[][] columns = new double[0][];
+         int rows = 0;
+
+         public void handle (ResultSet rs) throws SQLException {
+            if (rows == 0)
+               columns = new double[rs.getMetaData ().getColumnCount ()][16];
+            else if (rows == columns[0].length)
+               for (int i = 0; i < columns.length; ++i)
+                  columns[i] = Arrays.copyOf (columns[i], rows * 2);
+            for (int i = 0; i < columns.length; ++i)
+               columns[i][rows] = rs.getDouble (i + 1);
+            ++rows;
+         }
+      }//end Collector
+      Collector collector = new Collector ();
+      forEachRow (query, fetchSize, collector, params);
+      for (int i = 0; i < collector.columns.length; ++i)
+         collector.columns[i] = Arrays.copyOf (collector.columns[i], collector.rows);
+      return collector.columns;
+   }//end queryDoubleColumns
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, using ? for each parameter
+    * @param params the parameter values, in placeholder order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = this.metrics.start ();
        int rowCount = 0;
-
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+       ConnectionPool.PooledConnection conn = acquire ();
+       try{
+          // fetches the prepared statement for this query shape
+          PreparedStatement stmt = conn.prepare (query);
+          bind (stmt, params);
+
+          // issues the query instruction
+          ResultSet rs = stmt.executeQuery ();
+
+          // iterates through the result set and count nuber of results.
+          if(rs.next()){
+             rowCount++;
+          }//end while
+          rs.close ();
+          return rowCount;
+       }finally{
+          this.metrics.statement (query, start, rowCount, 1);
+          release (conn);
+       }//end try
    }
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval is tracked per
+    * connection, so with a pooled connection the value may come from
+    * another session's insert.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+	ConnectionPool.PooledConnection conn = acquire ();
+	try{
+		PreparedStatement stmt = conn.prepare ("SELECT currval(?::regclass)");
+		bind (stmt, sequence);
+
+		ResultSet rs = stmt.executeQuery ();
+		int value = -1;
+		if (rs.next())
+			value = rs.getInt(1);
+		rs.close ();
+		return value;
+	}finally{
+		release (conn);
+	}
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the physical connections if this session owns them.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      if (this._ownsPool){
+         if (this._exporter != null)
+            this._exporter.stop ();
+         // what is still queued is written before the connections go
+         this.statuses.stop ();
+         this._listener.stop ();
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
     * The main execution method
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param args the command line arguments this inclues the <dbname> <port>
+    *             and optionally --server or --http <listen port> [pool size]
     */
    public static void main (String[] args) {
-      if (args.length != 2) {
+      if (args.length != 2 && !(args.length >= 4 && (args[2].equals("--server") || args[2].equals("--http")))) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Cafe.class.getName () +
-            " <dbname> <port>");
+            " <dbname> <port> [--server|--http <listen port> [pool size]]");
          return;
       }//end if
 
-      Greeting();
-      Cafe esql = null;
       try{
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+         return;
+      }//end try
+
+      String dbname = args[0];
+      String dbport = args[1];
+      if (args.length >= 4) {
+         int listenPort = Integer.parseInt(args[3]);
+         int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+         String url = connectionUrl(dbname, dbport);
+         if (args[2].equals("--http")) {
+            try {
+               ApiServer.Serve(url, listenPort, new ConnectionPool(url, poolSize, SERVER_IDLE_TIMEOUT, SERVER_MAX_LIFETIME, BORROW_TIMEOUT));
+            } catch (IOException e) {
+               System.err.println(e.getMessage());
+            }//end try
+            return;
+         }//end if
+         Serve(url, listenPort, poolSize);
+         return;
+      }//end if
+
+      Cafe esql = null;
+      try{
          // instantiate the Cafe object and creates a physical
          // connection.
-         String dbname = args[0];
-         String dbport = args[1];
          esql = new Cafe (dbname, dbport);
+         RunSession(esql);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+   /**
+    * Runs the server mode: accepts terminal sessions over TCP, each on its
+    * own thread, all sharing one bounded pool of database connections.
+    *
+    * @param url the JDBC connection URL
+    * @param listenPort the TCP port terminals connect to
+    * @param poolSize the maximum number of database connections
+    */
+   public static void Serve(String url, int listenPort, int poolSize) {
+      final ConnectionPool pool = new ConnectionPool(url, poolSize, SERVER_IDLE_TIMEOUT, SERVER_MAX_LIFETIME, BORROW_TIMEOUT);
+      final MenuCache menu = new MenuCache();
+      final SessionManager sessions = new SessionManager();
+      final KitchenQueue kitchen = new KitchenQueue();
+      final StatusWriter statuses = new StatusWriter(pool, kitchen);
+      NotificationListener listener = startListener(url, menu, sessions, kitchen);
+      MetricsExporter exporter = startExporter(pool.metrics);
+      statuses.start();
+      try (ServerSocket server = new ServerSocket(listenPort)) {
+         System.out.println("Cafe server listening on port " + listenPort + " with up to " + poolSize + " connections");
+         while (true) {
+            final Socket socket = server.accept();
+            Thread worker = new Thread(new Runnable() {
+               public void run() {
+                  try (Socket s = socket) {
+                     BufferedReader sin = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                     PrintStream sout = new PrintStream(s.getOutputStream(), true);
+                     RunSession(new Cafe(pool, menu, sessions, kitchen, statuses, sin, sout));
+                  } catch (Exception e) {
+                     System.err.println("Session ended: " + e.getMessage());
+                  }//end try
+               }
+            }, "cafe-session-" + socket.getRemoteSocketAddress());
+            worker.start();
+         }//end while
+      } catch (IOException e) {
+         System.err.println(e.getMessage());
+      } finally {
+         if (exporter != null)
+            exporter.stop();
+         statuses.stop();
+         listener.stop();
+         pool.close();
+      }//end try
+   }//end Serve
 
+   /**
+    * Runs the menus for one session until the user exits or the session's
+    * input is closed.
+    */
+   public static void RunSession(Cafe esql) {
+         Greeting(esql);
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            authorisedUser = null;
-            switch (readChoice()){
+            esql.out.println("MAIN MENU");
+            esql.out.println("---------");
+            esql.out.println("1. Create user");
+            esql.out.println("2. Log in");
+            esql.out.println("9. < EXIT");
+            esql.session.logOut();
+            switch (esql.readChoice()){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: esql.session.setLogin(LogIn(esql)); break;
                case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
+               default : esql.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            if (esql.session.isLoggedIn()) {
               boolean usermenu = true;
-              String user_type = find_type(esql);
+              // LogIn already knows the role; look it up only if it does not
+              if (esql.session.getType() == null)
+                 esql.session.setType(find_type(esql));
+              String user_type = esql.session.getType();
 	      switch (user_type){
 		case "Customer": 
 		  while(usermenu) {
-                    System.out.println("Customer MAIN MENU");
-                    System.out.println("---------");
-                    System.out.println("1. Browse Menu by ItemName");
-                    System.out.println("2. Browse Menu by Type");
-                    System.out.println("3. Add Order");
-                    System.out.println("4. Update Order");
-                    System.out.println("5. View Order History");
-                    System.out.println("6. View Order Status");
-                    System.out.println("7. Update User Info");
-                    System.out.println(".........................");
-                    System.out.println("9. Log out");
-                      switch (readChoice()){
+                    esql.out.println("Customer MAIN MENU");
+                    esql.out.println("---------");
+                    esql.out.println("1. Browse Menu by ItemName");
+                    esql.out.println("2. Browse Menu by Type");
+                    esql.out.println("3. Add Order");
+                    esql.out.println("4. Update Order");
+                    esql.out.println("5. View Order History");
+                    esql.out.println("6. View Order Status");
+                    esql.out.println("7. Update User Info");
+                    esql.out.println(".........................");
+                    esql.out.println("9. Log out");
+                      switch (esql.readChoice()){
                        case 1: BrowseMenuName(esql); break;
                        case 2: BrowseMenuType(esql); break;
                        case 3: AddOrder(esql); break;
@@ -289,23 +848,23 @@ public class Cafe {
                        case 6: ViewOrderStatus(esql); break;
                        case 7: UpdateUserInfo(esql); break;
                        case 9: usermenu = false; break;
-                       default : System.out.println("Unrecognized choice!"); break;
+                       default : esql.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
 		case "Employee": 
 		  while(usermenu) {
-                    System.out.println("Employee MAIN MENU");
-                    System.out.println("---------");
-                    System.out.println("1. Browse Menu by ItemName");
-                    System.out.println("2. Browse Menu by Type");
-                    System.out.println("3. Add Order");
-                    System.out.println("4. Update Order");
-                    System.out.println("5. View Current Orders");
-                    System.out.println("6. View Order Status");
-                    System.out.println("7. Update User Info");
-                    System.out.println(".........................");
-                    System.out.println("9. Log out");
-                      switch (readChoice()){
+                    esql.out.println("Employee MAIN MENU");
+                    esql.out.println("---------");
+                    esql.out.println("1. Browse Menu by ItemName");
+                    esql.out.println("2. Browse Menu by Type");
+                    esql.out.println("3. Add Order");
+                    esql.out.println("4. Update Order");
+                    esql.out.println("5. View Current Orders");
+                    esql.out.println("6. View Order Status");
+                    esql.out.println("7. Update User Info");
+                    esql.out.println(".........................");
+                    esql.out.println("9. Log out");
+                      switch (esql.readChoice()){
                        case 1: BrowseMenuName(esql); break;
                        case 2: BrowseMenuType(esql); break;
                        case 3: AddOrder(esql); break;
@@ -314,24 +873,25 @@ public class Cafe {
                        case 6: ViewOrderStatus(esql); break;
                        case 7: UpdateUserInfo(esql); break;
                        case 9: usermenu = false; break;
-                       default : System.out.println("Unrecognized choice!"); break;
+                       default : esql.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
-		case "Manager ": 
+		case "Manager": 
 		  while(usermenu) {
-                    System.out.println("MAIN MENU - Manager");
-                    System.out.println("---------");
-                    System.out.println("1. Browse Menu by ItemName");
-                    System.out.println("2. Browse Menu by Type");
-                    System.out.println("3. Add Order");
-                    System.out.println("4. Update Order");
-                    System.out.println("5. View Current Orders");
-                    System.out.println("6. View Order Status");
-                    System.out.println("7. Update User Info");
-                    System.out.println("8. Update Menu");
-                    System.out.println(".........................");
-                    System.out.println("9. Log out");
-                      switch (readChoice()){
+                    esql.out.println("MAIN MENU - Manager");
+                    esql.out.println("---------");
+                    esql.out.println("1. Browse Menu by ItemName");
+                    esql.out.println("2. Browse Menu by Type");
+                    esql.out.println("3. Add Order");
+                    esql.out.println("4. Update Order");
+                    esql.out.println("5. View Current Orders");
+                    esql.out.println("6. View Order Status");
+                    esql.out.println("7. Update User Info");
+                    esql.out.println("8. Update Menu");
+                    esql.out.println("10. Sales Reports");
+                    esql.out.println(".........................");
+                    esql.out.println("9. Log out");
+                      switch (esql.readChoice()){
                        case 1: BrowseMenuName(esql); break;
                        case 2: BrowseMenuType(esql); break;
                        case 3: AddOrder(esql); break;
@@ -340,31 +900,18 @@ public class Cafe {
                        case 6: ViewOrderStatus(esql); break;
                        case 7: ManagerUpdateUserInfo(esql); break;
                        case 8: UpdateMenu(esql); break;
+                       case 10: ManagerReport(esql); break;
                        case 9: usermenu = false; break;
-                       default : System.out.println("Unrecognized choice!"); break;
+                       default : esql.out.println("Unrecognized choice!"); break;
 		      }//end switch
 		  } break;
 	      }//end switch
             }//end if
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+   }//end RunSession
 
-   public static void Greeting(){
-      System.out.println(
+   public static void Greeting(Cafe esql){
+      esql.out.println(
          "\n\n*******************************************************\n" +
          "              User Interface                         \n" +
          "*******************************************************\n");
@@ -374,43 +921,66 @@ public class Cafe {
     * Reads the users choice given from the keyboard
     * @int
     **/
-   public static int readChoice() {
+   public int readChoice() {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
-         try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+         out.print("Please make your choice: ");
+         String line;
+         try {
+            line = in.readLine();
+         }catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }//end try
+         // the terminal went away, so unwind out of every menu
+         if (line == null)
+            throw new UncheckedIOException(new EOFException("Session input closed"));
+         try { // parse the integer and break.
+            input = Integer.parseInt(line.trim());
             break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+         }catch (NumberFormatException e) {
+            out.println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
       return input;
    }//end readChoice
 
+   /*
+    * Reads one line of text from the session's input
+    * @String
+    **/
+   public String readLine() {
+      try {
+         String line = in.readLine();
+         if (line == null)
+            throw new EOFException("Session input closed");
+         return line;
+      }catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }//end try
+   }//end readLine
+
    /*
     * Creates a new user with privided login, password and phoneNum
     **/
    public static void CreateUser(Cafe esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter user phone: ");
-         String phone = in.readLine();
+         esql.out.print("\tEnter user login: ");
+         String login = esql.in.readLine();
+         esql.out.print("\tEnter user password: ");
+         String password = esql.in.readLine();
+         esql.out.print("\tEnter user phone: ");
+         String phone = esql.in.readLine();
          
 	 String type="Customer";
-	 String favItems="";
 
-	 String query = String.format("INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone, login, password, favItems, type);
+	 String query = "INSERT INTO USERS (phoneNum, login, password, type) VALUES (?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
+         esql.executeUpdate(query, phone, login, password, type);
+         esql.out.println ("User successfully created!");
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         esql.err.println (e.getMessage ());
       }
    }//end
    
@@ -420,24 +990,44 @@ public class Cafe {
     **/
    public static String LogIn(Cafe esql){
       try{
-         System.out.print("\tEnter user login: ");
-         String login = in.readLine();
-         System.out.print("\tEnter user password: ");
-         String password = in.readLine();
-
-         String query = String.format("SELECT * FROM Users WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
-		return login;
+         esql.out.print("\tEnter user login: ");
+         String login = esql.in.readLine();
+         esql.out.print("\tEnter user password: ");
+         String password = esql.in.readLine();
+
+	 SessionManager.Profile profile = esql.sessions.authenticate(esql, login, password);
+	 if (profile != null)
+	 {
+		esql.session.setType(profile.type);
+		return profile.login;
+	 }
 	 else
-		System.out.println("\t \nInvalid Log In Credentials. \n");
+		esql.out.println("\t \nInvalid Log In Credentials. \n");
          return null;
       }catch(Exception e){
-         System.err.println (e.getMessage ());
+         esql.err.println (e.getMessage ());
          return null;
       }
    }//end
 
+   /*
+    * Checks a login and password against the Users table, through the
+    * session manager's cache
+    * @return true when the credentials match a user
+    **/
+   public static boolean Authenticate(Cafe esql, String login, String password) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         return esql.sessions.authenticate(esql, login, password) != null;
+      }
+      finally
+      {
+         esql.metrics.operation("LogIn", start);
+      }
+   }//end
+
 	
 /*****************************************************************************/
 
@@ -448,18 +1038,21 @@ public class Cafe {
 
    public static String find_type(Cafe esql)
    {
+       long start = esql.metrics.start();
        try
        {
-           String query = String.format("SELECT U.type FROM Users U WHERE U.login = '%s'", authorisedUser );
-           List<List<String>> userType = esql.executeQueryAndReturnResult(query);
-
-           return userType.get(0).get(0);
+           SessionManager.Profile profile = esql.sessions.profile(esql, esql.session.getLogin());
+           return profile == null ? null : profile.type;
        }
        catch(Exception e)
        {
-           System.err.println (e.getMessage ());
+           esql.err.println (e.getMessage ());
            return null;
        }
+       finally
+       {
+           esql.metrics.operation("find_type", start);
+       }
    }
 
 
@@ -470,40 +1063,40 @@ public class Cafe {
    {
        try
        {
-           String query = String.format("SELECT M.itemName FROM Menu M");
-           List<List<String>> itemnames= esql.executeQueryAndReturnResult(query);
-           System.out.println();
+           // searched in memory; an empty search lists the whole menu
+           MenuCache.Snapshot menu = esql.menu.get(esql);
+           esql.out.println("\n Search the menu by name, type or description, or press enter to list everything");
+           String words = esql.in.readLine();
+           List<MenuCache.Item> itemnames = words == null || words.trim().isEmpty() ? menu.items : menu.search.search(words, MENU_SEARCH_RESULTS);
+           if(itemnames.isEmpty())
+           {
+               esql.out.println("\nNo items match \"" + words.trim() + "\"\n");
+               return;
+           }
+           esql.out.println();
            for(int i = 0; i < itemnames.size(); ++i)
            {
-              System.out.println(" " + i + ") " + itemnames.get(i).get(0));
+              esql.out.println(" " + i + ") " + itemnames.get(i).name);
            }
-           System.out.println("\n Select # for item details or 0 to exit");
+           esql.out.println("\n Select # for item details or 0 to exit");
            int choice = esql.readChoice();
            if(choice < 0 || choice >= itemnames.size())
            {
-               System.out.println("Invalid Input\n");
+               esql.out.println("Invalid Input\n");
            }
            else
            {
-               query = String.format("SELECT * FROM Menu M WHERE itemName = '" + itemnames.get(choice).get(0) + "'");
-               List<List<String>> itemdeets = esql.executeQueryAndReturnResult(query);
-               for(int i = 0; i < itemdeets.size(); ++i)
-               {
-                  //0 name,1 type,2 price,3 description,4 url
-                  System.out.println("\nName: " + itemdeets.get(i).get(0));
-                  System.out.println("Type: " + itemdeets.get(i).get(1));
-                  String stringPrice = itemdeets.get(i).get(2);
-                  double numPrice = Double.parseDouble(stringPrice);
-                  numPrice = Math.round(numPrice * 100.0) / 100.0; //round to 2 decimals
-                  System.out.println(String.format("Price: $%.2f", numPrice));
-                  System.out.println("Description:\n " + itemdeets.get(i).get(3));
-                  System.out.println("Url:\n " + itemdeets.get(i).get(4) + "\n");
-               }
+               MenuCache.Item item = itemnames.get(choice);
+               esql.out.println("\nName: " + item.name);
+               esql.out.println("Type: " + item.type);
+               esql.out.println("Price: $" + Money.format(item.priceCents));
+               esql.out.println("Description:\n " + item.description);
+               esql.out.println("Url:\n " + item.imageUrl + "\n");
            }
        }
        catch(Exception e)
        {
-           System.err.println (e.getMessage ());
+           esql.err.println (e.getMessage ());
        }
    }//end
 
@@ -515,31 +1108,33 @@ public class Cafe {
    {
        try
        {
-           String query = String.format("SELECT DISTINCT M.type FROM Menu M");
-           List<List<String>> menutypes= esql.executeQueryAndReturnResult(query);
-           System.out.println();
+           MenuCache.Snapshot menu = esql.menu.get(esql);
+           List<String> menutypes = menu.types;
+           esql.out.println();
            for(int i = 0; i < menutypes.size(); ++i)
            {   
-               System.out.println(" "  + i + ") " + menutypes.get(i).get(0));
+               esql.out.println(" "  + i + ") " + menutypes.get(i));
            }
-           System.out.println("\n Select # for type you wish to browse: ");
+           esql.out.println("\n Select # for type you wish to browse: ");
            int choice = esql.readChoice();
            if(choice < 0 || choice >= menutypes.size())
            {
-              System.out.println("Invalid Option");
+              esql.out.println("Invalid Option");
            }
            else 
            {
-              System.out.println("\n" + menutypes.get(choice).get(0) + "\n--------------------");
-              query = String.format("SELECT M.itemName FROM Menu M WHERE M.type='" + menutypes.get(choice).get(0) + "'");
-              esql.executeQueryAndPrintResult(query);
-              System.out.println("--------------------\n");
+              esql.out.println("\n" + menutypes.get(choice) + "\n--------------------");
+              for(MenuCache.Item item : menu.byType(menutypes.get(choice)))
+              {
+                 esql.out.println(item.name);
+              }
+              esql.out.println("--------------------\n");
            }
 
        }
        catch(Exception e)
        {
-           System.err.println (e.getMessage ());
+           esql.err.println (e.getMessage ());
        }
    }//end
 
@@ -547,42 +1142,74 @@ public class Cafe {
 /*****************************************************************************/
 
 
+   /*
+    * Prints the numbered menu used to pick items for an order
+    **/
+   public static void PrintMenu(Cafe esql, List<MenuCache.Item> items)
+   {
+      for(int i = 0; i < items.size(); ++i)
+      {
+         MenuCache.Item item = items.get(i);
+         esql.out.println(String.format("%d)   $%-6s    %s", i, Money.format(item.priceCents), item.name)); 
+      }
+   }//end
+
+
    public static Integer AddOrder(Cafe esql){
       try
       {
+         // regulars can reorder their favorites without paging through the menu
+         List<String> favorites = Favorites(esql, esql.session.getLogin());
+         if(favorites.size() > 0)
+         {
+            MenuCache.Snapshot menu = esql.menu.get(esql);
+            long favoritesTotal = 0;
+            esql.out.println("\nYour favorites: \n");
+            for(String name : favorites)
+            {
+               MenuCache.Item item = menu.byName(name);
+               if(item == null)
+                  continue;
+               favoritesTotal += item.priceCents;
+               esql.out.println(name + " $" + Money.format(item.priceCents));
+            }
+            esql.out.println("Order total:   $" + Money.format(favoritesTotal) + " ");
+            esql.out.println("\n 0) order your favorites   \n 1) choose from the menu");
+            if(esql.readChoice() == 0)
+            {
+               int oid = ReorderFavorites(esql, esql.session.getLogin());
+               if(oid >= 0)
+               {
+                  esql.out.println("\nOrder #" + oid + " Placed Successfully\n");
+                  return oid;
+               }
+               esql.out.println("\nNo favorites left on the menu, choose from the menu instead\n");
+            }
+         }
+
          Vector<String> orderNames = new Vector();
-         Vector<Double> orderPrices = new Vector();
-         String query = String.format("SELECT itemName, price FROM Menu");
-         List<List<String>> itemLists = esql.executeQueryAndReturnResult(query);
+         Vector<Long> orderPrices = new Vector();
+         List<MenuCache.Item> itemLists = esql.menu.get(esql).items;
          int numItems = itemLists.size();
          boolean moreitems = true;
-         double orderPriceTotal = 0.00, numPrice = 0.00;
-         String curItem = "", curPrice = "";
-         //System.out.println("\n\tCafe Menu");
+         long orderPriceTotal = 0;
+         //esql.out.println("\n\tCafe Menu");
          do
          {
-            System.out.println("\n\tCafe Menu");
-            //pull menu items from query
-            for(int i = 0; i < itemLists.size(); ++i)
-            {
-               curItem = itemLists.get(i).get(0); //get menu item name
-               curPrice = itemLists.get(i).get(1); //get menu item price
-               numPrice = Double.parseDouble(curPrice); //convert string to double
-               numPrice = Math.round(numPrice * 100.0) / 100.0; //round to 2 decimals
-               System.out.println(String.format("%d)   $%-6.2f    %s", i, numPrice, curItem)); 
-            }
+            esql.out.println("\n\tCafe Menu");
+            PrintMenu(esql, itemLists);
             //display current cart 
-            System.out.print("\nItems in Cart: ");
+            esql.out.print("\nItems in Cart: ");
             for(int i = 0;i < orderNames.size(); ++i)
             {
-               System.out.print(orderNames.get(i) + "  ");
+               esql.out.print(orderNames.get(i) + "  ");
             }
-            System.out.println(String.format("\nOrder Total: $%.2f", orderPriceTotal));
-            System.out.println("\n Enter item number to add it to the order\n -- OR -- \n " + numItems + " to checkout or cancel");
+            esql.out.println("\nOrder Total: $" + Money.format(orderPriceTotal));
+            esql.out.println("\n Enter item number to add it to the order\n -- OR -- \n " + numItems + " to checkout or cancel");
             int itemChoice = esql.readChoice();
             if(itemChoice < numItems && itemChoice >= 0)
             {
-               String Name = itemLists.get(itemChoice).get(0).trim().replaceAll(" +", " ");
+               String Name = itemLists.get(itemChoice).name;
                int numCt = 0;
                for(int i = 0; i < orderNames.size(); ++i)
                {
@@ -595,20 +1222,17 @@ public class Cafe {
                //no duplicate orders allowed
                if(numCt > 0)
                {
-                  System.out.println("Error: Can only add one of each item");
+                  esql.out.println("Error: Can only add one of each item");
                }
                else
                {
                   //add item to order vector
                   orderNames.add(Name); 
                   //add price of chosen item to item total
-                  curPrice = itemLists.get(itemChoice).get(1);
-                  numPrice = Double.parseDouble(curPrice);
-                  numPrice = Math.round(numPrice * 100.0) / 100.0;
+                  long numPrice = itemLists.get(itemChoice).priceCents;
                   //add price to order vector
                   orderPrices.add(numPrice);
                   orderPriceTotal += numPrice;
-                  orderPriceTotal = Math.round(orderPriceTotal * 100.0) / 100.0;
                }
                moreitems = true;
             }
@@ -617,87 +1241,127 @@ public class Cafe {
                moreitems = false;
             }
             else
-               System.out.println("\nINVALID Entry!\n");
+               esql.out.println("\nINVALID Entry!\n");
          }while(moreitems);
          if(orderNames.size() > 0)
          {
-            System.out.println("\nitems in this order: \n");
+            esql.out.println("\nitems in this order: \n");
             for(int i = 0; i < orderNames.size(); ++i)
             {
-               System.out.println(String.format("%s $%.2f", orderNames.get(i), numPrice)); 
+               esql.out.println(orderNames.get(i) + " $" + Money.format(orderPrices.get(i))); 
             }
-               System.out.println(String.format("Order total:   $%.2f ", orderPriceTotal));
-               System.out.println("\nConfirm order?  \n 0) yes   \n 1) no");
+               esql.out.println("Order total:   $" + Money.format(orderPriceTotal) + " ");
+               esql.out.println("\nConfirm order?  \n 0) yes   \n 1) no");
                int confOrder = esql.readChoice();
             if(confOrder == 0)
             {
                //insert order and items into databases
-               boolean hasPaid = false;
-               query = String.format("INSERT INTO ORDERS (login, paid, timeStampRecieved, total) VALUES ('"+ authorisedUser +"', "+ hasPaid +", now()::timestamp, "+ orderPriceTotal +")");
-               esql.executeUpdate(query);
-               query = String.format("SELECT MAX(orderid) FROM Orders O WHERE O.login ='" + authorisedUser + "' AND paid = false" );
-               List<List<String>> orderIDquery= esql.executeQueryAndReturnResult(query);
-               String oid = orderIDquery.get(0).get(0);
-               //insert menu items for order
-               String statusDefault = "order processing", commentsDefault = "thank you for your order";
-               for(int i = 0; i < orderNames.size(); ++i)
-               {
-                  query = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ("+ oid+", '"+ orderNames.get(i) +"', now()::timestamp, '"+statusDefault+"', '"+ commentsDefault +"' )");
-                  esql.executeUpdate(query);
-               }
-               System.out.println("\nOrder Placed Successfully\n");
+               int oid = PlaceOrder(esql, esql.session.getLogin(), orderNames);
+               esql.out.println("\nOrder #" + oid + " Placed Successfully\n");
+               return oid;
             }
             else
             {
-               System.out.println("\nOrder Cancelled\n");
+               esql.out.println("\nOrder Cancelled\n");
             }
          }
          else
          {
-            System.out.println("\nNo items chosen, order cancelled.\n");
+            esql.out.println("\nNo items chosen, order cancelled.\n");
          }
 
       }
       catch(Exception e)
       {
-         System.err.println(e.getMessage());
-         return null;
+         esql.err.println(e.getMessage());
       }
-      Integer orderid=0;
-      return orderid;
+      return null;
    }//end 
 
 
+   /*
+    * Submits an order and its items as one transaction.  The new orderid
+    * comes back from the Orders insert, which sums the prices from Menu
+    * itself, and every ItemStatus row goes to the database in a single
+    * batch.  New orders start at version 0.
+    * @return the orderid of the new order
+    **/
+   public static int PlaceOrder(Cafe esql, String login, List<String> itemNames) throws SQLException
+   {
+      String statusDefault = "order processing", commentsDefault = "thank you for your order";
+      long start = esql.metrics.start();
+      esql.beginTransaction();
+      try
+      {
+         StringBuilder names = new StringBuilder();
+         Object[] params = new Object[itemNames.size() + 1];
+         params[0] = login;
+         for(int i = 0; i < itemNames.size(); ++i)
+         {
+            names.append(i == 0 ? "?" : ", ?");
+            params[i + 1] = itemNames.get(i);
+         }
+         String query = "INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                        "SELECT ?, false, now()::timestamp, COALESCE(sum(price), 0) FROM Menu WHERE itemName IN (" + names + ") " +
+                        "RETURNING orderid";
+         int oid = (int) esql.queryLongColumns(query, 0, params)[0][0];
+
+         //insert menu items for order
+         List<Object[]> items = new ArrayList<Object[]>();
+         for(int i = 0; i < itemNames.size(); ++i)
+         {
+            items.add(new Object[] { oid, itemNames.get(i), statusDefault, commentsDefault });
+         }
+         // now() is the transaction's start, so it repeats the order's timeStampRecieved, which puts the items in its partition
+         query = "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved) " +
+                 "VALUES (?, ?, now()::timestamp, ?, ?, now()::timestamp)";
+         esql.executeBatch(query, items);
+
+         esql.commit();
+         return oid;
+      }
+      finally
+      {
+         // no-op once the commit has gone through
+         esql.rollback();
+         esql.metrics.operation("AddOrder", start);
+      }
+   }//end
+
+
 /*****************************************************************************/
 
 
    public static void UpdateOrder(Cafe esql){
       try
       {
-         System.out.print("\n Enter Order ID for the order you wish to update:  \n");
+         esql.out.print("\n Enter Order ID for the order you wish to update:  \n");
          String oidstring = esql.in.readLine();
          int oid = Integer.parseInt(oidstring);
-         String query = String.format("SELECT * FROM Orders O WHERE O.login ='" + authorisedUser+"' AND O.paid = false AND O.orderid ="+ oid );
-         List<List<String>> orderquery= esql.executeQueryAndReturnResult(query);
-         oidstring = orderquery.get(0).get(0);
-         oid = Integer.parseInt(oidstring);
+         Timestamp placed = OrderPlaced(esql, oid);
+         String query = "SELECT O.orderid FROM Orders O WHERE O.login = ? AND O.paid = false AND O.orderid = ? AND O.timeStampRecieved = ?";
+         if(placed == null || esql.executeQuery(query, esql.session.getLogin(), oid, placed) == 0)
+         {
+            esql.out.println("\nNo unpaid order #" + oid + " found for this user\n");
+            return;
+         }
          boolean cont = true;
          do
          {
-            query = String.format("SELECT * FROM ItemStatus I WHERE I.orderid = " + oid);
-            List<List<String>> itemquery= esql.executeQueryAndReturnResult(query);
-            System.out.println("\nOrder #: " + oid);
-            query = String.format("SELECT total FROM Orders WHERE orderid = " + oid);
+            query = "SELECT * FROM ItemStatus I WHERE I.orderid = ? AND I.timeStampRecieved = ?";
+            List<List<String>> itemquery= esql.executeQueryAndReturnResult(query, oid, placed);
+            esql.out.println("\nOrder #: " + oid);
+            query = "SELECT (total * 100)::bigint, version FROM Orders WHERE orderid = ? AND timeStampRecieved = ?";
             for(int j = 0; j < itemquery.size(); ++j)
             {
-              System.out.print("  " + j + ") " + itemquery.get(j).get(1).trim().replaceAll(" +", " ")+ " " + itemquery.get(j).get(2) + "\n");
+              esql.out.print("  " + j + ") " + itemquery.get(j).get(1)+ " " + itemquery.get(j).get(2) + "\n");
             }
-            List<List<String>> totalquery = esql.executeQueryAndReturnResult(query);
-            String oTotalString = totalquery.get(0).get(0);
-            double oTotal = Double.parseDouble(oTotalString);
-            oTotal = Math.round(oTotal * 100.0) / 100.0;
-            System.out.println(String.format("Total cost: $%.2f \n", oTotal));
-            System.out.print(" Enter number of item to edit OR\n '" + itemquery.size() + "' to add item OR \n '" + (itemquery.size() + 1) + "' to cancel order OR\n '" + (itemquery.size() + 2) + "' to finish\n");
+            // the version the edits below expect; they fail or retry if another register got there first
+            long[][] order = esql.queryLongColumns(query, 0, oid, placed);
+            long oTotal = order[0][0];
+            int version = (int) order[1][0];
+            esql.out.println("Total cost: $" + Money.format(oTotal) + " \n");
+            esql.out.print(" Enter number of item to edit OR\n '" + itemquery.size() + "' to add item OR \n '" + (itemquery.size() + 1) + "' to cancel order OR\n '" + (itemquery.size() + 2) + "' to finish\n");
             int numItem = esql.readChoice();
             if(numItem == itemquery.size()+2)// finished
             {
@@ -705,113 +1369,315 @@ public class Cafe {
             }
             else if(numItem == itemquery.size() + 1) //cancel order
             {
-               System.out.println("\nCancel Entire Order?\n 0) yes\n 1) no");
+               esql.out.println("\nCancel Entire Order?\n 0) yes\n 1) no");
                int cancel = esql.readChoice();
                if(cancel == 0)
                {
-                   query = String.format("DELETE FROM ItemStatus WHERE orderid =" + oid);
-                   esql.executeUpdate(query);
-                   query = String.format("DELETE FROM Orders WHERE orderid =" + oid);
-                   esql.executeUpdate(query);
-                   System.out.println("\nOrder Cancelled\n");
+                   CancelOrder(esql, oid, version);
+                   esql.out.println("\nOrder Cancelled\n");
                    cont = false;
                }
             }
             else if(numItem == itemquery.size()) //add item
             {
-                String statusDefault = "order processing", commentsDefault = "thank you for your order";
-                query = String.format("SELECT itemName, price FROM Menu");
-                List<List<String>> itemLists = esql.executeQueryAndReturnResult(query);
-                for(int i = 0; i < itemLists.size(); ++i)
-                {
-                   String curItem = itemLists.get(i).get(0); //get menu item name
-                   String curPrice = itemLists.get(i).get(1); //get menu item price
-                   double numPrice = Double.parseDouble(curPrice); //convert string to double
-                   numPrice = Math.round(numPrice * 100.0) / 100.0; //round to 2 decimals
-                   System.out.println(String.format("%d)   $%-6.2f    %s", i, numPrice, curItem)); 
-                }
-                System.out.println("Enter Item Number of item you wish to add");
+                List<MenuCache.Item> itemLists = esql.menu.get(esql).items;
+                PrintMenu(esql, itemLists);
+                esql.out.println("Enter Item Number of item you wish to add");
                 int newItemNum = esql.readChoice();
-                String newName = itemLists.get(newItemNum).get(0);
-                String newPriceString = itemLists.get(newItemNum).get(1);
-                double newPrice = Double.parseDouble(newPriceString);
-                newPrice = Math.round(newPrice * 100.0) / 100.0;
-                query = String.format("INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) VALUES ("+ oid +", '"+ newName +"', now()::timestamp, '"+statusDefault+"', '"+ commentsDefault +"' )");
-                esql.executeUpdate(query);
-                query = String.format("UPDATE Orders SET (total) = (total + " + newPrice + ") WHERE orderid =" + oid); 
-                esql.executeUpdate(query);
+                AddOrderItem(esql, oid, version, itemLists.get(newItemNum));
 
             }
             else if(numItem < itemquery.size() && numItem >= 0) //edit item
             {
                String itemName = itemquery.get(numItem).get(1);
-               query = String.format("SELECT M.price FROM Menu M WHERE M.itemName = '" + itemName + "'");
-               List<List<String>> pricequery = esql.executeQueryAndReturnResult(query);
-               String itemCostString = pricequery.get(0).get(0);
-               double itemCost = Double.parseDouble(itemCostString);
-               itemCost = Math.round(itemCost * 100.0) / 100.0;
-               System.out.println("\n 0) swap item  \n 1) remove item");
+               esql.out.println("\n 0) swap item  \n 1) remove item");
                int numAction = esql.readChoice();
                if(numAction == 0) //swap
                {
-                  query = String.format("SELECT itemName, price FROM Menu");
-                  List<List<String>> itemLists = esql.executeQueryAndReturnResult(query);
-                  for(int i = 0; i < itemLists.size(); ++i)
-                  {
-                     String curItem = itemLists.get(i).get(0); //get menu item name
-                     String curPrice = itemLists.get(i).get(1); //get menu item price
-                     double numPrice = Double.parseDouble(curPrice); //convert string to double
-                     numPrice = Math.round(numPrice * 100.0) / 100.0; //round to 2 decimals
-                     System.out.println(String.format("%d)   $%-6.2f    %s", i, numPrice, curItem)); 
-                  }
-                  System.out.println("\nEnter New Item Number");
+                  List<MenuCache.Item> itemLists = esql.menu.get(esql).items;
+                  PrintMenu(esql, itemLists);
+                  esql.out.println("\nEnter New Item Number");
                   int newItemNum = esql.readChoice();
-                  String newName = itemLists.get(newItemNum).get(0);
-                  String newPriceString = itemLists.get(newItemNum).get(1);
-                  double newPrice = Double.parseDouble(newPriceString);
-                  newPrice = Math.round(newPrice * 100.0) / 100.0;
-                  query = String.format("UPDATE ItemStatus SET (itemName, lastUpdated) = ('" + newName + "',now()::timestamp) WHERE orderid = " + oid + " AND itemName = '" + itemName + "'");
-                  esql.executeUpdate(query);
-                  double priceModifier = newPrice-itemCost; //new cost - old cost
-                  query = String.format("UPDATE Orders SET (total) = (total + " + priceModifier + ") WHERE orderid =" + oid); 
-                  esql.executeUpdate(query);
+                  SwapOrderItem(esql, oid, version, itemName, itemLists.get(newItemNum));
                }
                else if(numAction == 1) //delete item
                {
                   //delete item and update order totalprice
-                  if(itemquery.size() == 1) //when down to last item, if deleted, remove order completely
+                  if(RemoveOrderItem(esql, oid, version, itemName) < 0) //when down to last item, if deleted, remove order completely
                   {
-                     query = String.format("DELETE FROM ItemStatus WHERE orderid = " + oid + " AND itemName = '" + itemName + "'");
-                     esql.executeUpdate(query);
-                     query = String.format("DELETE FROM Orders WHERE orderid = " + oid);
-                     esql.executeUpdate(query);
-                     System.out.println("\nEntire Order Deleted, last item removed\n");
+                     esql.out.println("\nEntire Order Deleted, last item removed\n");
                      cont = false;
                   }
-                  else if(itemquery.size() > 1)
+                  else
                   {
-                     query = String.format("DELETE FROM ItemStatus WHERE orderid = " + oid + " AND itemName = '" + itemName + "'");
-                     esql.executeUpdate(query); 
-                     query = String.format("UPDATE Orders SET (total) = (total - " + itemCost + ") WHERE orderid =" + oid); 
-                     esql.executeUpdate(query);
-
-                     System.out.println("\nItem Removed\n");
+                     esql.out.println("\nItem Removed\n");
                   }
                }
                else
                {
-                  System.out.println("\nInvalid Entry\n");
+                  esql.out.println("\nInvalid Entry\n");
                }
             }
             else
             {
-               System.out.println("\nInvalid Entry\n");
+               esql.out.println("\nInvalid Entry\n");
             }
          }while(cont == true);
       }
       catch(Exception e)
       {
-         System.err.println (e.getMessage() );
+         esql.err.println (e.getMessage() );
+      }
+   }//end
+
+
+   /*
+    * One edit of an order.  Its statements change nothing unless the order
+    * is unpaid and still at the given version, and the edit still makes
+    * sense, e.g. the item to remove is still on the order.  They find the
+    * order by its orderid and when it was placed, so that only the
+    * partition of its month is searched.
+    **/
+   interface OrderEdit
+   {
+      /*
+       * @return the order's new version, or null when nothing was changed
+       **/
+      Integer apply(int version, Timestamp placed) throws SQLException;
+   }
+
+   /*
+    * Runs an edit against the version of an order the caller read.  When
+    * another session changed the order in the meantime the edit is
+    * retried on the new version, up to EDIT_RETRIES times, so concurrent
+    * edits of one order all go through without holding row locks while
+    * anyone thinks.  An edit that no longer applies, or keeps losing,
+    * fails with SQLState EDIT_CONFLICT.
+    * @return the order's version after the edit
+    **/
+   static int EditOrder(Cafe esql, int oid, int version, OrderEdit edit) throws SQLException
+   {
+      Timestamp placed = OrderPlaced(esql, oid);
+      if(placed == null)
+         throw new SQLException("No unpaid order #" + oid + " found", EDIT_CONFLICT);
+      for(int attempt = 0; ; ++attempt)
+      {
+         Integer edited;
+         try
+         {
+            edited = edit.apply(version, placed);
+         }
+         catch(SQLException e)
+         {
+            // serialization failure or deadlock: start over
+            String state = e.getSQLState();
+            if(attempt >= EDIT_RETRIES || state == null || !(state.equals("40001") || state.equals("40P01")))
+               throw e;
+            continue;
+         }
+         if(edited != null)
+            return edited;
+
+         long[][] current = esql.queryLongColumns("SELECT version FROM Orders WHERE orderid = ? AND timeStampRecieved = ? AND paid = false", 0, oid, placed);
+         if(current.length == 0)
+            throw new SQLException("No unpaid order #" + oid + " found", EDIT_CONFLICT);
+         if(current[0][0] == version)
+            throw new SQLException("Order #" + oid + " no longer allows this change", EDIT_CONFLICT);
+         if(attempt >= EDIT_RETRIES)
+            throw new SQLException("Order #" + oid + " keeps being changed by someone else, try again", EDIT_CONFLICT);
+         version = (int) current[0][0];
+      }
+   }//end
+
+   private static Integer version(long[][] result)
+   {
+      return result.length == 0 ? null : Integer.valueOf((int) result[0][0]);
+   }//end
+
+   /*
+    * Returns when an order was placed.  Orders and ItemStatus are
+    * partitioned by month of timeStampRecieved, so every statement on one
+    * order passes it along with the orderid and only that month's
+    * partition is searched.  An open order is found on the kitchen queue;
+    * any other is looked for among the last day's orders, and only then in
+    * every month.  An order's timeStampRecieved never changes, so the
+    * session keeps what it looked up.
+    * @return the order's timeStampRecieved, or null when there is no such order
+    **/
+   public static Timestamp OrderPlaced(Cafe esql, int oid) throws SQLException
+   {
+      KitchenQueue.Order open = esql.kitchen.held(oid);
+      Timestamp placed = open != null ? open.placed : esql._placed.get(oid);
+      if(placed != null)
+         return placed;
+      placed = timestamp(esql, "SELECT timeStampRecieved FROM Orders WHERE orderid = ? AND timeStampRecieved >= NOW() - '1 day'::INTERVAL", oid);
+      if(placed == null)
+         placed = timestamp(esql, "SELECT timeStampRecieved FROM Orders WHERE orderid = ?", oid);
+      if(placed != null)
+      {
+         if(esql._placed.size() >= PLACED_CACHE)
+            esql._placed.clear();
+         esql._placed.put(oid, placed);
+      }
+      return placed;
+   }//end
+
+   private static Timestamp timestamp(Cafe esql, String query, Object... params) throws SQLException
+   {
+      final Timestamp[] value = new Timestamp[1];
+      esql.forEachRow(query, 0, new RowHandler() {
+         public void handle(ResultSet rs) throws SQLException {
+            value[0] = rs.getTimestamp(1);
+         }
+      }, params);
+      return value[0];
+   }//end
+
+   /*
+    * Adds a menu item to an order and adds its price, read from Menu, to
+    * the order total, in one statement
+    * @return the order's new version
+    **/
+   public static int AddOrderItem(final Cafe esql, final int oid, int version, final MenuCache.Item item) throws SQLException
+   {
+      final String statusDefault = "order processing", commentsDefault = "thank you for your order";
+      long start = esql.metrics.start();
+      try
+      {
+         return EditOrder(esql, oid, version, new OrderEdit() {
+            public Integer apply(int version, Timestamp placed) throws SQLException {
+               String query = "WITH o AS (UPDATE Orders SET total = total + M.price, version = version + 1 FROM Menu M " +
+                                 "WHERE Orders.orderid = ? AND Orders.timeStampRecieved = ? AND Orders.paid = false AND Orders.version = ? AND M.itemName = ? " +
+                                 "RETURNING Orders.orderid, Orders.version, Orders.timeStampRecieved), " +
+                              "i AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved) " +
+                                 "SELECT o.orderid, ?, now()::timestamp, ?, ?, o.timeStampRecieved FROM o RETURNING orderid) " +
+                              "SELECT o.version FROM o JOIN i USING (orderid)";
+               return version(esql.queryLongColumns(query, 0, oid, placed, version, item.name, item.name, statusDefault, commentsDefault));
+            }
+         });
+      }
+      finally
+      {
+         esql.metrics.operation("UpdateOrder.add", start);
+      }
+   }//end
+
+   /*
+    * Replaces one item of an order with another menu item and moves the
+    * order total by the difference in price, in one statement
+    * @return the order's new version
+    **/
+   public static int SwapOrderItem(final Cafe esql, final int oid, int version, final String itemName, final MenuCache.Item newItem) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         return EditOrder(esql, oid, version, new OrderEdit() {
+            public Integer apply(int version, Timestamp placed) throws SQLException {
+               String query = "WITH o AS (UPDATE Orders SET total = total + N.price - P.price, version = version + 1 " +
+                                 "FROM ItemStatus I, Menu P, Menu N " +
+                                 "WHERE Orders.orderid = ? AND Orders.timeStampRecieved = ? AND Orders.paid = false AND Orders.version = ? " +
+                                 "AND I.orderid = Orders.orderid AND I.timeStampRecieved = Orders.timeStampRecieved " +
+                                 "AND I.itemName = ? AND P.itemName = I.itemName AND N.itemName = ? " +
+                                 "RETURNING Orders.orderid, Orders.version), " +
+                              "s AS (UPDATE ItemStatus SET (itemName, lastUpdated) = (?, now()::timestamp) FROM o " +
+                                 "WHERE ItemStatus.orderid = o.orderid AND ItemStatus.timeStampRecieved = ? AND ItemStatus.itemName = ? " +
+                                 "RETURNING ItemStatus.orderid) " +
+                              "SELECT o.version FROM o JOIN s USING (orderid)";
+               return version(esql.queryLongColumns(query, 0, oid, placed, version, itemName, newItem.name, newItem.name, placed, itemName));
+            }
+         });
+      }
+      finally
+      {
+         esql.metrics.operation("UpdateOrder.swap", start);
+      }
+   }//end
+
+   /*
+    * Removes one item from an order and takes its price off the total.
+    * Removing the last item deletes the whole order.
+    * @return the order's new version, or -1 when the order was deleted with its last item
+    **/
+   public static int RemoveOrderItem(final Cafe esql, final int oid, int version, final String itemName) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         return EditOrder(esql, oid, version, new OrderEdit() {
+            public Integer apply(int version, Timestamp placed) throws SQLException {
+               esql.beginTransaction();
+               try
+               {
+                  String query = "WITH o AS (UPDATE Orders SET total = total - M.price, version = version + 1 " +
+                                    "FROM ItemStatus I, Menu M " +
+                                    "WHERE Orders.orderid = ? AND Orders.timeStampRecieved = ? AND Orders.paid = false AND Orders.version = ? " +
+                                    "AND I.orderid = Orders.orderid AND I.timeStampRecieved = Orders.timeStampRecieved " +
+                                    "AND I.itemName = ? AND M.itemName = I.itemName " +
+                                    "RETURNING Orders.orderid, Orders.version), " +
+                                 "d AS (DELETE FROM ItemStatus USING o WHERE ItemStatus.orderid = o.orderid " +
+                                    "AND ItemStatus.timeStampRecieved = ? AND ItemStatus.itemName = ? " +
+                                    "RETURNING ItemStatus.orderid) " +
+                                 "SELECT o.version FROM o JOIN d USING (orderid)";
+                  Integer edited = version(esql.queryLongColumns(query, 0, oid, placed, version, itemName, placed, itemName));
+                  if(edited == null)
+                     return null;
+                  // the order row is locked by now, so no item can be added behind this
+                  query = "DELETE FROM Orders O WHERE O.orderid = ? AND O.timeStampRecieved = ? " +
+                          "AND NOT EXISTS (SELECT 1 FROM ItemStatus I WHERE I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved)";
+                  if(esql.executeUpdate(query, oid, placed) > 0)
+                     edited = -1;
+                  esql.commit();
+                  return edited;
+               }
+               finally
+               {
+                  // no-op once the commit has gone through
+                  esql.rollback();
+               }
+            }
+         });
+      }
+      finally
+      {
+         esql.metrics.operation("UpdateOrder.remove", start);
+      }
+   }//end
+
+   /*
+    * Deletes an order and all of its items
+    **/
+   public static void CancelOrder(final Cafe esql, final int oid, int version) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         EditOrder(esql, oid, version, new OrderEdit() {
+            public Integer apply(int version, Timestamp placed) throws SQLException {
+               esql.beginTransaction();
+               try
+               {
+                  String query = "UPDATE Orders SET version = version + 1 WHERE orderid = ? AND timeStampRecieved = ? AND paid = false AND version = ?";
+                  if(esql.executeUpdate(query, oid, placed, version) == 0)
+                     return null;
+                  query = "DELETE FROM ItemStatus WHERE orderid = ? AND timeStampRecieved = ?";
+                  esql.executeUpdate(query, oid, placed);
+                  query = "DELETE FROM Orders WHERE orderid = ? AND timeStampRecieved = ?";
+                  esql.executeUpdate(query, oid, placed);
+                  esql.commit();
+                  return version + 1;
+               }
+               finally
+               {
+                  // no-op once the commit has gone through
+                  esql.rollback();
+               }
+            }
+         });
+      }
+      finally
+      {
+         esql.metrics.operation("UpdateOrder.cancel", start);
       }
    }//end
 
@@ -822,7 +1688,7 @@ public class Cafe {
    public static void EmployeeUpdateOrder(Cafe esql){
       try
       {
-         System.out.println(" 0) update personal order \n 1) Update order paid \n 2) Update item status");
+         esql.out.println(" 0) update personal order \n 1) Update order paid \n 2) Update item status");
          int choice = esql.readChoice();
          if(choice == 0)
          {
@@ -830,69 +1696,232 @@ public class Cafe {
          }
          else if(choice == 1)
          {
-            System.out.println("Enter an Orderid to set it to paid");
+            esql.out.println("Enter an Orderid to set it to paid");
             String oidstring = esql.in.readLine();
             int oid = Integer.parseInt(oidstring);
-            String query = String.format("UPDATE Orders SET paid = true WHERE orderid =" + oid); 
-            esql.executeUpdate(query);
+            SetOrderPaid(esql, oid);
          }
          else if(choice == 2)
          {
-            System.out.println("Enter an Orderid");
+            esql.out.println("Enter an Orderid");
             String oidstring = esql.in.readLine();
             int oid = Integer.parseInt(oidstring);
-            System.out.println("Enter the Item Name");
+            esql.out.println("Enter the Item Name");
             String itemstring = esql.in.readLine();
-            String query = String.format("SELECT status FROM ItemStatus WHERE orderid = " + oid + " AND itemName = '" + itemstring + "'");
-            esql.executeQueryAndPrintResult(query);
+            String current = ItemStatus(esql, oid, itemstring);
+            if(current == null)
+            {
+               esql.out.println("No item " + itemstring + " on order " + oid);
+               return;
+            }
+            esql.out.println("Status: " + current);
+            List<String> next = StatusWriter.next(current);
+            if(next.isEmpty())
+            {
+               esql.out.println("The item is " + current + "; its status can no longer change");
+               return;
+            }
 
-            System.out.println("Enter new status: ");
+            esql.out.println("Enter new status (" + String.join(", ", next) + "): ");
             String statusString = esql.in.readLine();
-            query = String.format("UPDATE ItemStatus SET status = '" + statusString + "' WHERE orderid = " + oid + " AND itemName = '" + itemstring + "'");
-            esql.executeUpdate(query);
-            System.out.println("Status Updated!");
-            query = String.format("SELECT status FROM ItemStatus WHERE orderid = " + oid + " AND itemName = '" + itemstring + "'");
-            esql.executeQueryAndPrintResult(query);
+            // confirmed only once the change is written
+            SetItemStatus(esql, oid, itemstring, statusString, true);
+            esql.out.println("Status Updated!");
+            esql.out.println("Status: " + ItemStatus(esql, oid, itemstring));
          }
          else
          {
-            System.out.println("Invalid Option");
+            esql.out.println("Invalid Option");
          }
       }
       catch(Exception e)
       {
-         System.err.println (e.getMessage() );
+         esql.err.println (e.getMessage() );
+      }
+   }//end
+
+
+   /*
+    * Marks an order as paid
+    **/
+   public static void SetOrderPaid(Cafe esql, int oid) throws SQLException
+   {
+      long start = esql.metrics.start();
+      Timestamp placed = OrderPlaced(esql, oid);
+      if(placed != null)
+      {
+         String query = "UPDATE Orders SET paid = true WHERE orderid = ? AND timeStampRecieved = ?";
+         esql.executeUpdate(query, oid, placed);
+      }
+      esql.metrics.operation("EmployeeUpdateOrder.paid", start);
+   }//end
+
+   /*
+    * Sets the status of one item of an order, if the item may move to it.
+    * With a status writer the change is queued and written with the others
+    * made over the next few milliseconds; without one it is written now.
+    * Returns the new status, spelled as stored.
+    **/
+   public static String SetItemStatus(Cafe esql, int oid, String itemName, String status) throws SQLException
+   {
+      return SetItemStatus(esql, oid, itemName, status, false);
+   }//end
+
+   /*
+    * Sets the status of one item of an order as above; with wait, a queued
+    * change is only returned once it is written, and fails with an
+    * SQLException if it could not be, e.g. because another session changed
+    * the item first.
+    **/
+   public static String SetItemStatus(Cafe esql, int oid, String itemName, String status, boolean wait) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         if(esql.statuses != null)
+            return wait ? esql.statuses.submitAndWait(esql, oid, itemName, status)
+                        : esql.statuses.submit(esql, oid, itemName, status);
+         Timestamp placed = OrderPlaced(esql, oid);
+         String current = placed == null ? null : StatusWriter.stored(esql, esql.kitchen, oid, placed, itemName);
+         String next = StatusWriter.transition(current, status, oid, itemName);
+         if(esql.executeUpdate(StatusWriter.UPDATE, next, oid, placed, itemName, current) == 0)
+            throw new SQLException("Status of " + itemName + " on order " + oid + " not saved: " + StatusWriter.CHANGED,
+                                   EDIT_CONFLICT);
+         return next;
+      }
+      finally
+      {
+         esql.metrics.operation("EmployeeUpdateOrder.status", start);
       }
    }//end
 
+   /*
+    * Returns the status of one item of an order, including changes still
+    * queued for writing, or null when the order has no such item
+    **/
+   public static String ItemStatus(Cafe esql, int oid, String itemName) throws SQLException
+   {
+      if(esql.statuses != null)
+         return esql.statuses.status(esql, oid, itemName);
+      Timestamp placed = OrderPlaced(esql, oid);
+      return placed == null ? null : StatusWriter.stored(esql, esql.kitchen, oid, placed, itemName);
+   }//end
+
 
 /*****************************************************************************/
 
 
+   /*
+    * Pages through the user's orders, newest first, paid and unpaid alike.
+    **/
    public static void ViewOrderHistory(Cafe esql){
       try
       {
-         String query = String.format("SELECT O.orderid, O.total FROM Orders O WHERE O.login ='" + authorisedUser +"' AND O.paid = false ORDER BY orderid DESC LIMIT 5" );
-         List<List<String>> orderIDquery= esql.executeQueryAndReturnResult(query);
-         for(int i = 0; i < 5; ++i)
+         int before = Integer.MAX_VALUE;
+         while(true)
          {
-            String oidstring = orderIDquery.get(i).get(0);
-            String orderTotal= orderIDquery.get(i).get(1);
-            double numTotal = Double.parseDouble(orderTotal); //convert string to double
-            int oid = Integer.parseInt(oidstring);
-            query = String.format("SELECT * FROM ItemStatus I WHERE I.orderid = " + oid);
-            List<List<String>> itemquery= esql.executeQueryAndReturnResult(query);
-            System.out.println("\nOrder #: " + oid);
-            for(int j = 0; j < itemquery.size(); ++j)
-            {   
-              System.out.print("  " + itemquery.get(j).get(1).trim().replaceAll(" +", " ")+ " " + itemquery.get(j).get(2) + "\n"); 
-            }   
-            System.out.println(String.format("Total: $%.2f\n", numTotal)); 
-         }   
+            List<HistoryOrder> page = OrderHistoryPage(esql, esql.session.getLogin(), before, HISTORY_PAGE_SIZE);
+            PrintOrderHistory(esql, page);
+            if(page.isEmpty() && before == Integer.MAX_VALUE)
+               esql.out.println("\nNo orders yet\n");
+            // a short page is the last one
+            if(page.size() < HISTORY_PAGE_SIZE)
+               break;
+            esql.out.println(" 0) older orders   \n 1) back to the menu");
+            if(esql.readChoice() != 0)
+               break;
+            before = page.get(page.size() - 1).orderid;
+         }
       }
       catch(Exception e)
       {
-         System.err.println (e.getMessage());
+         esql.err.println (e.getMessage());
+      }
+   }//end
+
+   /*
+    * One order of a user's history and its items.
+    **/
+   public static class HistoryOrder
+   {
+      public final int orderid;
+      public final boolean paid;
+      public final Timestamp placed;
+      public final long totalCents;
+      // item name, last updated and status of each item
+      public final List<String[]> items = new ArrayList<String[]>();
+
+      HistoryOrder(int orderid, boolean paid, Timestamp placed, long totalCents)
+      {
+         this.orderid = orderid;
+         this.paid = paid;
+         this.placed = placed;
+         this.totalCents = totalCents;
+      }
+   }//end HistoryOrder
+
+   /*
+    * Returns one page of a user's orders, newest first, and their items.
+    * Pages are keyed on orderid rather than an OFFSET, so every page is a
+    * short walk of the (login, orderid DESC) index however far back it
+    * is, and the items of the whole page come in one query.
+    * @param before the orderid the page starts below; Integer.MAX_VALUE for the newest orders
+    * @param pageSize the most orders returned
+    * @return the page, shorter than pageSize when it is the last one
+    **/
+   public static List<HistoryOrder> OrderHistoryPage(Cafe esql, String login, int before, int pageSize) throws SQLException
+   {
+      long start = esql.metrics.start();
+      try
+      {
+         final List<HistoryOrder> page = new ArrayList<HistoryOrder>();
+         final Map<Integer, HistoryOrder> byId = new HashMap<Integer, HistoryOrder>();
+         // when the page's earliest order was placed; orderids need not follow timeStampRecieved, e.g. imported ones
+         final Timestamp[] first = new Timestamp[1];
+         String query = "SELECT O.orderid, O.paid, O.timeStampRecieved, O.total FROM Orders O " +
+                        "WHERE O.login = ? AND O.orderid < ? ORDER BY O.orderid DESC LIMIT ?";
+         esql.forEachRow(query, 0, new RowHandler() {
+            public void handle(ResultSet rs) throws SQLException {
+               HistoryOrder order = new HistoryOrder(rs.getInt(1), rs.getBoolean(2), rs.getTimestamp(3), Money.read(rs, 4));
+               page.add(order);
+               byId.put(order.orderid, order);
+               if(first[0] == null || order.placed.before(first[0]))
+                  first[0] = order.placed;
+            }
+         }, login, before, pageSize);
+         if(page.isEmpty())
+            return page;
+
+         // the page's earliest placed order bounds the ItemStatus partitions to look in
+         Integer[] oids = byId.keySet().toArray(new Integer[0]);
+         query = "SELECT I.orderid, I.itemName, I.lastUpdated, I.status FROM ItemStatus I " +
+                 "WHERE I.orderid = ANY(?) AND I.timeStampRecieved >= ? ORDER BY I.orderid, I.itemName";
+         esql.forEachRow(query, 0, new RowHandler() {
+            public void handle(ResultSet rs) throws SQLException {
+               byId.get(rs.getInt(1)).items.add(new String[] { rs.getString(2), String.valueOf(rs.getTimestamp(3)), rs.getString(4) });
+            }
+         }, oids, first[0]);
+         return page;
+      }
+      finally
+      {
+         esql.metrics.operation("ViewOrderHistory", start);
+      }
+   }//end
+
+   /*
+    * Prints a page of order history the way ViewOrderHistory shows it
+    **/
+   public static void PrintOrderHistory(Cafe esql, List<HistoryOrder> page)
+   {
+      for(HistoryOrder order : page)
+      {
+         esql.out.println("\nOrder #: " + order.orderid + "   " + order.placed + (order.paid ? "   paid" : "   unpaid"));
+         for(String[] item : order.items)
+         {
+            esql.out.print("  " + item[0] + " " + item[1] + " " + item[2] + "\n");
+         }
+         esql.out.println("Total: $" + Money.format(order.totalCents) + "\n");
       }
    }//end
 
@@ -903,16 +1932,16 @@ public class Cafe {
    public static void UpdateUserInfo(Cafe esql)
    {
 
-        String currentUser = authorisedUser;
+        String currentUser = esql.session.getLogin();
         boolean getChoice = true;
 
         while(getChoice)
         {
-            System.out.println("Update User Information");
-            System.out.println("1. Update Password");
-            System.out.println("2. Update Phone Number");
-            System.out.println("3. Update Favorite Items");
-            System.out.println("4. Return to Main Menu");
+            esql.out.println("Update User Information");
+            esql.out.println("1. Update Password");
+            esql.out.println("2. Update Phone Number");
+            esql.out.println("3. Update Favorite Items");
+            esql.out.println("4. Return to Main Menu");
 
             switch(esql.readChoice())
             {
@@ -936,14 +1965,17 @@ public class Cafe {
        
        try
        {
-           System.out.print("\n Enter new password \n");
+           esql.out.print("\n Enter new password \n");
            password = esql.in.readLine();
-           String query = String.format("UPDATE users set password = '%s' WHERE login = '"+currentUser+"' ", password);
-           esql.executeUpdate(query);
+           String query = "UPDATE users set password = ? WHERE login = ?";
+           esql.executeUpdate(query, password, currentUser);
+           // the old password no longer logs in, here or through the API
+           esql.sessions.invalidate(currentUser);
+           esql.sessions.closeAll(currentUser);
        }
        catch (Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
 
    } //end updatePassword helper
@@ -955,14 +1987,15 @@ public class Cafe {
        
        try
        {
-           System.out.print("\n Enter new phone number \n");
+           esql.out.print("\n Enter new phone number \n");
            number = esql.in.readLine();
-           String query = String.format("UPDATE users set phoneNum = '%s' WHERE login = '"+currentUser+"' ", number);
-           esql.executeUpdate(query);
+           String query = "UPDATE users set phoneNum = ? WHERE login = ?";
+           esql.executeUpdate(query, number, currentUser);
+           esql.sessions.invalidate(currentUser);
        }
        catch (Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
 
    } //end updatePhoneNumber helper
@@ -974,18 +2007,101 @@ public class Cafe {
        
        try
        {
-           System.out.print("\n Enter new items \n");
+           esql.out.println("\n Current favorites: " + String.join(", ", Favorites(esql, currentUser)) + "\n");
+           List<MenuCache.Item> itemLists = esql.menu.get(esql).items;
+           PrintMenu(esql, itemLists);
+           esql.out.print("\n Enter the numbers of the new favorite items, separated by commas, or nothing to clear them \n");
            items = esql.in.readLine();
-           String query = String.format("UPDATE users set favItems = '%s' WHERE login = '"+currentUser+"' ", items);
-           esql.executeUpdate(query);
+           List<String> names = new ArrayList<String>();
+           for(String number : items.split(","))
+           {
+              if(number.trim().isEmpty())
+                 continue;
+              String name = itemLists.get(Integer.parseInt(number.trim())).name;
+              if(!names.contains(name))
+                 names.add(name);
+           }
+           SetFavorites(esql, currentUser, names);
        }
        catch (Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
 
    } //end updateFavItems helper
 
+
+   /*
+    * Returns a user's favorite menu items, in the order the user chose them
+    **/
+   public static List<String> Favorites(Cafe esql, String login) throws SQLException
+   {
+      final List<String> favorites = new ArrayList<String>();
+      String query = "SELECT itemName FROM UserFavorites WHERE login = ? ORDER BY position";
+      esql.forEachRow(query, 0, new RowHandler() {
+         public void handle(ResultSet rs) throws SQLException {
+            favorites.add(rs.getString(1));
+         }
+      }, login);
+      return favorites;
+   }//end
+
+   /*
+    * Replaces a user's favorite menu items as one transaction
+    **/
+   public static void SetFavorites(Cafe esql, String login, List<String> itemNames) throws SQLException
+   {
+      esql.beginTransaction();
+      try
+      {
+         esql.executeUpdate("DELETE FROM UserFavorites WHERE login = ?", login);
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for(int i = 0; i < itemNames.size(); ++i)
+         {
+            rows.add(new Object[] { login, itemNames.get(i), i });
+         }
+         if(rows.size() > 0)
+         {
+            esql.executeBatch("INSERT INTO UserFavorites (login, itemName, position) VALUES (?, ?, ?)", rows);
+         }
+         esql.commit();
+      }
+      finally
+      {
+         // no-op once the commit has gone through
+         esql.rollback();
+      }
+   }//end
+
+   /*
+    * Places an order of all of a user's favorite items in one statement:
+    * the Orders insert sums their prices from Menu, and the ItemStatus
+    * inserts take the new orderid from it.
+    * @return the orderid of the new order, or -1 when the user has no favorites
+    **/
+   public static int ReorderFavorites(Cafe esql, String login) throws SQLException
+   {
+      String statusDefault = "order processing", commentsDefault = "thank you for your order";
+      long start = esql.metrics.start();
+      try
+      {
+         String query = "WITH o AS (INSERT INTO Orders (login, paid, timeStampRecieved, total) " +
+                           "SELECT ?, false, now()::timestamp, sum(M.price) " +
+                           "FROM UserFavorites F JOIN Menu M ON M.itemName = F.itemName WHERE F.login = ? " +
+                           "HAVING count(*) > 0 RETURNING orderid, timeStampRecieved), " +
+                        "i AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved) " +
+                           "SELECT o.orderid, F.itemName, now()::timestamp, ?, ?, o.timeStampRecieved " +
+                           "FROM o, UserFavorites F WHERE F.login = ?) " +
+                        "SELECT orderid FROM o";
+         long[][] oid = esql.queryLongColumns(query, 0, login, login, statusDefault, commentsDefault, login);
+         return oid.length == 0 ? -1 : (int) oid[0][0];
+      }
+      finally
+      {
+         esql.metrics.operation("AddOrder.favorites", start);
+      }
+   }//end
+
  
    public static void UpdateType(Cafe esql, String currentUser)
    {
@@ -993,14 +2109,15 @@ public class Cafe {
        
        try
        {
-           System.out.print("\n Enter User Type to be changed \n");
+           esql.out.print("\n Enter User Type to be changed \n");
            type = esql.in.readLine();
-           String query = String.format("UPDATE users set type = '%s' WHERE login = '"+currentUser+"' ", type);
-           esql.executeUpdate(query);
+           String query = "UPDATE users set type = ? WHERE login = ?";
+           esql.executeUpdate(query, type, currentUser);
+           esql.sessions.invalidate(currentUser);
        }
        catch (Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
 
    } //end updateFavItems helper  
@@ -1008,22 +2125,22 @@ public class Cafe {
 
    public static void ManagerUpdateUserInfo(Cafe esql)
    {
-        String currentUser = authorisedUser;
+        String currentUser = esql.session.getLogin();
         String editUser;
         boolean getChoice = true;
         
-        System.out.println("\n Enter User to Edit \n");
-        editUser = System.console().readLine();
+        esql.out.println("\n Enter User to Edit \n");
+        editUser = esql.readLine();
  
 
         while(getChoice)
         {
-            System.out.println("\n Update User Information \n");
-            System.out.println("1. Update Password");
-            System.out.println("2. Update Phone Number");
-            System.out.println("3. Update Favorite Items");
-            System.out.println("4. Update Type");
-            System.out.println("5. Return to Main Menu");
+            esql.out.println("\n Update User Information \n");
+            esql.out.println("1. Update Password");
+            esql.out.println("2. Update Phone Number");
+            esql.out.println("3. Update Favorite Items");
+            esql.out.println("4. Update Type");
+            esql.out.println("5. Return to Main Menu");
 
             switch(esql.readChoice())
             {
@@ -1053,10 +2170,10 @@ public class Cafe {
 
         while(getChoice)
         {
-            System.out.println("\n1. Add item");
-            System.out.println("2. Delete item");
-            System.out.println("3. Update item");
-            System.out.println("4. Return to Main Menu \n");
+            esql.out.println("\n1. Add item");
+            esql.out.println("2. Delete item");
+            esql.out.println("3. Update item");
+            esql.out.println("4. Return to Main Menu \n");
 
             switch(esql.readChoice())
             {
@@ -1085,29 +2202,27 @@ public class Cafe {
 
        try
        {
-           System.out.println("\n Enter Item Name \n");
+           esql.out.println("\n Enter Item Name \n");
            itemName = esql.in.readLine();
           
-           System.out.println("\n Enter Item Type \n");
+           esql.out.println("\n Enter Item Type \n");
            type = esql.in.readLine();
           
-           System.out.println("\n Enter Price \n");
+           esql.out.println("\n Enter Price \n");
            price = esql.in.readLine();
           
-           System.out.println("\n Enter Description \n");
+           esql.out.println("\n Enter Description \n");
            description = esql.in.readLine();
           
-           System.out.println("\n Enter Item Image Url \n");
+           esql.out.println("\n Enter Item Image Url \n");
            imageUrl = esql.in.readLine();
         
-            String query = String.format("INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s','%s','%s','%s','%s')", itemName, type, price, description, imageUrl);
-
-            esql.executeUpdate(query);
-            System.out.println("Item Added Successfully");
+            InsertMenuItem(esql, itemName, type, Money.parse(price), description, imageUrl);
+            esql.out.println("Item Added Successfully");
        }
        catch(Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
 
    } //end
@@ -1118,16 +2233,14 @@ public class Cafe {
 
       try
       {
-          System.out.println("\n Enter Item to Delete \n");
+          esql.out.println("\n Enter Item to Delete \n");
           itemName = esql.in.readLine();
 
-          String query = String.format("DELETE FROM Menu WHERE itemName = '%s'", itemName);
-
-          esql.executeUpdate(query);
+          DeleteMenuItem(esql, itemName);
       }
       catch(Exception e)
       {
-          System.err.println (e.getMessage ());
+          esql.err.println (e.getMessage ());
       }
    } //end
 
@@ -1141,100 +2254,92 @@ public class Cafe {
        String des;
        String imageUrl;
        
-       System.out.println("\n Enter Item to Update \n");
-       item = System.console().readLine();
+       esql.out.println("\n Enter Item to Update \n");
+       item = esql.readLine();
        
        boolean getChoice = true;
 
        while(getChoice)
        {
-          System.out.println("\n1. Update Item Name");
-          System.out.println("2. Update Item Type");
-          System.out.println("3. Update Price");
-          System.out.println("4. Update Description");
-          System.out.println("5. Update imageUrl");
-          System.out.println("6. Return to Main Menu \n");
+          esql.out.println("\n1. Update Item Name");
+          esql.out.println("2. Update Item Type");
+          esql.out.println("3. Update Price");
+          esql.out.println("4. Update Description");
+          esql.out.println("5. Update imageUrl");
+          esql.out.println("6. Return to Main Menu \n");
 
           switch(esql.readChoice())
           {
              case 1: 
                     try
                      {
-                        System.out.println("\n Enter New Item Name \n");
+                        esql.out.println("\n Enter New Item Name \n");
                         itemNew = esql.in.readLine(); 
                         
-                        String query = String.format("UPDATE Menu set itemName = '%s' WHERE itemName = '"+item+"'", itemNew);
-
-                         esql.executeUpdate(query);
+                         UpdateMenuItem(esql, item, "itemName", itemNew);
                          return;
 
                      }
                      catch (Exception e)
                      {
-                         System.err.println(e.getMessage());
+                         esql.err.println(e.getMessage());
                      }
                      break;
              case 2: 
                      try
                      {
-                        System.out.println("\n Enter New Type \n");
+                        esql.out.println("\n Enter New Type \n");
                         type = esql.in.readLine(); 
                         
-                        String query = String.format("UPDATE Menu set type = '%s' WHERE itemName = '%s'", type, item);
-                         esql.executeUpdate(query);
+                         UpdateMenuItem(esql, item, "type", type);
 
                      }
                      catch (Exception e)
                      {
-                         System.err.println(e.getMessage());
+                         esql.err.println(e.getMessage());
                      }
                      break;
 
              case 3: 
                    try
                      {
-                        System.out.println("\n Enter New Price \n");
+                        esql.out.println("\n Enter New Price \n");
                         price  = esql.in.readLine(); 
                         
-                        String query = String.format("UPDATE Menu set price = '%s' WHERE itemName = '%s'", price, item);
-                         esql.executeUpdate(query);
+                         UpdateMenuItem(esql, item, "price", Money.parse(price));
 
                      }
                      catch (Exception e)
                      {
-                         System.err.println(e.getMessage());
+                         esql.err.println(e.getMessage());
                      }
                      break;
              case 4:
                    try
                      {
-                        System.out.println("\n Enter New Item Name \n");
+                        esql.out.println("\n Enter New Item Name \n");
                         des = esql.in.readLine(); 
                         
-                        String query = String.format("UPDATE Menu set description = '%s' WHERE itemName = '%s'", des, item);
-                        
-                        esql.executeUpdate(query);
+                        UpdateMenuItem(esql, item, "description", des);
 
                      }
                      catch (Exception e)
                      {
-                         System.err.println(e.getMessage());
+                         esql.err.println(e.getMessage());
                      }
                      break;
              case 5:
                    try
                      {
-                        System.out.println("\n Enter New Item Name \n");
+                        esql.out.println("\n Enter New Item Name \n");
                         imageUrl = esql.in.readLine(); 
                         
-                        String query = String.format("UPDATE Menu set imageURL = '%s' WHERE itemName = '%s'", imageUrl, item);
-
-                        esql.executeUpdate(query);
+                        UpdateMenuItem(esql, item, "imageURL", imageUrl);
 
                      }
                      catch (Exception e)
                      {
-                         System.err.println(e.getMessage());
+                         esql.err.println(e.getMessage());
                      }
                      break;
 
@@ -1246,6 +2351,51 @@ public class Cafe {
    } //end
 
 
+   /*
+    * Adds an item to the menu
+    **/
+   public static void InsertMenuItem(Cafe esql, String itemName, String type, long priceCents, String description, String imageUrl) throws SQLException
+   {
+      String query = "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES (?, ?, ?, ?, ?)";
+      esql.executeUpdate(query, itemName, type, Money.toNumeric(priceCents), description, imageUrl);
+      esql.menu.invalidate();
+   }//end
+
+   /*
+    * Removes an item from the menu
+    * @return true when the item was on the menu
+    **/
+   public static boolean DeleteMenuItem(Cafe esql, String itemName) throws SQLException
+   {
+      String query = "DELETE FROM Menu WHERE itemName = ?";
+      int rows = esql.executeUpdate(query, itemName);
+      esql.menu.invalidate();
+      return rows > 0;
+   }//end
+
+   /*
+    * Changes one column of a menu item: itemName, type, price (in cents, a
+    * Long), description or imageURL
+    * @return true when the item was on the menu
+    **/
+   public static boolean UpdateMenuItem(Cafe esql, String itemName, String field, Object value) throws SQLException
+   {
+      String query;
+      switch(field)
+      {
+         case "itemName": query = "UPDATE Menu set itemName = ? WHERE itemName = ?"; break;
+         case "type": query = "UPDATE Menu set type = ? WHERE itemName = ?"; break;
+         case "price": query = "UPDATE Menu set price = ? WHERE itemName = ?"; value = Money.toNumeric((Long) value); break;
+         case "description": query = "UPDATE Menu set description = ? WHERE itemName = ?"; break;
+         case "imageURL": query = "UPDATE Menu set imageURL = ? WHERE itemName = ?"; break;
+         default: throw new SQLException("Unknown menu field: " + field);
+      }
+      int rows = esql.executeUpdate(query, value, itemName);
+      esql.menu.invalidate();
+      return rows > 0;
+   }//end
+
+
 /*****************************************************************************/
 
 
@@ -1256,15 +2406,22 @@ public class Cafe {
        try
        {
            
-         System.out.println("\n Enter Order Id \n");
+         esql.out.println("\n Enter Order Id \n");
          orderId = esql.in.readLine();
-         String query = String.format("SELECT * FROM ItemStatus WHERE orderid = '%s' ", orderId);
+         int oid = Integer.parseInt(orderId.trim());
+         Timestamp placed = OrderPlaced(esql, oid);
+         if(placed == null)
+         {
+            esql.out.println("\nNo order #" + oid + " found\n");
+            return;
+         }
+         String query = "SELECT * FROM ItemStatus WHERE orderid = ? AND timeStampRecieved = ?";
 
-         esql.executeQueryAndPrintResult(query);
+         esql.executeQueryAndPrintResult(query, oid, placed);
        }
        catch (Exception e)
        {
-           System.err.println (e.getMessage());
+           esql.err.println (e.getMessage());
        }
     
    }//end
@@ -1273,43 +2430,97 @@ public class Cafe {
 /*****************************************************************************/
 
 
-   public static void ViewCurrentOrder(Cafe esql){
+   public static void ViewCurrentOrder(final Cafe esql){
+      long start = esql.metrics.start();
       try
       {
-         String query = String.format("SELECT O.orderid, O.total, O.login FROM Orders O WHERE O.paid = false AND O.timeStampRecieved >= NOW() - '1 day'::INTERVAL" );
-         List<List<String>> orderIDquery= esql.executeQueryAndReturnResult(query);
-         for(int i = 0; i < orderIDquery.size(); ++i)
+         // read from the kitchen queue, which NOTIFY keeps current without a query
+         for (KitchenQueue.Order order : esql.kitchen.open(esql))
          {
-            String oidstring = orderIDquery.get(i).get(0);
-            String orderTotal= orderIDquery.get(i).get(1);
-            String orderLogin = orderIDquery.get(i).get(2);
-            double numTotal = Double.parseDouble(orderTotal); //convert string to double
-            int oid = Integer.parseInt(oidstring);
-            query = String.format("SELECT * FROM ItemStatus I WHERE I.orderid = " + oid);
-            List<List<String>> itemquery= esql.executeQueryAndReturnResult(query);
-            System.out.println("\n Order #: " + oid);
-            for(int j = 0; j < itemquery.size(); ++j)
+            esql.out.println("\n Order #: " + order.orderid);
+            for (KitchenQueue.Item item : order.items)
             {
-               System.out.print(itemquery.get(j).get(1).trim().replaceAll(" +", " ")+ " " + itemquery.get(j).get(2) + "\n"); 
+               esql.out.print(item.name + " " + item.lastUpdated + "\n");
             }
-            System.out.println(String.format("Total: $%.2f     Customer: %s \n", numTotal, orderLogin)); 
-
+            esql.out.println(String.format("Total: $%s     Customer: %s \n", Money.format(order.totalCents), order.login));
          }
-
       }
       catch (Exception e)
       {
-          System.err.println (e.getMessage());
+          esql.err.println (e.getMessage());
       }
+      esql.metrics.operation("ViewCurrentOrder", start);
    }//end
 
 
 /*****************************************************************************/
 
-   public static void Query6(Cafe esql){
-      // Your code goes here.
-      // ...
-      // ...
-   }//end Query6
+   /*
+    * Sales and item reports for managers.  They read only the SalesHourly
+    * and ItemDaily rollups, which refresh_rollups keeps current, so they
+    * cost the same however long the order history is.
+    **/
+   public static void ManagerReport(Cafe esql){
+      boolean reports = true;
+      while(reports)
+      {
+         try
+         {
+            List<List<String>> refreshed = esql.executeQueryAndReturnResult(
+               "SELECT min(refreshedAt) FROM RollupWatermark");
+            String asOf = refreshed.get(0).get(0);
+            esql.out.println("\nSALES REPORTS - figures as of " + (asOf == null ? "never, refresh them first" : asOf));
+            esql.out.println("---------");
+            esql.out.println("1. Sales by day, last 14 days");
+            esql.out.println("2. Sales by hour, today");
+            esql.out.println("3. Item popularity, last 30 days");
+            esql.out.println("4. Refresh the figures now");
+            esql.out.println(".........................");
+            esql.out.println("9. Back");
+            int choice = esql.readChoice();
+            long start = esql.metrics.start();
+            switch (choice){
+               case 1:
+                  esql.executeQueryAndPrintResult(
+                     "SELECT hour::date AS day, sum(orders) AS orders, sum(revenue) AS revenue, sum(paidRevenue) AS paid " +
+                     "FROM SalesHourly WHERE hour >= date_trunc('day', now()::timestamp) - interval '13 days' " +
+                     "GROUP BY 1 ORDER BY 1 DESC");
+                  break;
+               case 2:
+                  esql.executeQueryAndPrintResult(
+                     "SELECT hour, orders, revenue, paidRevenue AS paid " +
+                     "FROM SalesHourly WHERE hour >= date_trunc('day', now()::timestamp) ORDER BY hour");
+                  break;
+               case 3:
+                  esql.executeQueryAndPrintResult(
+                     "SELECT itemName, sum(ordered) AS ordered, sum(finished) AS finished, " +
+                     "round((sum(finishSeconds) / NULLIF(sum(finished), 0) / 60)::numeric, 1) AS avg_minutes_to_finish " +
+                     "FROM ItemDaily WHERE day >= current_date - 29 " +
+                     "GROUP BY itemName ORDER BY 2 DESC, 1 LIMIT 20");
+                  break;
+               case 4: RefreshRollups(esql); break;
+               case 9: reports = false; break;
+               default : esql.out.println("Unrecognized choice!"); break;
+            }//end switch
+            esql.metrics.operation("ManagerReport", start);
+         }
+         catch(SQLException e)
+         {
+            esql.err.println (e.getMessage());
+         }
+      }
+   }//end ManagerReport
+
+   /*
+    * Recomputes the report rollups from their watermarks, i.e. the orders
+    * of the last day and anything placed since the last refresh, and the
+    * older hours and days in which an order or item changed since
+    **/
+   public static void RefreshRollups(Cafe esql) throws SQLException
+   {
+      long start = esql.metrics.start();
+      esql.executeQueryAndReturnResult("SELECT refresh_rollups(interval '1 day')");
+      esql.metrics.operation("RefreshRollups", start);
+   }//end
 
 }//end Cafe
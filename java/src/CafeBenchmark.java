@@ -0,0 +1,252 @@
+/*
+ * Benchmark harness for the Cafe application
+ * ==========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * This class times the core Cafe operations against a seeded database:
+ * LogIn, find_type, menu browse and search, AddOrder with 1, 5 and 20
+ * items and from favorites, UpdateOrder swap and delete, ViewOrderHistory
+ * and ViewCurrentOrder.  Each case runs the same static methods the menus
+ * call, on a session whose output is discarded, first to warm up and then
+ * measured one operation at a time.
+ *
+ * java/scripts/benchmark.sh seeds the database and runs it; to run it by
+ * hand against a database that is already seeded:
+ *
+ *    java -cp classes:$CLASSPATH CafeBenchmark <dbname> <port> [warmup] [iterations] [case regex]
+ *
+ */
+public class CafeBenchmark {
+
+   // login every benchmark order is placed under, so they can be removed afterwards
+   static final String BENCH_LOGIN = "cafe_bench";
+
+   /**
+    * One benchmark case.  prepare runs untimed before every timed run.
+    */
+   static abstract class Case {
+      final String name;
+
+      Case (String name) {
+         this.name = name;
+      }//end Case
+
+      void prepare (int i) throws Exception {
+      }//end prepare
+
+      abstract void run (int i) throws Exception;
+   }//end Case
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            CafeBenchmark.class.getName () +
+            " <dbname> <port> [warmup] [iterations] [case regex]");
+         return;
+      }//end if
+      int warmup = args.length > 2 ? Integer.parseInt (args[2]) : 2000;
+      int iterations = args.length > 3 ? Integer.parseInt (args[3]) : 10000;
+      Pattern filter = Pattern.compile (args.length > 4 ? args[4] : ".*");
+
+      Class.forName ("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool (Cafe.connectionUrl (args[0], args[1]), 1, 0, 0, 30 * 1000);
+      MenuCache menu = new MenuCache ();
+      Cafe esql = new Cafe (pool, menu, new SessionManager (), new KitchenQueue (), null,
+                            new BufferedReader (new StringReader ("")), new PrintStream (OutputStream.nullOutputStream ()));
+      // when the run started by the database clock, which bounds the clean up to the current partitions
+      Timestamp since = Timestamp.valueOf (esql.executeQueryAndReturnResult ("SELECT now()::timestamp").get (0).get (0));
+      try{
+         List<String[]> users = loadUsers (esql);
+         List<MenuCache.Item> items = menu.get (esql).items;
+         if (users.isEmpty ())
+            throw new SQLException ("No customers to benchmark with; seed the database first");
+
+         System.out.println (String.format ("%-22s %10s %10s %10s %10s %10s", "case", "ops/s", "mean us", "p50 us", "p99 us", "max us"));
+         for (Case c : cases (esql, users, items)){
+            if (!filter.matcher (c.name).matches ())
+               continue;
+            measure (c, warmup, false);
+            measure (c, iterations, true);
+         }//end for
+      }finally{
+         removeBenchOrders (esql, since);
+         pool.close ();
+      }//end try
+   }//end main
+
+   static List<Case> cases (final Cafe esql, final List<String[]> users, final List<MenuCache.Item> items) {
+      List<Case> cases = new ArrayList<Case> ();
+      cases.add (new Case ("LogIn") {
+         void run (int i) throws Exception {
+            String[] user = users.get (i % users.size ());
+            Cafe.Authenticate (esql, user[0], user[1]);
+         }
+      });
+      cases.add (new Case ("LogIn.uncached") {
+         void prepare (int i) throws Exception {
+            esql.sessions.invalidate (users.get (i % users.size ())[0]);
+         }
+
+         void run (int i) throws Exception {
+            String[] user = users.get (i % users.size ());
+            Cafe.Authenticate (esql, user[0], user[1]);
+         }
+      });
+      cases.add (new Case ("find_type") {
+         void run (int i) throws Exception {
+            esql.session.setLogin (users.get (i % users.size ())[0]);
+            Cafe.find_type (esql);
+         }
+      });
+      cases.add (new Case ("find_type.uncached") {
+         void prepare (int i) throws Exception {
+            esql.sessions.invalidate (users.get (i % users.size ())[0]);
+         }
+
+         void run (int i) throws Exception {
+            esql.session.setLogin (users.get (i % users.size ())[0]);
+            Cafe.find_type (esql);
+         }
+      });
+      cases.add (new Case ("BrowseMenu.cached") {
+         void run (int i) throws Exception {
+            esql.menu.get (esql).byType ("Drinks");
+         }
+      });
+      cases.add (new Case ("BrowseMenu.search") {
+         void run (int i) throws Exception {
+            // a prefix, a typo and a description word
+            esql.menu.get (esql).search.search (i % 3 == 0 ? "cof" : i % 3 == 1 ? "lemnade" : "fritters", Cafe.MENU_SEARCH_RESULTS);
+         }
+      });
+      cases.add (new Case ("BrowseMenu.reload") {
+         void run (int i) throws Exception {
+            esql.menu.invalidate ();
+            esql.menu.get (esql).byType ("Drinks");
+         }
+      });
+      for (final int size : new int[] { 1, 5, 20 }){
+         if (size > items.size ()){
+            System.out.println ("skipping AddOrder." + size + ": the menu has only " + items.size () + " items");
+            continue;
+         }//end if
+         cases.add (new Case ("AddOrder." + size) {
+            final List<String> names = names (items, 0, size);
+
+            void run (int i) throws Exception {
+               Cafe.PlaceOrder (esql, BENCH_LOGIN, names);
+            }
+         });
+      }//end for
+      cases.add (new Case ("AddOrder.favorites") {
+         void run (int i) throws Exception {
+            // seed_bench.sql gives the bench user three favorites
+            Cafe.ReorderFavorites (esql, BENCH_LOGIN);
+         }
+      });
+      cases.add (new Case ("UpdateOrder.swap") {
+         int oid;
+
+         void prepare (int i) throws Exception {
+            oid = Cafe.PlaceOrder (esql, BENCH_LOGIN, names (items, 0, 1));
+         }
+
+         void run (int i) throws Exception {
+            // a new order is at version 0
+            Cafe.SwapOrderItem (esql, oid, 0, items.get (0).name, items.get (1));
+         }
+      });
+      cases.add (new Case ("UpdateOrder.delete") {
+         int oid;
+
+         void prepare (int i) throws Exception {
+            oid = Cafe.PlaceOrder (esql, BENCH_LOGIN, names (items, 0, 2));
+         }
+
+         void run (int i) throws Exception {
+            Cafe.RemoveOrderItem (esql, oid, 0, items.get (1).name);
+         }
+      });
+      cases.add (new Case ("ViewOrderHistory") {
+         void run (int i) throws Exception {
+            // the first page, as ViewOrderHistory shows it
+            String login = users.get (i % users.size ())[0];
+            Cafe.PrintOrderHistory (esql, Cafe.OrderHistoryPage (esql, login, Integer.MAX_VALUE, Cafe.HISTORY_PAGE_SIZE));
+         }
+      });
+      cases.add (new Case ("ViewCurrentOrder") {
+         void run (int i) throws Exception {
+            Cafe.ViewCurrentOrder (esql);
+         }
+      });
+      return cases;
+   }//end cases
+
+   static void measure (Case c, int iterations, boolean report) throws Exception {
+      long[] samples = new long[iterations];
+      long elapsed = 0;
+      for (int i = 0; i < iterations; ++i){
+         c.prepare (i);
+         long start = System.nanoTime ();
+         c.run (i);
+         samples[i] = System.nanoTime () - start;
+         elapsed += samples[i];
+      }//end for
+      if (!report)
+         return;
+      Arrays.sort (samples);
+      System.out.println (String.format ("%-22s %10.0f %10.1f %10.1f %10.1f %10.1f", c.name,
+         iterations / (elapsed / 1e9),
+         elapsed / 1e3 / iterations,
+         samples[(int) (iterations * 0.50)] / 1e3,
+         samples[(int) Math.min (iterations - 1, iterations * 0.99)] / 1e3,
+         samples[iterations - 1] / 1e3));
+   }//end measure
+
+   /**
+    * Loads up to 1000 customers with their passwords to log in as.
+    */
+   static List<String[]> loadUsers (Cafe esql) throws SQLException {
+      final List<String[]> users = new ArrayList<String[]> ();
+      esql.forEachRow ("SELECT login, password FROM Users WHERE type = 'Customer' ORDER BY login LIMIT 1000", 0,
+         new Cafe.RowHandler () {
+            public void handle (ResultSet rs) throws SQLException {
+               users.add (new String[] { rs.getString (1), rs.getString (2) });
+            }
+         });
+      return users;
+   }//end loadUsers
+
+   static List<String> names (List<MenuCache.Item> items, int from, int count) {
+      List<String> names = new ArrayList<String> ();
+      for (int i = from; i < from + count; ++i)
+         names.add (items.get (i).name);
+      return names;
+   }//end names
+
+   static void removeBenchOrders (Cafe esql, Timestamp since) throws SQLException {
+      esql.executeUpdate ("DELETE FROM ItemStatus WHERE timeStampRecieved >= ? AND orderid IN " +
+                          "(SELECT orderid FROM Orders WHERE login = ? AND timeStampRecieved >= ?)", since, BENCH_LOGIN, since);
+      esql.executeUpdate ("DELETE FROM Orders WHERE login = ? AND timeStampRecieved >= ?", BENCH_LOGIN, since);
+   }//end removeBenchOrders
+
+}//end CafeBenchmark
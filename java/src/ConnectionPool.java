@@ -0,0 +1,324 @@
+/*
+ * Connection pool for the Cafe application
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a bounded pool of PostgreSQL JDBC connections so that
+ * many Cafe sessions can share one JVM and one warm set of connections.
+ * Connections are validated before reuse, closed after sitting idle too
+ * long, and retired once they reach their maximum lifetime.
+ *
+ */
+public class ConnectionPool {
+
+   // connections idle for less than this are reused without a validation round trip
+   private static final long VALIDATION_INTERVAL = 5000;
+
+   // seconds to wait for Connection.isValid during a health check
+   private static final int VALIDATION_TIMEOUT = 2;
+
+   /**
+    * A physical connection owned by the pool, together with the prepared
+    * statements cached on it.  Statements are prepared once per query shape
+    * and kept until the connection itself is retired.
+    */
+   public static class PooledConnection {
+
+      private final Connection _connection;
+
+      // prepared statements for the connection, keyed by their SQL text
+      private final Map<String, PreparedStatement> _statements = new HashMap<String, PreparedStatement>();
+
+      private final long _createdAt;
+      private long _lastUsed;
+
+      PooledConnection (Connection connection) {
+         this._connection = connection;
+         this._createdAt = System.currentTimeMillis ();
+         this._lastUsed = this._createdAt;
+      }//end PooledConnection
+
+      /**
+       * @return the underlying JDBC connection
+       */
+      public Connection getConnection () {
+         return this._connection;
+      }//end getConnection
+
+      /**
+       * Method to fetch the PreparedStatement for a query shape, preparing
+       * it on first use.
+       *
+       * @param sql the parameterized SQL string, using ? for each parameter
+       * @return the cached PreparedStatement for the given SQL
+       * @throws java.sql.SQLException when the statement could not be prepared
+       */
+      public PreparedStatement prepare (String sql) throws SQLException {
+         PreparedStatement stmt = this._statements.get (sql);
+         if (stmt == null || stmt.isClosed ()){
+            stmt = this._connection.prepareStatement (sql);
+            this._statements.put (sql, stmt);
+         }//end if
+         return stmt;
+      }//end prepare
+
+      void close () {
+         try{
+            for (PreparedStatement stmt : this._statements.values ())
+               stmt.close ();
+            this._statements.clear ();
+            this._connection.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end close
+   }//end PooledConnection
+
+   // latencies and counters for everything run on the pool's connections
+   public final Metrics metrics = new Metrics ();
+
+   private final String _url;
+   private final int _maxSize;
+   private final long _idleTimeout;
+   private final long _maxLifetime;
+   private final long _borrowTimeout;
+
+   // guards the fields below; a lock rather than synchronized, so a virtual
+   // thread waiting for a connection does not hold on to its carrier thread
+   private final ReentrantLock _lock = new ReentrantLock ();
+   private final Condition _changed = this._lock.newCondition ();
+
+   // idle connections, most recently released last
+   private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+
+   // connections currently open, idle or borrowed
+   private int _total = 0;
+   private boolean _closed = false;
+   private Thread _evictor = null;
+
+   /**
+    * Creates a new connection pool.  Connections are opened lazily, so an
+    * unused pool holds no connections.
+    *
+    * @param url the JDBC connection URL
+    * @param maxSize the maximum number of open connections
+    * @param idleTimeout milliseconds an idle connection is kept, or 0 to keep it forever
+    * @param maxLifetime milliseconds a connection is used before it is retired, or 0 for no limit
+    * @param borrowTimeout milliseconds to wait for a free connection before failing
+    */
+   public ConnectionPool (String url, int maxSize, long idleTimeout, long maxLifetime, long borrowTimeout) {
+      this._url = url;
+      this._maxSize = maxSize;
+      this._idleTimeout = idleTimeout;
+      this._maxLifetime = maxLifetime;
+      this._borrowTimeout = borrowTimeout;
+
+      long period = Math.min (idleTimeout > 0 ? idleTimeout : Long.MAX_VALUE,
+                              maxLifetime > 0 ? maxLifetime : Long.MAX_VALUE);
+      if (period != Long.MAX_VALUE){
+         final long sleep = Math.max (1000, period / 2);
+         this._evictor = new Thread (new Runnable () {
+            public void run () {
+               try{
+                  while (!Thread.currentThread ().isInterrupted ()){
+                     Thread.sleep (sleep);
+                     evict ();
+                  }//end while
+               }catch (InterruptedException e){
+                  // pool closed.
+               }//end try
+            }
+         }, "cafe-pool-evictor");
+         this._evictor.setDaemon (true);
+         this._evictor.start ();
+      }//end if
+   }//end ConnectionPool
+
+   /**
+    * Method to borrow a connection from the pool.  An idle connection is
+    * reused when one passes its health check; otherwise a new connection is
+    * opened if the pool is below its maximum size.  When the pool is full
+    * this waits for another session to release a connection.
+    *
+    * @return a healthy connection, which must be handed back with release
+    * @throws java.sql.SQLException when no connection could be obtained in time
+    */
+   public PooledConnection borrow () throws SQLException {
+      long deadline = System.currentTimeMillis () + this._borrowTimeout;
+      while (true){
+         PooledConnection conn;
+         this._lock.lock ();
+         try{
+            while (!this._closed && this._idle.isEmpty () && this._total >= this._maxSize){
+               long wait = deadline - System.currentTimeMillis ();
+               if (wait <= 0)
+                  throw new SQLException ("Timed out waiting for a database connection");
+               try{
+                  this._changed.await (wait, TimeUnit.MILLISECONDS);
+               }catch (InterruptedException e){
+                  Thread.currentThread ().interrupt ();
+                  throw new SQLException ("Interrupted waiting for a database connection");
+               }//end try
+            }//end while
+            if (this._closed)
+               throw new SQLException ("Connection pool is closed");
+
+            // reuse the warmest connection, or reserve a slot for a new one
+            conn = this._idle.pollLast ();
+            if (conn == null)
+               ++this._total;
+         }finally{
+            this._lock.unlock ();
+         }//end try
+
+         if (conn == null){
+            try{
+               return new PooledConnection (DriverManager.getConnection (this._url));
+            }catch (SQLException e){
+               this._lock.lock ();
+               try{
+                  --this._total;
+                  this._changed.signalAll ();
+               }finally{
+                  this._lock.unlock ();
+               }//end try
+               throw e;
+            }//end try
+         }//end if
+
+         if (isHealthy (conn, System.currentTimeMillis ()))
+            return conn;
+         discard (conn);
+      }//end while
+   }//end borrow
+
+   /**
+    * Method to hand a borrowed connection back to the pool.  A connection
+    * left inside a transaction is rolled back first; one that is broken or
+    * past its lifetime is closed instead of being reused.
+    *
+    * @param conn the connection returned by borrow
+    */
+   public void release (PooledConnection conn) {
+      boolean reusable;
+      try{
+         Connection c = conn.getConnection ();
+         if (!c.isClosed () && !c.getAutoCommit ()){
+            this.metrics.roundTrip ();
+            c.rollback ();
+            c.setAutoCommit (true);
+         }//end if
+         reusable = !c.isClosed () && !isExpired (conn, System.currentTimeMillis ());
+      }catch (SQLException e){
+         reusable = false;
+      }//end try
+
+      conn._lastUsed = System.currentTimeMillis ();
+      this._lock.lock ();
+      try{
+         if (reusable && !this._closed){
+            this._idle.addLast (conn);
+            this._changed.signalAll ();
+            return;
+         }//end if
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      discard (conn);
+   }//end release
+
+   /**
+    * Method to close idle connections that are past their idle timeout or
+    * maximum lifetime.  Runs periodically on the evictor thread.
+    */
+   public void evict () {
+      long now = System.currentTimeMillis ();
+      List<PooledConnection> stale = new ArrayList<PooledConnection> ();
+      this._lock.lock ();
+      try{
+         Iterator<PooledConnection> it = this._idle.iterator ();
+         while (it.hasNext ()){
+            PooledConnection conn = it.next ();
+            if (isExpired (conn, now)
+                || (this._idleTimeout > 0 && now - conn._lastUsed >= this._idleTimeout)){
+               it.remove ();
+               stale.add (conn);
+            }//end if
+         }//end while
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      for (PooledConnection conn : stale)
+         discard (conn);
+   }//end evict
+
+   /**
+    * Method to close every idle connection and stop handing out new ones.
+    * Borrowed connections are closed as they are released.
+    */
+   public void close () {
+      List<PooledConnection> idle;
+      this._lock.lock ();
+      try{
+         this._closed = true;
+         idle = new ArrayList<PooledConnection> (this._idle);
+         this._idle.clear ();
+         this._changed.signalAll ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+      if (this._evictor != null)
+         this._evictor.interrupt ();
+      for (PooledConnection conn : idle)
+         discard (conn);
+   }//end close
+
+   private boolean isExpired (PooledConnection conn, long now) {
+      return this._maxLifetime > 0 && now - conn._createdAt >= this._maxLifetime;
+   }//end isExpired
+
+   private boolean isHealthy (PooledConnection conn, long now) {
+      if (isExpired (conn, now))
+         return false;
+      // a connection used moments ago is very likely still alive
+      if (now - conn._lastUsed < VALIDATION_INTERVAL)
+         return true;
+      try{
+         this.metrics.roundTrip ();
+         return conn.getConnection ().isValid (VALIDATION_TIMEOUT);
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isHealthy
+
+   private void discard (PooledConnection conn) {
+      conn.close ();
+      this._lock.lock ();
+      try{
+         --this._total;
+         this._changed.signalAll ();
+      }finally{
+         this._lock.unlock ();
+      }//end try
+   }//end discard
+
+}//end ConnectionPool
@@ -0,0 +1,270 @@
+/*
+ * JSON reader and writer for the Cafe application
+ * ===============================================
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads and writes the small JSON documents the HTTP API
+ * exchanges, without a third-party library.  Objects are read into
+ * LinkedHashMaps, arrays into ArrayLists, numbers into BigDecimals, exactly
+ * as written, and true, false and null into Boolean and null; write accepts
+ * the same types plus any other Number.
+ *
+ */
+public final class Json {
+
+   // most powers of ten a number may be above or below 1, well beyond a double's range
+   private static final int MAX_MAGNITUDE = 400;
+
+   private final String _text;
+   private int _pos = 0;
+
+   private Json (String text) {
+      this._text = text;
+   }//end Json
+
+   /**
+    * Parses one JSON value.
+    *
+    * @param text the JSON text
+    * @return the value, as described above
+    * @throws IllegalArgumentException when the text is not valid JSON
+    */
+   public static Object parse (String text) {
+      Json json = new Json (text);
+      Object value = json.value ();
+      json.skipSpace ();
+      if (json._pos != text.length ())
+         throw json.error ("Unexpected trailing characters");
+      return value;
+   }//end parse
+
+   /**
+    * Writes a value as JSON.
+    *
+    * @param value a Map, List, String, Number, Boolean or null
+    * @return the JSON text
+    */
+   public static String write (Object value) {
+      StringBuilder out = new StringBuilder ();
+      write (out, value);
+      return out.toString ();
+   }//end write
+
+   private static void write (StringBuilder out, Object value) {
+      if (value == null){
+         out.append ("null");
+      }else if (value instanceof String){
+         quote (out, (String) value);
+      }else if (value instanceof Double || value instanceof Float){
+         double d = ((Number) value).doubleValue ();
+         if (Double.isNaN (d) || Double.isInfinite (d))
+            out.append ("null");
+         else if (d == Math.rint (d) && Math.abs (d) < 1e15)
+            out.append ((long) d);
+         else
+            out.append (d);
+      }else if (value instanceof Number || value instanceof Boolean){
+         out.append (value);
+      }else if (value instanceof Map){
+         out.append ('{');
+         boolean first = true;
+         for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet ()){
+            if (!first)
+               out.append (',');
+            first = false;
+            quote (out, String.valueOf (e.getKey ()));
+            out.append (':');
+            write (out, e.getValue ());
+         }//end for
+         out.append ('}');
+      }else if (value instanceof List){
+         out.append ('[');
+         boolean first = true;
+         for (Object item : (List<?>) value){
+            if (!first)
+               out.append (',');
+            first = false;
+            write (out, item);
+         }//end for
+         out.append (']');
+      }else{
+         throw new IllegalArgumentException ("Cannot write " + value.getClass ().getName () + " as JSON");
+      }//end if
+   }//end write
+
+   private static void quote (StringBuilder out, String s) {
+      out.append ('"');
+      for (int i = 0; i < s.length (); ++i){
+         char c = s.charAt (i);
+         switch (c){
+            case '"': out.append ("\\\""); break;
+            case '\\': out.append ("\\\\"); break;
+            case '\n': out.append ("\\n"); break;
+            case '\r': out.append ("\\r"); break;
+            case '\t': out.append ("\\t"); break;
+            default:
+               if (c < 0x20)
+                  out.append (String.format ("\\u%04x", (int) c));
+               else
+                  out.append (c);
+         }//end switch
+      }//end for
+      out.append ('"');
+   }//end quote
+
+   private Object value () {
+      skipSpace ();
+      if (this._pos >= this._text.length ())
+         throw error ("Unexpected end of input");
+      char c = this._text.charAt (this._pos);
+      switch (c){
+         case '{': return object ();
+         case '[': return array ();
+         case '"': return string ();
+         case 't': literal ("true"); return Boolean.TRUE;
+         case 'f': literal ("false"); return Boolean.FALSE;
+         case 'n': literal ("null"); return null;
+         default:
+            if (c == '-' || (c >= '0' && c <= '9'))
+               return number ();
+            throw error ("Unexpected character '" + c + "'");
+      }//end switch
+   }//end value
+
+   private Map<String, Object> object () {
+      Map<String, Object> map = new LinkedHashMap<String, Object> ();
+      ++this._pos;
+      skipSpace ();
+      if (peek () == '}'){
+         ++this._pos;
+         return map;
+      }//end if
+      while (true){
+         skipSpace ();
+         if (peek () != '"')
+            throw error ("Expected a member name");
+         String key = string ();
+         skipSpace ();
+         expect (':');
+         map.put (key, value ());
+         skipSpace ();
+         if (peek () == ','){
+            ++this._pos;
+            continue;
+         }//end if
+         expect ('}');
+         return map;
+      }//end while
+   }//end object
+
+   private List<Object> array () {
+      List<Object> list = new ArrayList<Object> ();
+      ++this._pos;
+      skipSpace ();
+      if (peek () == ']'){
+         ++this._pos;
+         return list;
+      }//end if
+      while (true){
+         list.add (value ());
+         skipSpace ();
+         if (peek () == ','){
+            ++this._pos;
+            continue;
+         }//end if
+         expect (']');
+         return list;
+      }//end while
+   }//end array
+
+   private String string () {
+      StringBuilder out = new StringBuilder ();
+      ++this._pos;
+      while (true){
+         if (this._pos >= this._text.length ())
+            throw error ("Unterminated string");
+         char c = this._text.charAt (this._pos++);
+         if (c == '"')
+            return out.toString ();
+         if (c != '\\'){
+            out.append (c);
+            continue;
+         }//end if
+         if (this._pos >= this._text.length ())
+            throw error ("Unterminated string");
+         char e = this._text.charAt (this._pos++);
+         switch (e){
+            case '"': case '\\': case '/': out.append (e); break;
+            case 'b': out.append ('\b'); break;
+            case 'f': out.append ('\f'); break;
+            case 'n': out.append ('\n'); break;
+            case 'r': out.append ('\r'); break;
+            case 't': out.append ('\t'); break;
+            case 'u':
+               if (this._pos + 4 > this._text.length ())
+                  throw error ("Bad unicode escape");
+               try{
+                  out.append ((char) Integer.parseInt (this._text.substring (this._pos, this._pos + 4), 16));
+               }catch (NumberFormatException ex){
+                  throw error ("Bad unicode escape");
+               }//end try
+               this._pos += 4;
+               break;
+            default:
+               throw error ("Bad escape '\\" + e + "'");
+         }//end switch
+      }//end while
+   }//end string
+
+   private BigDecimal number () {
+      int start = this._pos;
+      while (this._pos < this._text.length () && "+-0123456789.eE".indexOf (this._text.charAt (this._pos)) >= 0)
+         ++this._pos;
+      BigDecimal number;
+      try{
+         number = new BigDecimal (this._text.substring (start, this._pos));
+      }catch (NumberFormatException e){
+         throw error ("Bad number");
+      }//end try
+      // an exponent such as 1e999999999 costs nothing here but expands to
+      // all its digits wherever the number is used
+      if (Math.abs ((long) number.precision () - number.scale ()) > MAX_MAGNITUDE)
+         throw error ("Number out of range");
+      return number;
+   }//end number
+
+   private void literal (String word) {
+      if (!this._text.startsWith (word, this._pos))
+         throw error ("Expected " + word);
+      this._pos += word.length ();
+   }//end literal
+
+   private void expect (char c) {
+      if (peek () != c)
+         throw error ("Expected '" + c + "'");
+      ++this._pos;
+   }//end expect
+
+   private char peek () {
+      return this._pos < this._text.length () ? this._text.charAt (this._pos) : '\0';
+   }//end peek
+
+   private void skipSpace () {
+      while (this._pos < this._text.length () && Character.isWhitespace (this._text.charAt (this._pos)))
+         ++this._pos;
+   }//end skipSpace
+
+   private IllegalArgumentException error (String message) {
+      return new IllegalArgumentException (message + " at offset " + this._pos);
+   }//end error
+
+}//end Json
@@ -0,0 +1,267 @@
+/*
+ * Kitchen order queue for the Cafe application
+ * ============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps an in-process view of the open orders, i.e. the unpaid
+ * orders of the last day, and the status of their items, for the kitchen
+ * screens.  The view is loaded once and then kept up to date from the
+ * order_changed and item_changed triggers, which NOTIFY every change to
+ * Orders and ItemStatus on the cafe_kitchen channel with the changed row as
+ * a JSON payload, so reading the queue never touches the database.
+ *
+ * Until a listener has delivered to it, e.g. in a tool that runs without
+ * one, the queue cannot know about changes and loads the open orders on
+ * every read instead.
+ *
+ */
+public class KitchenQueue implements NotificationListener.Handler {
+
+   // channel the Orders and ItemStatus triggers notify on
+   public static final String CHANNEL = "cafe_kitchen";
+
+   // how long an unpaid order stays on the queue, in milliseconds
+   public static final long OPEN_FOR = 24 * 60 * 60 * 1000;
+
+   private static final String LOAD_QUERY =
+      "SELECT O.orderid, O.login, O.paid, O.timeStampRecieved, O.total, I.itemName, I.status, I.lastUpdated, I.comments " +
+      "FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved " +
+         "AND I.timeStampRecieved >= NOW() - '1 day'::INTERVAL " +
+      "WHERE O.paid = false AND O.timeStampRecieved >= NOW() - '1 day'::INTERVAL " +
+      "ORDER BY O.orderid";
+
+   /**
+    * One item of an open order.
+    */
+   public static class Item {
+      public final String name;
+      public final String status;
+      public final String lastUpdated;
+      public final String comments;
+
+      Item (String name, String status, String lastUpdated, String comments) {
+         this.name = name;
+         this.status = status;
+         this.lastUpdated = lastUpdated;
+         this.comments = comments;
+      }//end Item
+   }//end Item
+
+   /**
+    * An open order and its items, in the order they were added.  Orders
+    * are immutable; a change replaces the whole order.
+    */
+   public static class Order {
+      public final int orderid;
+      public final String login;
+      public final Timestamp placed;
+      public final long totalCents;
+      public final List<Item> items;
+
+      Order (int orderid, String login, Timestamp placed, long totalCents, List<Item> items) {
+         this.orderid = orderid;
+         this.login = login;
+         this.placed = placed;
+         this.totalCents = totalCents;
+         this.items = Collections.unmodifiableList (items);
+      }//end Order
+
+      Order withItems (List<Item> items) {
+         return new Order (this.orderid, this.login, this.placed, this.totalCents, items);
+      }//end withItems
+   }//end Order
+
+   // open orders by orderid, guarded by this
+   private TreeMap<Integer, Order> _orders = new TreeMap<Integer, Order> ();
+
+   // whether a listener delivers the changes, and whether _orders holds them
+   private boolean _listening = false;
+   private boolean _loaded = false;
+
+   // changes received while a load is running, replayed on top of its result
+   private List<String> _backlog = null;
+
+   // bumped on every resynchronization, so a load that raced one is not kept
+   private long _generation = 0;
+
+   // what readers get, rebuilt on the first read after a change
+   private volatile List<Order> _view = null;
+
+   /**
+    * Returns the open orders, oldest first.
+    *
+    * @param esql the session to load the orders through, if they are not loaded
+    * @return an immutable list of the open orders
+    * @throws java.sql.SQLException when the orders could not be loaded
+    */
+   public List<Order> open (Cafe esql) throws SQLException {
+      List<Order> view = this._view;
+      if (view != null && !expired (view))
+         return view;
+
+      long generation;
+      synchronized (this){
+         if (this._loaded)
+            return view ();
+         generation = this._generation;
+         if (this._listening && this._backlog == null)
+            this._backlog = new ArrayList<String> ();
+      }//end synchronized
+
+      TreeMap<Integer, Order> loaded = load (esql);
+
+      synchronized (this){
+         if (!this._listening || this._generation != generation)
+            return Collections.unmodifiableList (new ArrayList<Order> (loaded.values ()));
+         if (!this._loaded){
+            this._orders = loaded;
+            for (String payload : this._backlog)
+               apply (payload);
+            this._backlog = null;
+            this._loaded = true;
+         }//end if
+         return view ();
+      }//end synchronized
+   }//end open
+
+   /**
+    * Returns one open order, if the queue holds it, without touching the
+    * database.
+    *
+    * @param oid the order
+    * @return the order, or null when the queue does not hold it
+    */
+   public synchronized Order held (int oid) {
+      return this._loaded ? this._orders.get (oid) : null;
+   }//end held
+
+   /**
+    * Applies one change to Orders or ItemStatus, or starts over after the
+    * listener (re)connects.
+    */
+   public synchronized void notified (String payload) {
+      if (payload == null || payload.isEmpty ()){
+         ++this._generation;
+         this._listening = true;
+         this._loaded = false;
+         this._backlog = null;
+         this._orders = new TreeMap<Integer, Order> ();
+         this._view = null;
+         return;
+      }//end if
+      if (this._loaded)
+         apply (payload);
+      else if (this._backlog != null)
+         this._backlog.add (payload);
+   }//end notified
+
+   /*****************************************************************************/
+
+   private TreeMap<Integer, Order> load (Cafe esql) throws SQLException {
+      final TreeMap<Integer, Order> orders = new TreeMap<Integer, Order> ();
+      esql.forEachRow (LOAD_QUERY, Cafe.STREAM_FETCH_SIZE, new Cafe.RowHandler () {
+         Order order = null;
+         List<Item> items = null;
+
+         public void handle (ResultSet rs) throws SQLException {
+            int oid = rs.getInt (1);
+            if (order == null || order.orderid != oid){
+               items = new ArrayList<Item> ();
+               order = new Order (oid, rs.getString (2), rs.getTimestamp (4),
+                                  Money.read (rs, 5), items);
+               orders.put (oid, order);
+            }//end if
+            if (rs.getString (6) != null)
+               items.add (new Item (rs.getString (6), rs.getString (7),
+                                    String.valueOf (rs.getTimestamp (8)), rs.getString (9)));
+         }
+      });
+      // the handler filled the lists behind each order's unmodifiable view
+      return orders;
+   }//end load
+
+   /**
+    * Applies one trigger payload to _orders.  An order payload carries the
+    * whole Orders row, an item payload the whole ItemStatus row and, when
+    * the item was swapped for another, its old name; either may instead
+    * say the row was deleted.
+    */
+   private void apply (String payload) {
+      Map<?, ?> change = (Map<?, ?>) Json.parse (payload);
+      int oid = ((Number) change.get ("order")).intValue ();
+      boolean deleted = Boolean.TRUE.equals (change.get ("deleted"));
+      Order order = this._orders.get (oid);
+
+      if (change.get ("item") == null){
+         if (deleted || !Boolean.FALSE.equals (change.get ("paid"))){
+            this._orders.remove (oid);
+         }else{
+            List<Item> items = order == null ? new ArrayList<Item> () : order.items;
+            this._orders.put (oid, new Order (oid, (String) change.get ("login"),
+                                              timestamp ((String) change.get ("placed")),
+                                              Money.parse ((String) change.get ("total")),
+                                              new ArrayList<Item> (items)));
+         }//end if
+      }else{
+         // items of orders that are not open, e.g. paid ones, are of no interest
+         if (order == null)
+            return;
+         String name = (String) change.get ("item");
+         // an item swapped for another is still listed under its old name
+         String was = change.get ("old") != null ? (String) change.get ("old") : name;
+         List<Item> items = new ArrayList<Item> (order.items);
+         int at = -1;
+         for (int i = 0; i < items.size () && at < 0; ++i)
+            if (items.get (i).name.equals (was))
+               at = i;
+         Item item = deleted ? null : new Item (name, (String) change.get ("status"),
+                                                String.valueOf (timestamp ((String) change.get ("updated"))),
+                                                (String) change.get ("comments"));
+         if (at >= 0 && item != null)
+            items.set (at, item);
+         else if (at >= 0)
+            items.remove (at);
+         else if (item != null)
+            items.add (item);
+         this._orders.put (oid, order.withItems (items));
+      }//end if
+      this._view = null;
+   }//end apply
+
+   private List<Order> view () {
+      // orders older than a day drop off the queue whether or not they were paid
+      long cutoff = System.currentTimeMillis () - OPEN_FOR;
+      Iterator<Order> it = this._orders.values ().iterator ();
+      while (it.hasNext ())
+         if (it.next ().placed.getTime () < cutoff)
+            it.remove ();
+      List<Order> view = Collections.unmodifiableList (new ArrayList<Order> (this._orders.values ()));
+      this._view = view;
+      return view;
+   }//end view
+
+   private static boolean expired (List<Order> view) {
+      return !view.isEmpty () && view.get (0).placed.getTime () < System.currentTimeMillis () - OPEN_FOR;
+   }//end expired
+
+   private static Timestamp timestamp (String json) {
+      // json_build_object writes timestamps in ISO 8601, with a T between date and time
+      return Timestamp.valueOf (json.replace ('T', ' '));
+   }//end timestamp
+
+}//end KitchenQueue
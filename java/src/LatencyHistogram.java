@@ -0,0 +1,147 @@
+/*
+ * Latency histogram for the Cafe application
+ * ==========================================
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies in nanoseconds into a fixed set of
+ * log-linear buckets, in the manner of an HDR histogram: values below 128ns
+ * are counted exactly and every power of two above that is split into 64
+ * buckets, so any percentile read back is within about 1.6% of the value
+ * recorded.  The buckets are allocated once, and record neither allocates
+ * nor takes a lock, so many threads can record into one histogram while it
+ * is being read.
+ *
+ */
+public class LatencyHistogram {
+
+   // bits of precision kept below each value's highest set bit
+   private static final int SUB_BITS = 7;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int HALF_COUNT = SUB_COUNT / 2;
+
+   // enough buckets for any non-negative long
+   private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+
+   private final AtomicLongArray _counts = new AtomicLongArray (BUCKETS);
+   private final LongAdder _count = new LongAdder ();
+   private final LongAdder _sum = new LongAdder ();
+   private final AtomicLong _max = new AtomicLong ();
+
+   /**
+    * Records one latency.
+    *
+    * @param nanos the latency in nanoseconds; negative values count as 0
+    */
+   public void record (long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      this._counts.incrementAndGet (bucket (nanos));
+      this._count.increment ();
+      this._sum.add (nanos);
+      long max = this._max.get ();
+      while (nanos > max && !this._max.compareAndSet (max, nanos))
+         max = this._max.get ();
+   }//end record
+
+   /**
+    * Adds every value recorded in another histogram to this one.
+    *
+    * @param other the histogram to add
+    */
+   public void add (LatencyHistogram other) {
+      for (int i = 0; i < BUCKETS; ++i){
+         long n = other._counts.get (i);
+         if (n != 0)
+            this._counts.addAndGet (i, n);
+      }//end for
+      this._count.add (other.getCount ());
+      this._sum.add (other._sum.sum ());
+      long max = this._max.get ();
+      long otherMax = other.getMax ();
+      while (otherMax > max && !this._max.compareAndSet (max, otherMax))
+         max = this._max.get ();
+   }//end add
+
+   /**
+    * Clears every recorded value.  Values recorded while the reset runs may
+    * be kept or dropped.
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set (i, 0);
+      this._count.reset ();
+      this._sum.reset ();
+      this._max.set (0);
+   }//end reset
+
+   /**
+    * @return the number of values recorded
+    */
+   public long getCount () {
+      return this._count.sum ();
+   }//end getCount
+
+   /**
+    * @return the largest value recorded, exactly, or 0 when there is none
+    */
+   public long getMax () {
+      return this._max.get ();
+   }//end getMax
+
+   /**
+    * @return the mean of the values recorded, or 0 when there is none
+    */
+   public double getMean () {
+      long count = getCount ();
+      return count == 0 ? 0 : (double) this._sum.sum () / count;
+   }//end getMean
+
+   /**
+    * Returns the value at a percentile: the highest value that falls in the
+    * same bucket as the recorded value ranked at that percentile.
+    *
+    * @param percentile the percentile, from 0 to 100
+    * @return the value in nanoseconds, or 0 when nothing was recorded
+    */
+   public long getPercentile (double percentile) {
+      long count = 0;
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; ++i){
+         counts[i] = this._counts.get (i);
+         count += counts[i];
+      }//end for
+      if (count == 0)
+         return 0;
+      long rank = Math.max (1, (long) Math.ceil (count * Math.min (100, percentile) / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i){
+         seen += counts[i];
+         if (seen >= rank)
+            return Math.min (highestInBucket (i), getMax ());
+      }//end for
+      return getMax ();
+   }//end getPercentile
+
+   private static int bucket (long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros (value) - (SUB_BITS - 1);
+      return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >>> shift) - HALF_COUNT);
+   }//end bucket
+
+   private static long highestInBucket (int index) {
+      if (index < SUB_COUNT)
+         return index;
+      int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+      long sub = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+      return ((sub + 1) << shift) - 1;
+   }//end highestInBucket
+
+}//end LatencyHistogram
@@ -0,0 +1,435 @@
+/*
+ * Load generator for the Cafe application
+ * =======================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class drives concurrent cafe traffic through the same static methods
+ * the menus call.  N customers browse the menu, place orders, change them
+ * and look at their history; M employees work through the placed orders,
+ * moving each item to Finished and then marking the order paid, and watch
+ * the current orders screen.  Every simulated user is its own Cafe session
+ * on one shared connection pool.
+ *
+ * Requests arrive open-loop: each user draws exponential gaps whose mean
+ * follows the chosen rate profile, and latency is measured from when a
+ * request was due rather than when it started, so time spent queued behind
+ * a slow database is counted instead of hidden.  Throughput and
+ * p50/p99/p99.9 latency are reported every few seconds and per operation at
+ * the end.  The orders placed during the run are deleted afterwards.
+ *
+ *    java -cp classes:$CLASSPATH LoadGenerator <dbname> <port> [customers] [employees]
+ *                                [seconds] [peak ops/s] [profile] [pool size]
+ *
+ */
+public class LoadGenerator {
+
+   // seconds between progress lines
+   private static final int REPORT_INTERVAL = 5;
+
+   /**
+    * Arrival rate over the run, as a fraction of the peak rate.
+    */
+   enum Profile {
+      // the peak rate throughout
+      STEADY {
+         double load (double t) { return 1; }
+      },
+      // climbs from nothing to the peak, to find where latency breaks
+      RAMP {
+         double load (double t) { return t; }
+      },
+      // opening climbs to the peak, holds, then tails off
+      MORNING_RUSH {
+         double load (double t) {
+            if (t < 0.2)
+               return 0.2 + 0.8 * t / 0.2;
+            if (t < 0.5)
+               return 1;
+            return 1 - 0.7 * (t - 0.5) / 0.5;
+         }
+      },
+      // a quiet baseline with a sharp peak in the middle
+      LUNCH_PEAK {
+         double load (double t) { return 0.25 + 0.75 * bump (t, 0.5, 0.12); }
+      },
+      // a smaller morning bump and the lunch peak
+      FULL_DAY {
+         double load (double t) { return Math.min (1, 0.2 + 0.6 * bump (t, 0.2, 0.07) + 0.8 * bump (t, 0.55, 0.1)); }
+      };
+
+      /**
+       * @param t the fraction of the run elapsed, from 0 to 1
+       * @return the arrival rate as a fraction of the peak rate
+       */
+      abstract double load (double t);
+
+      static double bump (double t, double centre, double width) {
+         double x = (t - centre) / width;
+         return Math.exp (-x * x);
+      }//end bump
+   }//end Profile
+
+   /**
+    * The flows a simulated user performs, each timed separately.
+    */
+   enum Operation {
+      BROWSE, ORDER, UPDATE, HISTORY, STATUS, PAY, CURRENT;
+
+      final LatencyHistogram latency = new LatencyHistogram ();
+      final LongAdder errors = new LongAdder ();
+   }//end Operation
+
+   // relative weights of each customer and employee flow
+   private static final Operation[] CUSTOMER_MIX = { Operation.BROWSE, Operation.ORDER, Operation.UPDATE, Operation.HISTORY };
+   private static final int[] CUSTOMER_WEIGHTS = { 40, 30, 10, 20 };
+   private static final Operation[] EMPLOYEE_MIX = { Operation.STATUS, Operation.PAY, Operation.CURRENT };
+   private static final int[] EMPLOYEE_WEIGHTS = { 50, 30, 20 };
+
+   /**
+    * An order placed during the run, on its way through the kitchen.
+    */
+   static class Placed {
+      final int oid;
+      // replaced whole when the customer swaps an item
+      volatile String[] items;
+      // the order's version after the customer's last edit
+      volatile int version = 0;
+      // index of the next item the kitchen finishes
+      int next = 0;
+
+      Placed (int oid, String[] items) {
+         this.oid = oid;
+         this.items = items;
+      }//end Placed
+   }//end Placed
+
+   // orders with items still to finish, and orders waiting to be paid
+   private final ConcurrentLinkedQueue<Placed> _kitchen = new ConcurrentLinkedQueue<Placed> ();
+   private final ConcurrentLinkedQueue<Placed> _counter = new ConcurrentLinkedQueue<Placed> ();
+
+   // every order placed, so the run can clean up after itself
+   private final ConcurrentLinkedQueue<Integer> _placed = new ConcurrentLinkedQueue<Integer> ();
+
+   // when the run started by the database clock, which bounds the clean up to the current partitions
+   private Timestamp _since = null;
+
+   // every request of the current progress interval
+   private final LatencyHistogram _interval = new LatencyHistogram ();
+
+   private final Profile _profile;
+   private final double _peakRate;
+   private final int _users;
+   private long _start;
+   private long _end;
+
+   LoadGenerator (Profile profile, double peakRate, int users) {
+      this._profile = profile;
+      this._peakRate = peakRate;
+      this._users = users;
+   }//end LoadGenerator
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadGenerator.class.getName () +
+            " <dbname> <port> [customers] [employees] [seconds] [peak ops/s] [profile] [pool size]");
+         return;
+      }//end if
+      int customers = args.length > 2 ? Integer.parseInt (args[2]) : 100;
+      int employees = args.length > 3 ? Integer.parseInt (args[3]) : 5;
+      int seconds = args.length > 4 ? Integer.parseInt (args[4]) : 60;
+      double peakRate = args.length > 5 ? Double.parseDouble (args[5]) : 200;
+      Profile profile = Profile.valueOf ((args.length > 6 ? args[6] : "lunch_peak").toUpperCase ());
+      int poolSize = args.length > 7 ? Integer.parseInt (args[7]) : 8;
+
+      Class.forName ("org.postgresql.Driver");
+      String url = Cafe.connectionUrl (args[0], args[1]);
+      ConnectionPool pool = new ConnectionPool (url, poolSize, 0, 0, 60 * 1000);
+      MenuCache menu = new MenuCache ();
+      SessionManager sessions = new SessionManager ();
+      KitchenQueue kitchen = new KitchenQueue ();
+      // status changes are written behind, as in server mode
+      StatusWriter statuses = new StatusWriter (pool, kitchen);
+      // the caches stay current the same way they do in server mode
+      NotificationListener listener = Cafe.startListener (url, menu, sessions, kitchen);
+      // -Dcafe.metrics.port or .file shows the per statement breakdown while the load runs
+      MetricsExporter exporter = Cafe.startExporter (pool.metrics);
+      LoadGenerator load = new LoadGenerator (profile, peakRate, customers + employees);
+      statuses.start ();
+      try{
+         Cafe setup = session (pool, menu, sessions, kitchen, statuses);
+         List<String> customerLogins = logins (setup, "SELECT login FROM Users WHERE type = 'Customer' ORDER BY random() LIMIT ?", customers);
+         List<String> employeeLogins = logins (setup, "SELECT login FROM Users WHERE type <> 'Customer' ORDER BY random() LIMIT ?", employees);
+         if ((customers > 0 && customerLogins.isEmpty ()) || (employees > 0 && employeeLogins.isEmpty ()))
+            throw new SQLException ("Not enough users to simulate; load data/users.csv first");
+         List<MenuCache.Item> items = menu.get (setup).items;
+         load._since = Timestamp.valueOf (setup.executeQueryAndReturnResult ("SELECT now()::timestamp").get (0).get (0));
+
+         System.out.println (String.format ("%d customers, %d employees, %d s, peak %.0f ops/s, %s, pool of %d",
+            customers, employees, seconds, peakRate, profile.name ().toLowerCase (), poolSize));
+         List<Thread> threads = new ArrayList<Thread> ();
+         for (int i = 0; i < customers; ++i)
+            threads.add (new Thread (load.user (session (pool, menu, sessions, kitchen, statuses), customerLogins.get (i % customerLogins.size ()), false, items),
+                                     "cafe-load-customer-" + i));
+         for (int i = 0; i < employees; ++i)
+            threads.add (new Thread (load.user (session (pool, menu, sessions, kitchen, statuses), employeeLogins.get (i % employeeLogins.size ()), true, items),
+                                     "cafe-load-employee-" + i));
+
+         load._start = System.nanoTime ();
+         load._end = load._start + seconds * 1000000000L;
+         for (Thread t : threads)
+            t.start ();
+         load.progress ();
+         for (Thread t : threads)
+            t.join ();
+         // the placed orders are removed only once their last statuses are written
+         statuses.stop ();
+         load.report ();
+         load.removePlacedOrders (setup);
+      }finally{
+         if (exporter != null)
+            exporter.stop ();
+         statuses.stop ();
+         listener.stop ();
+         pool.close ();
+      }//end try
+   }//end main
+
+   static Cafe session (ConnectionPool pool, MenuCache menu, SessionManager sessions, KitchenQueue kitchen,
+                        StatusWriter statuses) {
+      return new Cafe (pool, menu, sessions, kitchen, statuses, new BufferedReader (new StringReader ("")),
+                       new PrintStream (OutputStream.nullOutputStream ()));
+   }//end session
+
+   static List<String> logins (Cafe esql, String query, int count) throws SQLException {
+      final List<String> logins = new ArrayList<String> ();
+      esql.forEachRow (query, 0, new Cafe.RowHandler () {
+         public void handle (ResultSet rs) throws SQLException {
+            logins.add (rs.getString (1));
+         }
+      }, count);
+      return logins;
+   }//end logins
+
+   /**
+    * @return the arrival rate of one user at a point of the run, in requests per second
+    */
+   double userRate (long now) {
+      double t = Math.min (1, Math.max (0, (double) (now - this._start) / (this._end - this._start)));
+      // never quite zero, so a user still wakes up when the profile climbs again
+      return Math.max (0.02, this._profile.load (t)) * this._peakRate / this._users;
+   }//end userRate
+
+   Runnable user (final Cafe esql, final String login, final boolean employee, final List<MenuCache.Item> items) {
+      return new Runnable () {
+         public void run () {
+            Random random = ThreadLocalRandom.current ();
+            esql.session.setLogin (login);
+            esql.session.setType (employee ? "Employee" : "Customer");
+            Placed mine = null;
+            long due = _start;
+            while (true){
+               due += (long) (-Math.log (1 - random.nextDouble ()) / userRate (due) * 1e9);
+               if (due >= _end)
+                  break;
+               long wait;
+               while ((wait = due - System.nanoTime ()) > 0)
+                  LockSupport.parkNanos (wait);
+
+               Operation op = employee ? pick (EMPLOYEE_MIX, EMPLOYEE_WEIGHTS, random)
+                                       : pick (CUSTOMER_MIX, CUSTOMER_WEIGHTS, random);
+               try{
+                  switch (op){
+                     case BROWSE:
+                        browse (esql, random);
+                        break;
+                     case ORDER:
+                        mine = order (esql, login, items, random);
+                        break;
+                     case UPDATE:
+                        if (mine == null){
+                           op = Operation.BROWSE;
+                           browse (esql, random);
+                        }else
+                           swap (esql, mine, items, random);
+                        break;
+                     case HISTORY:
+                        Cafe.PrintOrderHistory (esql, Cafe.OrderHistoryPage (esql, login, Integer.MAX_VALUE, Cafe.HISTORY_PAGE_SIZE));
+                        break;
+                     case STATUS:
+                        if (!finishItem (esql))
+                           op = Operation.BROWSE;
+                        break;
+                     case PAY:
+                        if (!pay (esql))
+                           op = Operation.BROWSE;
+                        break;
+                     case CURRENT:
+                        Cafe.ViewCurrentOrder (esql);
+                        break;
+                  }//end switch
+               }catch (Exception e){
+                  op.errors.increment ();
+               }//end try
+               // measured from when the request was due, so queueing counts
+               long latency = System.nanoTime () - due;
+               op.latency.record (latency);
+               _interval.record (latency);
+            }//end while
+         }
+      };
+   }//end user
+
+   static Operation pick (Operation[] ops, int[] weights, Random random) {
+      int total = 0;
+      for (int w : weights)
+         total += w;
+      int r = random.nextInt (total);
+      for (int i = 0; i < ops.length; ++i){
+         r -= weights[i];
+         if (r < 0)
+            return ops[i];
+      }//end for
+      return ops[ops.length - 1];
+   }//end pick
+
+   static void browse (Cafe esql, Random random) throws SQLException {
+      MenuCache.Snapshot menu = esql.menu.get (esql);
+      menu.byType (menu.types.get (random.nextInt (menu.types.size ())));
+      menu.byName (menu.items.get (random.nextInt (menu.items.size ())).name);
+   }//end browse
+
+   Placed order (Cafe esql, String login, List<MenuCache.Item> items, Random random) throws SQLException {
+      int size = 1 + random.nextInt (Math.min (3, items.size ()));
+      List<String> names = new ArrayList<String> ();
+      while (names.size () < size){
+         MenuCache.Item item = items.get (random.nextInt (items.size ()));
+         if (names.contains (item.name))
+            continue;
+         names.add (item.name);
+      }//end while
+      int oid = Cafe.PlaceOrder (esql, login, names);
+      Placed placed = new Placed (oid, names.toArray (new String[0]));
+      this._placed.add (oid);
+      this._kitchen.add (placed);
+      return placed;
+   }//end order
+
+   static void swap (Cafe esql, Placed placed, List<MenuCache.Item> items, Random random) throws SQLException {
+      String[] current = placed.items;
+      if (current.length >= items.size ())
+         return;
+      MenuCache.Item newItem;
+      boolean inOrder;
+      do{
+         newItem = items.get (random.nextInt (items.size ()));
+         inOrder = false;
+         for (String name : current)
+            inOrder |= name.equals (newItem.name);
+      }while (inOrder);
+      // the last item, which the kitchen reaches last
+      int last = current.length - 1;
+      placed.version = Cafe.SwapOrderItem (esql, placed.oid, placed.version, current[last], newItem);
+      String[] swapped = current.clone ();
+      swapped[last] = newItem.name;
+      placed.items = swapped;
+   }//end swap
+
+   boolean finishItem (Cafe esql) throws SQLException {
+      Placed placed = this._kitchen.poll ();
+      if (placed == null)
+         return false;
+      String[] items = placed.items;
+      Cafe.SetItemStatus (esql, placed.oid, items[placed.next++], "Finished");
+      if (placed.next < items.length)
+         this._kitchen.add (placed);
+      else
+         this._counter.add (placed);
+      return true;
+   }//end finishItem
+
+   boolean pay (Cafe esql) throws SQLException {
+      Placed placed = this._counter.poll ();
+      if (placed == null)
+         return false;
+      Cafe.SetOrderPaid (esql, placed.oid);
+      return true;
+   }//end pay
+
+   /**
+    * Prints a progress line every few seconds until the run ends.
+    */
+   void progress () {
+      long intervalNanos = REPORT_INTERVAL * 1000000000L;
+      System.out.println (String.format ("%8s %12s %12s %10s %10s", "elapsed", "offered/s", "done/s", "p50 ms", "p99 ms"));
+      for (long next = this._start + intervalNanos; next <= this._end; next += intervalNanos){
+         long wait;
+         while ((wait = next - System.nanoTime ()) > 0)
+            LockSupport.parkNanos (wait);
+         long done = this._interval.getCount ();
+         System.out.println (String.format ("%7ds %12.0f %12.0f %10.2f %10.2f",
+            (next - this._start) / 1000000000L,
+            userRate (next - intervalNanos / 2) * this._users,
+            (double) done / REPORT_INTERVAL,
+            this._interval.getPercentile (50) / 1e6,
+            this._interval.getPercentile (99) / 1e6));
+         this._interval.reset ();
+      }//end for
+   }//end progress
+
+   void report () {
+      double seconds = (System.nanoTime () - this._start) / 1e9;
+      LatencyHistogram all = new LatencyHistogram ();
+      System.out.println ();
+      System.out.println (String.format ("%-10s %10s %10s %8s %10s %10s %10s %10s",
+         "operation", "count", "ops/s", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+      for (Operation op : Operation.values ()){
+         all.add (op.latency);
+         line (op.name ().toLowerCase (), op.latency, op.errors.sum (), seconds);
+      }//end for
+      long errors = 0;
+      for (Operation op : Operation.values ())
+         errors += op.errors.sum ();
+      line ("all", all, errors, seconds);
+   }//end report
+
+   static void line (String name, LatencyHistogram h, long errors, double seconds) {
+      System.out.println (String.format ("%-10s %10d %10.1f %8d %10.2f %10.2f %10.2f %10.2f", name,
+         h.getCount (), h.getCount () / seconds, errors,
+         h.getPercentile (50) / 1e6, h.getPercentile (99) / 1e6, h.getPercentile (99.9) / 1e6, h.getMax () / 1e6));
+   }//end line
+
+   void removePlacedOrders (Cafe esql) throws SQLException {
+      List<Object[]> oids = new ArrayList<Object[]> ();
+      for (Integer oid : this._placed)
+         oids.add (new Object[] { oid, this._since });
+      if (oids.isEmpty ())
+         return;
+      esql.executeBatch ("DELETE FROM ItemStatus WHERE orderid = ? AND timeStampRecieved >= ?", oids);
+      esql.executeBatch ("DELETE FROM Orders WHERE orderid = ? AND timeStampRecieved >= ?", oids);
+      System.out.println ("\nRemoved the " + oids.size () + " orders placed during the run");
+   }//end removePlacedOrders
+
+}//end LoadGenerator
@@ -0,0 +1,168 @@
+/*
+ * Menu cache for the Cafe application
+ * ===================================
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps an in-process copy of the Menu table, indexed by item
+ * name and by type, with prices in cents.  The menu is a dozen rows that
+ * rarely change, so browsing and ordering read it from memory instead of
+ * querying Menu each time.  Each copy also carries a MenuSearch index.
+ *
+ * The cache is loaded on first use and dropped whenever the menu changes:
+ * by this process through invalidate, and by other processes through the
+ * menu_changed trigger's NOTIFY on the cafe_menu channel.
+ *
+ */
+public class MenuCache implements NotificationListener.Handler {
+
+   // channel the Menu trigger notifies on
+   public static final String CHANNEL = "cafe_menu";
+
+   /**
+    * One row of the Menu table.
+    */
+   public static class Item {
+      public final String name;
+      public final String type;
+      public final long priceCents;
+      public final String description;
+      public final String imageUrl;
+
+      Item (String name, String type, long priceCents, String description, String imageUrl) {
+         this.name = name;
+         this.type = type;
+         this.priceCents = priceCents;
+         this.description = description;
+         this.imageUrl = imageUrl;
+      }//end Item
+   }//end Item
+
+   /**
+    * An immutable copy of the whole menu.
+    */
+   public static class Snapshot {
+      // every item, in the order the Menu table returned them
+      public final List<Item> items;
+
+      // every distinct type, in order of first appearance
+      public final List<String> types;
+
+      // full text index over the names, types and descriptions
+      public final MenuSearch search;
+
+      private final Map<String, Item> _byName;
+      private final Map<String, List<Item>> _byType;
+
+      Snapshot (List<Item> items, MenuSearch previous) {
+         Map<String, Item> byName = new HashMap<String, Item> ();
+         Map<String, List<Item>> byType = new LinkedHashMap<String, List<Item>> ();
+         for (Item item : items){
+            byName.put (item.name, item);
+            List<Item> ofType = byType.get (item.type);
+            if (ofType == null){
+               ofType = new ArrayList<Item> ();
+               byType.put (item.type, ofType);
+            }//end if
+            ofType.add (item);
+         }//end for
+         this.items = Collections.unmodifiableList (items);
+         this.types = Collections.unmodifiableList (new ArrayList<String> (byType.keySet ()));
+         this._byName = byName;
+         this._byType = byType;
+         this.search = new MenuSearch (items, previous);
+      }//end Snapshot
+
+      /**
+       * @param name the item name; surrounding blanks are ignored
+       * @return the item, or null when it is not on the menu
+       */
+      public Item byName (String name) {
+         return this._byName.get (name.trim ());
+      }//end byName
+
+      /**
+       * @param type the menu type; surrounding blanks are ignored
+       * @return the items of that type, empty when there are none
+       */
+      public List<Item> byType (String type) {
+         List<Item> items = this._byType.get (type.trim ());
+         return items == null ? Collections.<Item>emptyList () : Collections.unmodifiableList (items);
+      }//end byType
+   }//end Snapshot
+
+   private volatile Snapshot _snapshot = null;
+
+   // search index of the last snapshot loaded, kept across invalidations so
+   // the next index only re-analyzes the items that changed
+   private MenuSearch _lastSearch = null;
+
+   // bumped on every invalidation, so a load that raced one is not kept
+   private long _generation = 0;
+
+   /**
+    * Returns the cached menu, loading it from the database if it is not
+    * cached.
+    *
+    * @param esql the session to load the menu through
+    * @return the current menu
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public Snapshot get (Cafe esql) throws SQLException {
+      Snapshot snapshot = this._snapshot;
+      if (snapshot != null)
+         return snapshot;
+
+      long generation;
+      MenuSearch previous;
+      synchronized (this){
+         generation = this._generation;
+         previous = this._lastSearch;
+      }//end synchronized
+
+      final List<Item> items = new ArrayList<Item> ();
+      esql.forEachRow ("SELECT itemName, type, price, description, imageURL FROM Menu", 0, new Cafe.RowHandler () {
+         public void handle (ResultSet rs) throws SQLException {
+            items.add (new Item (rs.getString (1), rs.getString (2), Money.read (rs, 3),
+                                 rs.getString (4), rs.getString (5)));
+         }
+      });
+      snapshot = new Snapshot (items, previous);
+
+      synchronized (this){
+         this._lastSearch = snapshot.search;
+         if (this._generation == generation)
+            this._snapshot = snapshot;
+      }//end synchronized
+      return snapshot;
+   }//end get
+
+   /**
+    * Drops the cached menu, so the next get reloads it.
+    */
+   public void invalidate () {
+      synchronized (this){
+         ++this._generation;
+         this._snapshot = null;
+      }//end synchronized
+   }//end invalidate
+
+   /**
+    * Drops the cached menu when another process changes it.
+    */
+   public void notified (String payload) {
+      invalidate ();
+   }//end notified
+
+}//end MenuCache
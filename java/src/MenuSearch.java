@@ -0,0 +1,312 @@
+/*
+ * Menu search index for the Cafe application
+ * ==========================================
+ *
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * This class is an in-memory full text index over one snapshot of the
+ * menu, so searching the menu never touches the database.  Item names,
+ * types and descriptions are split into lowercase words, e.g. the Donuts
+ * description "Fritters,Long Johns" gives fritters, long and johns, and
+ * every word of a query must match a word of the item in one of three
+ * ways, best first:
+ *
+ *    exact    the same word
+ *    prefix   the query word starts the item's word, e.g. "frit"
+ *    typo     within one edit, or two for words of eight letters or
+ *             more, of the item's word or of its start, e.g. "cofee" or
+ *             "firtt"; edits are insertions, deletions, substitutions
+ *             and swaps of adjacent letters
+ *
+ * Typo candidates are found through the trigrams they share with the
+ * query word rather than by comparing against every word.  A match in
+ * the name counts more than one in the type, which counts more than one
+ * in the description.
+ *
+ * An index is immutable.  A new one is built for each new menu snapshot
+ * from the previous index, reusing the words of every item whose name,
+ * type and description are unchanged, so an edit to one item only
+ * re-analyzes that item.
+ *
+ */
+public class MenuSearch {
+
+   // how much a match in each field counts
+   private static final int NAME_WEIGHT = 3;
+   private static final int TYPE_WEIGHT = 2;
+   private static final int DESCRIPTION_WEIGHT = 1;
+
+   // how much each kind of match counts
+   private static final double EXACT = 1.0;
+   private static final double PREFIX = 0.75;
+   private static final double ONE_TYPO = 0.5;
+   private static final double TWO_TYPOS = 0.3;
+
+   // query words shorter than this must match exactly or as a prefix
+   private static final int MIN_TYPO_LENGTH = 3;
+
+   // query words at least this long may have two typos
+   private static final int TWO_TYPO_LENGTH = 8;
+
+   /**
+    * What one item contributes to the index: each of its words and the
+    * weight of the best field it appears in.
+    */
+   private static class Entry {
+      final MenuCache.Item item;
+      final Map<String, Integer> words;
+
+      Entry (MenuCache.Item item, Map<String, Integer> words) {
+         this.item = item;
+         this.words = words;
+      }//end Entry
+
+      boolean describes (MenuCache.Item other) {
+         return this.item.name.equals (other.name)
+             && Objects.equals (this.item.type, other.type)
+             && Objects.equals (this.item.description, other.description);
+      }//end describes
+   }//end Entry
+
+   // one entry per item, in menu order
+   private final Entry[] _entries;
+
+   // every distinct word, sorted, so the words a prefix starts are a contiguous run
+   private final String[] _words;
+
+   // per word, the entries it appears in, ascending, and its weight in each
+   private final int[][] _postings;
+   private final int[][] _weights;
+
+   // per trigram, the words it appears in
+   private final Map<String, int[]> _trigrams;
+
+   /**
+    * Indexes a menu.
+    *
+    * @param items the menu's items
+    * @param previous the index of the previous menu snapshot, or null
+    */
+   public MenuSearch (List<MenuCache.Item> items, MenuSearch previous) {
+      Map<String, Entry> before = new HashMap<String, Entry> ();
+      if (previous != null)
+         for (Entry entry : previous._entries)
+            before.put (entry.item.name, entry);
+
+      this._entries = new Entry[items.size ()];
+      TreeMap<String, List<int[]>> postings = new TreeMap<String, List<int[]>> ();
+      for (int i = 0; i < this._entries.length; ++i){
+         MenuCache.Item item = items.get (i);
+         Entry old = before.get (item.name);
+         // an unchanged item keeps its words; only the price or image may differ
+         Entry entry = old != null && old.describes (item) ? new Entry (item, old.words) : analyze (item);
+         this._entries[i] = entry;
+         for (Map.Entry<String, Integer> word : entry.words.entrySet ()){
+            List<int[]> list = postings.get (word.getKey ());
+            if (list == null){
+               list = new ArrayList<int[]> ();
+               postings.put (word.getKey (), list);
+            }//end if
+            list.add (new int[] { i, word.getValue () });
+         }//end for
+      }//end for
+
+      this._words = postings.keySet ().toArray (new String[0]);
+      this._postings = new int[this._words.length][];
+      this._weights = new int[this._words.length][];
+      Map<String, List<Integer>> trigrams = new HashMap<String, List<Integer>> ();
+      int w = 0;
+      for (List<int[]> list : postings.values ()){
+         this._postings[w] = new int[list.size ()];
+         this._weights[w] = new int[list.size ()];
+         for (int k = 0; k < list.size (); ++k){
+            this._postings[w][k] = list.get (k)[0];
+            this._weights[w][k] = list.get (k)[1];
+         }//end for
+         for (String trigram : trigrams (this._words[w])){
+            List<Integer> words = trigrams.get (trigram);
+            if (words == null){
+               words = new ArrayList<Integer> ();
+               trigrams.put (trigram, words);
+            }//end if
+            words.add (w);
+         }//end for
+         ++w;
+      }//end for
+      this._trigrams = new HashMap<String, int[]> ();
+      for (Map.Entry<String, List<Integer>> trigram : trigrams.entrySet ()){
+         int[] words = new int[trigram.getValue ().size ()];
+         for (int k = 0; k < words.length; ++k)
+            words[k] = trigram.getValue ().get (k);
+         this._trigrams.put (trigram.getKey (), words);
+      }//end for
+   }//end MenuSearch
+
+   /**
+    * Searches the menu.
+    *
+    * @param query words to look for, in any order
+    * @param limit the most items returned
+    * @return the items every query word matches, best match first, empty for a query without words
+    */
+   public List<MenuCache.Item> search (String query, int limit) {
+      Set<String> terms = words (query);
+      if (terms.isEmpty ())
+         return Collections.<MenuCache.Item>emptyList ();
+
+      final double[] scores = new double[this._entries.length];
+      boolean[] matched = new boolean[this._entries.length];
+      Arrays.fill (matched, true);
+      for (String term : terms){
+         double[] best = new double[this._entries.length];
+
+         // exact and prefix: the run of words that start with the term
+         int from = Arrays.binarySearch (this._words, term);
+         for (int w = from >= 0 ? from : -from - 1; w < this._words.length && this._words[w].startsWith (term); ++w)
+            credit (w, this._words[w].length () == term.length () ? EXACT : PREFIX, best);
+
+         // typos: words sharing a trigram with the term, checked by edit distance
+         if (term.length () >= MIN_TYPO_LENGTH){
+            int allowed = term.length () >= TWO_TYPO_LENGTH ? 2 : 1;
+            Set<Integer> candidates = new LinkedHashSet<Integer> ();
+            for (String trigram : trigrams (term)){
+               int[] words = this._trigrams.get (trigram);
+               if (words != null)
+                  for (int word : words)
+                     candidates.add (word);
+            }//end for
+            for (int w : candidates){
+               String word = this._words[w];
+               int edits = Math.min (distance (term, word, allowed),
+                                     distance (term, word.substring (0, Math.min (word.length (), term.length ())), allowed));
+               if (edits > 0 && edits <= allowed)
+                  credit (w, edits == 1 ? ONE_TYPO : TWO_TYPOS, best);
+            }//end for
+         }//end if
+
+         for (int i = 0; i < scores.length; ++i){
+            matched[i] &= best[i] > 0;
+            scores[i] += best[i];
+         }//end for
+      }//end for
+
+      List<Integer> found = new ArrayList<Integer> ();
+      for (int i = 0; i < scores.length; ++i)
+         if (matched[i])
+            found.add (i);
+      final Entry[] entries = this._entries;
+      Collections.sort (found, new Comparator<Integer> () {
+         public int compare (Integer a, Integer b) {
+            int byScore = Double.compare (scores[b], scores[a]);
+            return byScore != 0 ? byScore : entries[a].item.name.compareToIgnoreCase (entries[b].item.name);
+         }
+      });
+      List<MenuCache.Item> items = new ArrayList<MenuCache.Item> ();
+      for (int k = 0; k < found.size () && k < limit; ++k)
+         items.add (this._entries[found.get (k)].item);
+      return items;
+   }//end search
+
+   /*****************************************************************************/
+
+   /**
+    * Credits every item a word appears in with a match of the given
+    * quality, keeping each item's best match of the current query word.
+    */
+   private void credit (int word, double quality, double[] best) {
+      int[] postings = this._postings[word];
+      int[] weights = this._weights[word];
+      for (int k = 0; k < postings.length; ++k)
+         best[postings[k]] = Math.max (best[postings[k]], quality * weights[k]);
+   }//end credit
+
+   private static Entry analyze (MenuCache.Item item) {
+      Map<String, Integer> words = new LinkedHashMap<String, Integer> ();
+      weigh (words, item.description, DESCRIPTION_WEIGHT);
+      weigh (words, item.type, TYPE_WEIGHT);
+      weigh (words, item.name, NAME_WEIGHT);
+      return new Entry (item, words);
+   }//end analyze
+
+   private static void weigh (Map<String, Integer> words, String text, int weight) {
+      for (String word : words (text)){
+         Integer known = words.get (word);
+         if (known == null || known < weight)
+            words.put (word, weight);
+      }//end for
+   }//end weigh
+
+   /**
+    * Splits text into lowercase words at everything but letters and digits.
+    */
+   static Set<String> words (String text) {
+      Set<String> words = new LinkedHashSet<String> ();
+      if (text == null)
+         return words;
+      for (String word : text.toLowerCase ().split ("[^\\p{L}\\p{N}]+"))
+         if (!word.isEmpty ())
+            words.add (word);
+      return words;
+   }//end words
+
+   /**
+    * The trigrams of a word, padded so that its first and last letters
+    * count as much as the others.
+    */
+   static Set<String> trigrams (String word) {
+      String padded = "  " + word + " ";
+      Set<String> trigrams = new LinkedHashSet<String> ();
+      for (int i = 0; i + 3 <= padded.length (); ++i)
+         trigrams.add (padded.substring (i, i + 3));
+      return trigrams;
+   }//end trigrams
+
+   /**
+    * Edit distance between two words, counting a swap of adjacent letters
+    * as one edit; anything beyond max is reported as max + 1.
+    */
+   static int distance (String a, String b, int max) {
+      if (Math.abs (a.length () - b.length ()) > max)
+         return max + 1;
+      int[] before = new int[b.length () + 1];
+      int[] previous = new int[b.length () + 1];
+      int[] current = new int[b.length () + 1];
+      for (int j = 0; j <= b.length (); ++j)
+         previous[j] = j;
+      for (int i = 1; i <= a.length (); ++i){
+         current[0] = i;
+         int rowMin = current[0];
+         for (int j = 1; j <= b.length (); ++j){
+            int cost = a.charAt (i - 1) == b.charAt (j - 1) ? 0 : 1;
+            int d = Math.min (Math.min (previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+            if (i > 1 && j > 1 && a.charAt (i - 1) == b.charAt (j - 2) && a.charAt (i - 2) == b.charAt (j - 1))
+               d = Math.min (d, before[j - 2] + 1);
+            current[j] = d;
+            rowMin = Math.min (rowMin, d);
+         }//end for
+         if (rowMin > max)
+            return max + 1;
+         int[] spare = before;
+         before = previous;
+         previous = current;
+         current = spare;
+      }//end for
+      return Math.min (previous[b.length ()], max + 1);
+   }//end distance
+
+}//end MenuSearch
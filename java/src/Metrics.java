@@ -0,0 +1,166 @@
+/*
+ * Runtime metrics for the Cafe application
+ * ========================================
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class collects where a process's time goes: a latency histogram
+ * per SQL statement shape and per Cafe operation, plus counters for rows
+ * fetched, round trips to the server and commits.  One instance belongs to
+ * each ConnectionPool and is shared by every session on it.
+ *
+ * Recording is off until setEnabled is called.  When it is on, recording
+ * takes a clock reading, a map lookup by the already hashed SQL string and
+ * a few lock-free increments; nothing is allocated except the first time a
+ * statement shape or operation is seen, so the numbers are not skewed by
+ * the garbage collector.
+ *
+ */
+public class Metrics {
+
+   /**
+    * Latency and rows for one statement shape or operation.
+    */
+   public static class Stat {
+      public final LatencyHistogram latency = new LatencyHistogram ();
+      public final LongAdder rows = new LongAdder ();
+   }//end Stat
+
+   private volatile boolean _enabled = false;
+
+   private final ConcurrentHashMap<String, Stat> _statements = new ConcurrentHashMap<String, Stat> ();
+   private final ConcurrentHashMap<String, Stat> _operations = new ConcurrentHashMap<String, Stat> ();
+
+   private final LongAdder _rowsFetched = new LongAdder ();
+   private final LongAdder _roundTrips = new LongAdder ();
+   private final LongAdder _commits = new LongAdder ();
+
+   public boolean isEnabled () {
+      return this._enabled;
+   }//end isEnabled
+
+   public void setEnabled (boolean enabled) {
+      this._enabled = enabled;
+   }//end setEnabled
+
+   /**
+    * Starts timing a statement or operation.
+    *
+    * @return the start time to pass back when recording, or 0 when disabled
+    */
+   public long start () {
+      return this._enabled ? System.nanoTime () : 0;
+   }//end start
+
+   /**
+    * Records one execution of a SQL statement.
+    *
+    * @param sql the statement's SQL text, which names its shape
+    * @param start the value start returned before it ran
+    * @param rows the rows it fetched, or 0 for an update
+    * @param roundTrips the round trips it took
+    */
+   public void statement (String sql, long start, int rows, int roundTrips) {
+      if (start == 0 || !this._enabled)
+         return;
+      Stat stat = stat (this._statements, sql);
+      stat.latency.record (System.nanoTime () - start);
+      if (rows > 0){
+         stat.rows.add (rows);
+         this._rowsFetched.add (rows);
+      }//end if
+      this._roundTrips.add (roundTrips);
+   }//end statement
+
+   /**
+    * Records one run of a Cafe operation.
+    *
+    * @param name the operation's name
+    * @param start the value start returned before it ran
+    */
+   public void operation (String name, long start) {
+      if (start == 0 || !this._enabled)
+         return;
+      stat (this._operations, name).latency.record (System.nanoTime () - start);
+   }//end operation
+
+   /**
+    * Counts a commit, which is also a round trip.
+    */
+   public void commit () {
+      if (!this._enabled)
+         return;
+      this._commits.increment ();
+      this._roundTrips.increment ();
+   }//end commit
+
+   /**
+    * Counts a round trip made outside a statement, e.g. a health check.
+    */
+   public void roundTrip () {
+      if (this._enabled)
+         this._roundTrips.increment ();
+   }//end roundTrip
+
+   private static Stat stat (ConcurrentHashMap<String, Stat> stats, String key) {
+      Stat stat = stats.get (key);
+      if (stat == null){
+         // first time this key is seen; later lookups find it
+         stat = new Stat ();
+         Stat raced = stats.putIfAbsent (key, stat);
+         if (raced != null)
+            stat = raced;
+      }//end if
+      return stat;
+   }//end stat
+
+   /**
+    * Writes every metric in the Prometheus text format, latencies in
+    * seconds.
+    *
+    * @param out where to write
+    * @throws java.io.IOException when writing failed
+    */
+   public void write (Writer out) throws IOException {
+      out.write ("# TYPE cafe_rows_fetched_total counter\n");
+      out.write ("cafe_rows_fetched_total " + this._rowsFetched.sum () + "\n");
+      out.write ("# TYPE cafe_round_trips_total counter\n");
+      out.write ("cafe_round_trips_total " + this._roundTrips.sum () + "\n");
+      out.write ("# TYPE cafe_commits_total counter\n");
+      out.write ("cafe_commits_total " + this._commits.sum () + "\n");
+      write (out, "cafe_statement", "sql", this._statements, true);
+      write (out, "cafe_operation", "operation", this._operations, false);
+      out.flush ();
+   }//end write
+
+   private static void write (Writer out, String metric, String label, Map<String, Stat> stats, boolean rows)
+      throws IOException {
+      out.write ("# TYPE " + metric + "_seconds summary\n");
+      // sorted, so successive snapshots line up
+      for (Map.Entry<String, Stat> e : new TreeMap<String, Stat> (stats).entrySet ()){
+         String key = label + "=\"" + escape (e.getKey ()) + "\"";
+         LatencyHistogram h = e.getValue ().latency;
+         for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 })
+            out.write (metric + "_seconds{" + key + ",quantile=\"" + q + "\"} " + h.getPercentile (q * 100) / 1e9 + "\n");
+         out.write (metric + "_seconds_max{" + key + "} " + h.getMax () / 1e9 + "\n");
+         out.write (metric + "_seconds_sum{" + key + "} " + h.getMean () * h.getCount () / 1e9 + "\n");
+         out.write (metric + "_seconds_count{" + key + "} " + h.getCount () + "\n");
+         if (rows)
+            out.write (metric + "_rows_total{" + key + "} " + e.getValue ().rows.sum () + "\n");
+      }//end for
+   }//end write
+
+   private static String escape (String value) {
+      return value.replace ("\\", "\\\\").replace ("\"", "\\\"").replace ("\n", "\\n");
+   }//end escape
+
+}//end Metrics
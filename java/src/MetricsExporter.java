@@ -0,0 +1,146 @@
+/*
+ * Metrics exporter for the Cafe application
+ * =========================================
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * This class publishes a Metrics instance outside the process, either by
+ * rewriting a local file every few seconds or by answering GET /metrics on
+ * a port bound to the loopback interface.  Both are configured with system
+ * properties, so any of the Cafe programs can be instrumented without new
+ * command line arguments:
+ *
+ *    -Dcafe.metrics.file=<path>       write a snapshot to this file
+ *    -Dcafe.metrics.interval=<sec>    seconds between file snapshots, 10 by default
+ *    -Dcafe.metrics.port=<port>       serve snapshots on 127.0.0.1:<port>/metrics
+ *
+ */
+public class MetricsExporter {
+
+   private final Metrics _metrics;
+   private Path _file = null;
+   private Thread _writer = null;
+   private HttpServer _server = null;
+
+   public MetricsExporter (Metrics metrics) {
+      this._metrics = metrics;
+   }//end MetricsExporter
+
+   /**
+    * Starts the exporters named by the cafe.metrics system properties and
+    * enables recording.
+    *
+    * @param metrics the metrics to publish
+    * @return the running exporter, or null when no property is set
+    * @throws java.io.IOException when the HTTP port could not be bound
+    */
+   public static MetricsExporter fromSystemProperties (Metrics metrics) throws IOException {
+      String file = System.getProperty ("cafe.metrics.file");
+      String port = System.getProperty ("cafe.metrics.port");
+      if (file == null && port == null)
+         return null;
+      MetricsExporter exporter = new MetricsExporter (metrics);
+      if (port != null)
+         exporter.serve (Integer.parseInt (port));
+      if (file != null)
+         exporter.writeTo (Paths.get (file), Long.parseLong (System.getProperty ("cafe.metrics.interval", "10")) * 1000);
+      metrics.setEnabled (true);
+      return exporter;
+   }//end fromSystemProperties
+
+   /**
+    * Serves the metrics on GET /metrics, on the loopback interface only.
+    *
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port could not be bound
+    */
+   public void serve (int port) throws IOException {
+      this._server = HttpServer.create (new InetSocketAddress (InetAddress.getLoopbackAddress (), port), 0);
+      this._server.createContext ("/metrics", new HttpHandler () {
+         public void handle (HttpExchange exchange) throws IOException {
+            byte[] body = snapshot ().getBytes (StandardCharsets.UTF_8);
+            exchange.getResponseHeaders ().set ("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders (200, body.length);
+            OutputStream out = exchange.getResponseBody ();
+            out.write (body);
+            out.close ();
+         }
+      });
+      this._server.start ();
+   }//end serve
+
+   /**
+    * Rewrites a file with the metrics every interval, and once more when
+    * stopped.  Each snapshot replaces the file whole, so a reader never
+    * sees a half written one.
+    *
+    * @param file the file to write
+    * @param interval milliseconds between snapshots
+    */
+   public void writeTo (Path file, final long interval) {
+      this._file = file;
+      this._writer = new Thread (new Runnable () {
+         public void run () {
+            try{
+               while (!Thread.currentThread ().isInterrupted ()){
+                  Thread.sleep (interval);
+                  writeFile ();
+               }//end while
+            }catch (InterruptedException e){
+               // stopped.
+            }//end try
+         }
+      }, "cafe-metrics-writer");
+      this._writer.setDaemon (true);
+      this._writer.start ();
+   }//end writeTo
+
+   /**
+    * Stops serving and writing, leaving a final snapshot in the file.
+    */
+   public void stop () {
+      if (this._server != null)
+         this._server.stop (0);
+      if (this._writer != null){
+         this._writer.interrupt ();
+         writeFile ();
+      }//end if
+   }//end stop
+
+   private String snapshot () throws IOException {
+      StringWriter out = new StringWriter ();
+      this._metrics.write (out);
+      return out.toString ();
+   }//end snapshot
+
+   private void writeFile () {
+      try{
+         Path tmp = this._file.resolveSibling (this._file.getFileName () + ".tmp");
+         try (Writer out = new OutputStreamWriter (Files.newOutputStream (tmp), StandardCharsets.UTF_8)){
+            this._metrics.write (out);
+         }//end try
+         Files.move (tmp, this._file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }catch (IOException e){
+         System.err.println ("Unable to write metrics: " + e.getMessage ());
+      }//end try
+   }//end writeFile
+
+}//end MetricsExporter
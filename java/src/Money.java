@@ -0,0 +1,112 @@
+/*
+ * Money helpers for the Cafe application
+ * ======================================
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class converts between amounts of money and whole cents held in a
+ * primitive long.  Keeping prices and totals in cents makes sums exact and
+ * avoids re-parsing and re-rounding a floating point value every time an
+ * amount is shown.  The database keeps money in numeric(10,2) columns, which
+ * read and bind from cents without going through a double.
+ *
+ */
+public final class Money {
+
+   // digits before the point a numeric(10,2) column holds
+   public static final int DOLLAR_DIGITS = 8;
+
+   private Money () {
+   }//end Money
+
+   /**
+    * Parses an amount typed by a user, such as "3", "3.5" or "$3.50".
+    *
+    * @param amount the amount in dollars
+    * @return the amount in cents, rounded half up
+    * @throws NumberFormatException when the amount is not a number
+    * @throws ArithmeticException when the amount does not fit in numeric(10,2)
+    */
+   public static long parse (String amount) {
+      String digits = amount.trim ();
+      if (digits.startsWith ("$"))
+         digits = digits.substring (1);
+      return fromDecimal (new BigDecimal (digits));
+   }//end parse
+
+   /**
+    * Converts an exact dollar amount, e.g. a JSON number, to cents.
+    *
+    * @param dollars the amount in dollars
+    * @return the amount in cents, rounded half up
+    * @throws ArithmeticException when the amount does not fit in numeric(10,2)
+    */
+   public static long fromDecimal (BigDecimal dollars) {
+      // checked on the precision and scale first: setScale would expand an
+      // amount such as 1e999999999 to all its digits, or divide 1e-999999999
+      // by a power of ten as large, before the range could be checked
+      long digits = (long) dollars.precision () - dollars.scale ();
+      if (digits > DOLLAR_DIGITS)
+         throw new ArithmeticException ("More than " + DOLLAR_DIGITS + " digits before the point");
+      if (digits < -2)
+         return 0;   // under a tenth of a cent
+      return dollars.setScale (2, RoundingMode.HALF_UP).unscaledValue ().longValueExact ();
+   }//end fromDecimal
+
+   /**
+    * Reads a numeric(10,2) column as cents.  The driver hands the value
+    * over as a BigDecimal, so the column is never turned into text and
+    * parsed back.
+    *
+    * @param rs the result set, on the row to read
+    * @param column the column index, starting at 1
+    * @return the amount in cents, or 0 when the column is null
+    * @throws java.sql.SQLException when the column could not be read
+    */
+   public static long read (ResultSet rs, int column) throws SQLException {
+      BigDecimal dollars = rs.getBigDecimal (column);
+      if (dollars == null)
+         return 0;
+      // a scale below 2, e.g. from an expression, still reads as cents
+      return fromDecimal (dollars);
+   }//end read
+
+   /**
+    * Converts cents for binding to a numeric column.
+    *
+    * @param cents the amount in cents
+    * @return the same amount, exactly
+    */
+   public static BigDecimal toNumeric (long cents) {
+      return BigDecimal.valueOf (cents, 2);
+   }//end toNumeric
+
+   /**
+    * Formats an amount with two decimal places and no currency sign, e.g. 350
+    * becomes "3.50".
+    *
+    * @param cents the amount in cents
+    * @return the formatted amount
+    */
+   public static String format (long cents) {
+      StringBuilder sb = new StringBuilder (12);
+      if (cents < 0){
+         sb.append ('-');
+         cents = -cents;
+      }//end if
+      long fraction = cents % 100;
+      sb.append (cents / 100).append ('.');
+      if (fraction < 10)
+         sb.append ('0');
+      sb.append (fraction);
+      return sb.toString ();
+   }//end format
+
+}//end Money
@@ -0,0 +1,163 @@
+/*
+ * LISTEN/NOTIFY listener for the Cafe application
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class holds one dedicated connection that LISTENs on a set of
+ * channels and hands every NOTIFY it receives to the handlers registered
+ * for that channel.  It runs on its own daemon thread and reconnects on its
+ * own when the connection drops.
+ *
+ */
+public class NotificationListener implements Runnable {
+
+   // milliseconds to block waiting for notifications before checking for shutdown
+   private static final int POLL_INTERVAL = 1000;
+
+   // longest pause between reconnect attempts, in milliseconds
+   private static final long MAX_BACKOFF = 30 * 1000;
+
+   /**
+    * Receives the notifications sent on one channel.
+    */
+   public interface Handler {
+      /**
+       * Called for every notification on the channel.  The payload is null
+       * after the listener (re)connects, since notifications sent while it
+       * was disconnected are lost and the handler has to resynchronize.
+       *
+       * @param payload the notification payload, or null to resynchronize
+       */
+      void notified (String payload);
+   }//end Handler
+
+   private final String _url;
+   private final Map<String, List<Handler>> _handlers = new LinkedHashMap<String, List<Handler>>();
+   private volatile boolean _running = false;
+   private Thread _thread = null;
+
+   /**
+    * Creates a new listener.  Nothing is opened until start is called.
+    *
+    * @param url the JDBC connection URL
+    */
+   public NotificationListener (String url) {
+      this._url = url;
+   }//end NotificationListener
+
+   /**
+    * Registers a handler for a channel.  Handlers must be registered before
+    * the listener is started.
+    *
+    * @param channel the channel name, in lower case letters and underscores
+    * @param handler the handler to call for each notification
+    */
+   public synchronized void listen (String channel, Handler handler) {
+      if (this._thread != null)
+         throw new IllegalStateException ("Listener already started");
+      if (!channel.matches ("[a-z_]+"))
+         throw new IllegalArgumentException ("Invalid channel name: " + channel);
+      List<Handler> handlers = this._handlers.get (channel);
+      if (handlers == null){
+         handlers = new ArrayList<Handler> ();
+         this._handlers.put (channel, handlers);
+      }//end if
+      handlers.add (handler);
+   }//end listen
+
+   /**
+    * Starts listening on a daemon thread.
+    */
+   public synchronized void start () {
+      this._running = true;
+      this._thread = new Thread (this, "cafe-notify-listener");
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end start
+
+   /**
+    * Stops listening and closes the connection.
+    */
+   public synchronized void stop () {
+      this._running = false;
+      if (this._thread != null)
+         this._thread.interrupt ();
+   }//end stop
+
+   public void run () {
+      long backoff = 1000;
+      while (this._running){
+         Connection conn = null;
+         try{
+            conn = DriverManager.getConnection (this._url);
+            Statement stmt = conn.createStatement ();
+            for (String channel : this._handlers.keySet ())
+               stmt.execute ("LISTEN " + channel);
+            stmt.close ();
+            backoff = 1000;
+
+            // anything sent before LISTEN took effect was missed
+            for (String channel : this._handlers.keySet ())
+               dispatch (channel, null);
+
+            PGConnection pg = conn.unwrap (PGConnection.class);
+            while (this._running){
+               PGNotification[] notifications = pg.getNotifications (POLL_INTERVAL);
+               if (notifications == null)
+                  continue;
+               for (PGNotification n : notifications)
+                  dispatch (n.getName (), n.getParameter ());
+            }//end while
+         }catch (SQLException e){
+            if (this._running)
+               System.err.println ("Notification listener: " + e.getMessage ());
+         }finally{
+            try{
+               if (conn != null)
+                  conn.close ();
+            }catch (SQLException e){
+               // ignored.
+            }//end try
+         }//end try
+
+         try{
+            if (this._running)
+               Thread.sleep (backoff);
+         }catch (InterruptedException e){
+            // stopped.
+         }//end try
+         backoff = Math.min (backoff * 2, MAX_BACKOFF);
+      }//end while
+   }//end run
+
+   private void dispatch (String channel, String payload) {
+      List<Handler> handlers = this._handlers.get (channel);
+      if (handlers == null)
+         return;
+      for (Handler handler : handlers){
+         try{
+            handler.notified (payload);
+         }catch (RuntimeException e){
+            System.err.println ("Notification handler for " + channel + ": " + e.getMessage ());
+         }//end try
+      }//end for
+   }//end dispatch
+
+}//end NotificationListener
@@ -0,0 +1,418 @@
+/*
+ * Order history exporter for the Cafe application
+ * ===============================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports the whole Orders and ItemStatus history for offline
+ * analysis.  The orderid range is split into parts, and each part is read
+ * by its own worker on its own pooled connection through a cursor, so only
+ * one batch of rows per worker is in memory however large the history is.
+ * Every part is written twice, straight to disk through file channels:
+ *
+ *   <table>-NNNNN.csv.gz     gzipped in the ';' delimited COPY text format
+ *                            of data/*.csv, so a part can be loaded back
+ *                            with COPY once unzipped
+ *   <table>-NNNNN.cafecol    the columnar format below
+ *
+ * The columnar file stores rows in groups of up to GROUP_ROWS, and within a
+ * group each column's values together, so a reader can pull one column
+ * without decoding the others.  All integers are big-endian.
+ *
+ *    file    := "CAFECOL1" int32:columnCount column* group* int32:0
+ *    column  := int16:nameLength utf8:name byte:type
+ *    group   := int32:rowCount (int32:byteLength nulls values)*   one per column
+ *    nulls   := (rowCount + 7) / 8 bytes, bit i set when row i is null
+ *    values  := one per row, nulls included as zero or empty:
+ *               INT32 4 bytes, INT64 8 bytes, FLOAT64 8 bytes, BOOL 1 byte,
+ *               TIMESTAMP int64 microseconds since the epoch,
+ *               STRING int32:length utf8,
+ *               CENTS int64 amount of money in cents
+ *
+ *    java -cp classes:$CLASSPATH OrderExport <dbname> <port> <out dir> [workers] [parts]
+ *
+ */
+public class OrderExport {
+
+   // rows per group in the columnar files, which also bounds a worker's buffers
+   public static final int GROUP_ROWS = 65536;
+
+   // file channel writes are made in blocks of this many bytes
+   private static final int IO_BUFFER = 256 * 1024;
+
+   private static final byte[] MAGIC = "CAFECOL1".getBytes (StandardCharsets.US_ASCII);
+
+   /**
+    * Column types of the columnar format.
+    */
+   enum Type {
+      INT32, INT64, FLOAT64, BOOL, TIMESTAMP, STRING, CENTS;
+
+      byte code () {
+         return (byte) ordinal ();
+      }//end code
+   }//end Type
+
+   /**
+    * One table to export: the query for an orderid range, and the name
+    * and type of each column it returns.
+    */
+   static class Table {
+      final String name;
+      final String query;
+      final String[] columns;
+      final Type[] types;
+
+      Table (String name, String query, String[] columns, Type[] types) {
+         this.name = name;
+         this.query = query;
+         this.columns = columns;
+         this.types = types;
+      }//end Table
+   }//end Table
+
+   static final Table[] TABLES = {
+      new Table ("orders",
+         "SELECT orderid, login, paid, timeStampRecieved, total FROM Orders WHERE orderid BETWEEN ? AND ? ORDER BY orderid",
+         new String[] { "orderid", "login", "paid", "timeStampRecieved", "total" },
+         new Type[] { Type.INT32, Type.STRING, Type.BOOL, Type.TIMESTAMP, Type.CENTS }),
+      new Table ("itemStatus",
+         "SELECT orderid, itemName, lastUpdated, status, comments FROM ItemStatus WHERE orderid BETWEEN ? AND ? ORDER BY orderid",
+         new String[] { "orderid", "itemName", "lastUpdated", "status", "comments" },
+         new Type[] { Type.INT32, Type.STRING, Type.TIMESTAMP, Type.STRING, Type.STRING })
+   };
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            OrderExport.class.getName () +
+            " <dbname> <port> <out dir> [workers] [parts]");
+         return;
+      }//end if
+      final Path dir = Paths.get (args[2]);
+      int workers = args.length > 3 ? Integer.parseInt (args[3]) : 4;
+      int parts = args.length > 4 ? Integer.parseInt (args[4]) : workers * 4;
+      Files.createDirectories (dir);
+
+      Class.forName ("org.postgresql.Driver");
+      final ConnectionPool pool = new ConnectionPool (Cafe.connectionUrl (args[0], args[1]), workers, 0, 0, 60 * 1000);
+      ExecutorService executor = Executors.newFixedThreadPool (workers);
+      try{
+         long[][] bounds = session (pool).queryLongColumns ("SELECT min(orderid), max(orderid), count(*) FROM Orders", 0);
+         if (bounds[2][0] == 0){
+            System.out.println ("No orders to export");
+            return;
+         }//end if
+         long min = bounds[0][0];
+         long max = bounds[1][0];
+         long span = (max - min) / parts + 1;
+
+         long start = System.nanoTime ();
+         final AtomicLong rows = new AtomicLong ();
+         final AtomicLong bytes = new AtomicLong ();
+         List<Future<?>> futures = new ArrayList<Future<?>> ();
+         int part = 0;
+         for (long from = min; from <= max; from += span, ++part){
+            final long lo = from;
+            final long hi = Math.min (max, from + span - 1);
+            final int n = part;
+            for (final Table table : TABLES)
+               futures.add (executor.submit (new Callable<Void> () {
+                  public Void call () throws Exception {
+                     String stem = String.format ("%s-%05d", table.name, n);
+                     rows.addAndGet (exportRange (session (pool), table, (int) lo, (int) hi,
+                                                  dir.resolve (stem + ".csv.gz"), dir.resolve (stem + ".cafecol")));
+                     bytes.addAndGet (Files.size (dir.resolve (stem + ".csv.gz")) + Files.size (dir.resolve (stem + ".cafecol")));
+                     return null;
+                  }
+               }));
+         }//end for
+         for (Future<?> f : futures)
+            f.get ();
+
+         double seconds = (System.nanoTime () - start) / 1e9;
+         System.out.println (String.format ("Exported %d rows in %d parts to %s: %.1f MB written in %.1f s (%.0f rows/s)",
+            rows.get (), part, dir, bytes.get () / 1e6, seconds, rows.get () / seconds));
+      }finally{
+         executor.shutdown ();
+         pool.close ();
+      }//end try
+   }//end main
+
+   static Cafe session (ConnectionPool pool) {
+      return new Cafe (pool, new MenuCache (), new SessionManager (), new KitchenQueue (), null,
+                       new BufferedReader (new StringReader ("")),
+                       new PrintStream (OutputStream.nullOutputStream ()));
+   }//end session
+
+   /**
+    * Streams one orderid range of a table into a gzipped CSV file and a
+    * columnar file.
+    *
+    * @return the number of rows exported
+    */
+   static long exportRange (Cafe esql, final Table table, int from, int to, Path csvFile, Path colFile)
+      throws SQLException, IOException {
+      try (FileChannel csvChannel = FileChannel.open (csvFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+           FileChannel colChannel = FileChannel.open (colFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+           Writer csv = new OutputStreamWriter (new BufferedOutputStream (
+              new GZIPOutputStream (Channels.newOutputStream (csvChannel), IO_BUFFER), IO_BUFFER), StandardCharsets.UTF_8)){
+
+         final ColumnarWriter columnar = new ColumnarWriter (colChannel, table);
+         final Writer out = csv;
+         int rows;
+         try{
+            rows = esql.forEachRow (table.query, Cafe.STREAM_FETCH_SIZE, new Cafe.RowHandler () {
+               public void handle (ResultSet rs) throws SQLException {
+                  try{
+                     for (int i = 0; i < table.types.length; ++i){
+                        if (i > 0)
+                           out.write (';');
+                        columnar.add (i, rs, i + 1, out);
+                     }//end for
+                     out.write ('\n');
+                     columnar.endRow ();
+                  }catch (IOException e){
+                     // stops the cursor; unwrapped below
+                     throw new SQLException ("Failed to write " + table.name, e);
+                  }//end try
+               }
+            }, from, to);
+         }catch (SQLException e){
+            if (e.getCause () instanceof IOException)
+               throw (IOException) e.getCause ();
+            throw e;
+         }//end try
+         columnar.finish ();
+         return rows;
+      }//end try
+   }//end exportRange
+
+   /**
+    * Writes the columnar format, buffering one group of rows at a time.
+    */
+   static class ColumnarWriter {
+      private final FileChannel _channel;
+      private final Type[] _types;
+      private final ByteBuffer[] _values;
+      private final byte[][] _nulls;
+      private final ByteBuffer _io = ByteBuffer.allocateDirect (IO_BUFFER);
+      private int _rows = 0;
+
+      ColumnarWriter (FileChannel channel, Table table) throws IOException {
+         this._channel = channel;
+         this._types = table.types;
+         this._values = new ByteBuffer[this._types.length];
+         this._nulls = new byte[this._types.length][(GROUP_ROWS + 7) / 8];
+         for (int i = 0; i < this._types.length; ++i)
+            this._values[i] = ByteBuffer.allocate (GROUP_ROWS * 8);
+
+         put (MAGIC);
+         putInt (this._types.length);
+         for (int i = 0; i < this._types.length; ++i){
+            byte[] name = table.columns[i].getBytes (StandardCharsets.UTF_8);
+            putShort ((short) name.length);
+            put (name);
+            put (new byte[] { this._types[i].code () });
+         }//end for
+      }//end ColumnarWriter
+
+      /**
+       * Reads one value of the current row, appends it to its column and
+       * writes it to the CSV in COPY text format.
+       */
+      void add (int column, ResultSet rs, int index, Writer csv) throws SQLException, IOException {
+         boolean isNull;
+         switch (this._types[column]){
+            case INT32: {
+               int v = rs.getInt (index);
+               isNull = rs.wasNull ();
+               room (column, 4).putInt (v);
+               if (!isNull)
+                  csv.write (Integer.toString (v));
+               break;
+            }
+            case INT64: {
+               long v = rs.getLong (index);
+               isNull = rs.wasNull ();
+               room (column, 8).putLong (v);
+               if (!isNull)
+                  csv.write (Long.toString (v));
+               break;
+            }
+            case FLOAT64: {
+               double v = rs.getDouble (index);
+               isNull = rs.wasNull ();
+               room (column, 8).putDouble (v);
+               if (!isNull)
+                  csv.write (Double.toString (v));
+               break;
+            }
+            case CENTS: {
+               String text = rs.getString (index);
+               isNull = text == null;
+               room (column, 8).putLong (isNull ? 0 : Money.read (rs, index));
+               if (!isNull)
+                  csv.write (text);
+               break;
+            }
+            case BOOL: {
+               boolean v = rs.getBoolean (index);
+               isNull = rs.wasNull ();
+               room (column, 1).put ((byte) (v ? 1 : 0));
+               if (!isNull)
+                  csv.write (v ? "t" : "f");
+               break;
+            }
+            case TIMESTAMP: {
+               Timestamp v = rs.getTimestamp (index);
+               isNull = v == null;
+               room (column, 8).putLong (isNull ? 0 : Math.floorDiv (v.getTime (), 1000) * 1000000 + v.getNanos () / 1000);
+               if (!isNull)
+                  csv.write (v.toString ());
+               break;
+            }
+            default: {
+               String v = rs.getString (index);
+               isNull = v == null;
+               byte[] utf8 = isNull ? new byte[0] : v.getBytes (StandardCharsets.UTF_8);
+               room (column, 4 + utf8.length).putInt (utf8.length).put (utf8);
+               if (!isNull)
+                  escape (v, csv);
+               break;
+            }
+         }//end switch
+         if (isNull){
+            this._nulls[column][this._rows >>> 3] |= (byte) (1 << (this._rows & 7));
+            csv.write ("\\N");
+         }//end if
+      }//end add
+
+      void endRow () throws IOException {
+         if (++this._rows == GROUP_ROWS)
+            flushGroup ();
+      }//end endRow
+
+      void finish () throws IOException {
+         if (this._rows > 0)
+            flushGroup ();
+         putInt (0);
+         drain ();
+      }//end finish
+
+      private ByteBuffer room (int column, int bytes) {
+         ByteBuffer values = this._values[column];
+         if (values.remaining () < bytes){
+            ByteBuffer bigger = ByteBuffer.allocate (Math.max (values.capacity () * 2, values.position () + bytes));
+            values.flip ();
+            bigger.put (values);
+            this._values[column] = values = bigger;
+         }//end if
+         return values;
+      }//end room
+
+      private void flushGroup () throws IOException {
+         int nullBytes = (this._rows + 7) / 8;
+         putInt (this._rows);
+         for (int i = 0; i < this._types.length; ++i){
+            ByteBuffer values = this._values[i];
+            values.flip ();
+            putInt (nullBytes + values.remaining ());
+            put (this._nulls[i], nullBytes);
+            drain ();
+            while (values.hasRemaining ())
+               this._channel.write (values);
+            values.clear ();
+            Arrays.fill (this._nulls[i], (byte) 0);
+         }//end for
+         this._rows = 0;
+      }//end flushGroup
+
+      private void put (byte[] bytes) throws IOException {
+         put (bytes, bytes.length);
+      }//end put
+
+      private void put (byte[] bytes, int length) throws IOException {
+         int off = 0;
+         while (off < length){
+            if (!this._io.hasRemaining ())
+               drain ();
+            int n = Math.min (length - off, this._io.remaining ());
+            this._io.put (bytes, off, n);
+            off += n;
+         }//end while
+      }//end put
+
+      private void putInt (int v) throws IOException {
+         if (this._io.remaining () < 4)
+            drain ();
+         this._io.putInt (v);
+      }//end putInt
+
+      private void putShort (short v) throws IOException {
+         if (this._io.remaining () < 2)
+            drain ();
+         this._io.putShort (v);
+      }//end putShort
+
+      private void drain () throws IOException {
+         this._io.flip ();
+         while (this._io.hasRemaining ())
+            this._channel.write (this._io);
+         this._io.clear ();
+      }//end drain
+   }//end ColumnarWriter
+
+   /**
+    * Writes a text value in COPY text format with ';' as the delimiter.
+    */
+   private static void escape (String s, Writer out) throws IOException {
+      for (int i = 0; i < s.length (); ++i){
+         char c = s.charAt (i);
+         switch (c){
+            case '\\': out.write ("\\\\"); break;
+            case ';': out.write ("\\;"); break;
+            case '\n': out.write ("\\n"); break;
+            case '\r': out.write ("\\r"); break;
+            case '\t': out.write ("\\t"); break;
+            default: out.write (c);
+         }//end switch
+      }//end for
+   }//end escape
+
+}//end OrderExport
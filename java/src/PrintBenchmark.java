@@ -0,0 +1,118 @@
+/*
+ * Result printing benchmark for the Cafe application
+ * ==================================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class measures how fast query results can be printed, comparing the
+ * original per-cell System.out.print loop of executeQueryAndPrintResult with
+ * ResultFormatter in each of its layouts.  Both print an ItemStatus listing
+ * to an autoflushing PrintStream that discards its bytes, so the numbers
+ * show the cost of the printing path itself rather than the terminal's.
+ *
+ *    java -cp classes:$CLASSPATH PrintBenchmark <dbname> <port> [rows] [iterations]
+ *
+ */
+public class PrintBenchmark {
+
+   public static void main (String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PrintBenchmark.class.getName () +
+            " <dbname> <port> [rows] [iterations]");
+         return;
+      }//end if
+      int rows = args.length > 2 ? Integer.parseInt (args[2]) : 100000;
+      int iterations = args.length > 3 ? Integer.parseInt (args[3]) : 20;
+
+      Class.forName ("org.postgresql.Driver");
+      Connection conn = DriverManager.getConnection (Cafe.connectionUrl (args[0], args[1]));
+      PreparedStatement stmt = conn.prepareStatement ("SELECT * FROM ItemStatus LIMIT ?");
+      stmt.setInt (1, rows);
+
+      PrintStream sink = new PrintStream (OutputStream.nullOutputStream (), true);
+      System.out.println (String.format ("%-10s %12s %12s", "path", "rows/s", "ms/run"));
+
+      // first pass warms up the JIT, second is measured
+      for (int pass = 0; pass < 2; ++pass){
+         boolean report = pass == 1;
+         run ("legacy", stmt, iterations, report, new Printer () {
+            public int print (ResultSet rs) throws SQLException {
+               return legacyPrint (rs, sink);
+            }
+         });
+         for (final ResultFormatter.Format format : ResultFormatter.Format.values ()){
+            final ResultFormatter formatter = new ResultFormatter (sink, format);
+            run (format.name ().toLowerCase (), stmt, iterations, report, new Printer () {
+               public int print (ResultSet rs) throws SQLException, IOException {
+                  return formatter.print (rs);
+               }
+            });
+         }//end for
+      }//end for
+      stmt.close ();
+      conn.close ();
+   }//end main
+
+   private interface Printer {
+      int print (ResultSet rs) throws SQLException, IOException;
+   }//end Printer
+
+   private static void run (String name, PreparedStatement stmt, int iterations, boolean report, Printer printer)
+      throws SQLException, IOException {
+      long elapsed = 0;
+      long printed = 0;
+      for (int i = 0; i < iterations; ++i){
+         // the driver reads the whole result in executeQuery, so only printing is timed
+         ResultSet rs = stmt.executeQuery ();
+         long start = System.nanoTime ();
+         printed += printer.print (rs);
+         elapsed += System.nanoTime () - start;
+         rs.close ();
+      }//end for
+      if (report)
+         System.out.println (String.format ("%-10s %12.0f %12.2f", name,
+            printed / (elapsed / 1e9), elapsed / 1e6 / iterations));
+   }//end run
+
+   /**
+    * The printing loop executeQueryAndPrintResult used before ResultFormatter.
+    */
+   static int legacyPrint (ResultSet rs, PrintStream out) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+      int rowCount = 0;
+      boolean outputHeader = true;
+      while (rs.next ()){
+         if (outputHeader){
+            for (int i = 1; i <= numCol; i++){
+               out.print (rsmd.getColumnName (i) + "\t");
+            }
+            out.println ();
+            outputHeader = false;
+         }
+         for (int i = 1; i <= numCol; ++i)
+            out.print (rs.getString (i) + "\t");
+         out.println ();
+         ++rowCount;
+      }//end while
+      return rowCount;
+   }//end legacyPrint
+
+}//end PrintBenchmark
@@ -0,0 +1,179 @@
+/*
+ * Result set formatter for the Cafe application
+ * =============================================
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class prints a ResultSet through one large buffered writer.  Column
+ * names and widths are worked out once per result set, rows are written
+ * without building intermediate Strings, and the output is flushed once at
+ * the end rather than once per cell.
+ *
+ */
+public class ResultFormatter {
+
+   /**
+    * Output layouts.
+    */
+   public enum Format {
+      // columns padded to a common width, separated by two spaces
+      ALIGNED,
+      // tab separated values
+      TSV,
+      // comma separated values, quoted where needed
+      CSV
+   }//end Format
+
+   // characters buffered before a write reaches the underlying stream
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   // widest column the aligned layout pads to
+   private static final int MAX_WIDTH = 40;
+
+   private static final char[] SPACES = new char[MAX_WIDTH];
+   static {
+      java.util.Arrays.fill (SPACES, ' ');
+   }
+
+   private final Writer _out;
+   private final Format _format;
+
+   /**
+    * Creates a formatter writing to a stream.  The stream is never closed.
+    *
+    * @param out the stream to print to
+    * @param format the output layout
+    */
+   public ResultFormatter (OutputStream out, Format format) {
+      this._out = new BufferedWriter (new OutputStreamWriter (out, Charset.defaultCharset ()), BUFFER_SIZE);
+      this._format = format;
+   }//end ResultFormatter
+
+   /**
+    * Prints every remaining row of a result set, preceded by a header line
+    * when there is at least one row, and flushes once at the end.
+    *
+    * @param rs the result set to print
+    * @return the number of rows printed
+    * @throws java.sql.SQLException when reading the result set failed
+    * @throws java.io.IOException when writing failed
+    */
+   public int print (ResultSet rs) throws SQLException, IOException {
+      ResultSetMetaData rsmd = rs.getMetaData ();
+      int numCol = rsmd.getColumnCount ();
+
+      // headers and widths once per result set, not once per row
+      String[] names = new String[numCol];
+      int[] widths = new int[numCol];
+      boolean[] numeric = new boolean[numCol];
+      for (int i = 0; i < numCol; ++i){
+         names[i] = rsmd.getColumnName (i + 1);
+         widths[i] = Math.min (MAX_WIDTH, Math.max (names[i].length (), rsmd.getColumnDisplaySize (i + 1)));
+         numeric[i] = isNumeric (rsmd.getColumnType (i + 1));
+      }//end for
+
+      int rowCount = 0;
+      while (rs.next ()){
+         if (rowCount == 0)
+            writeRow (names, widths, null);
+         for (int i = 0; i < numCol; ++i){
+            if (i > 0)
+               separator ();
+            String value = rs.getString (i + 1);
+            cell (value, widths[i], numeric[i], i == numCol - 1);
+         }//end for
+         this._out.write ('\n');
+         ++rowCount;
+      }//end while
+      this._out.flush ();
+      return rowCount;
+   }//end print
+
+   private void writeRow (String[] values, int[] widths, boolean[] numeric) throws IOException {
+      for (int i = 0; i < values.length; ++i){
+         if (i > 0)
+            separator ();
+         cell (values[i], widths[i], numeric != null && numeric[i], i == values.length - 1);
+      }//end for
+      this._out.write ('\n');
+   }//end writeRow
+
+   private void separator () throws IOException {
+      switch (this._format){
+         case ALIGNED: this._out.write ("  "); break;
+         case TSV: this._out.write ('\t'); break;
+         case CSV: this._out.write (','); break;
+      }//end switch
+   }//end separator
+
+   private void cell (String value, int width, boolean rightAlign, boolean last) throws IOException {
+      switch (this._format){
+         case ALIGNED:
+            if (value == null)
+               value = "null";
+            int pad = width - value.length ();
+            if (rightAlign && pad > 0)
+               this._out.write (SPACES, 0, pad);
+            this._out.write (value);
+            // no trailing blanks after the last column
+            if (!rightAlign && pad > 0 && !last)
+               this._out.write (SPACES, 0, pad);
+            break;
+         case TSV:
+            this._out.write (value == null ? "null" : value);
+            break;
+         case CSV:
+            if (value != null)
+               csv (value);
+            break;
+      }//end switch
+   }//end cell
+
+   private void csv (String value) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < value.length () && !quote; ++i){
+         char c = value.charAt (i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }//end for
+      if (!quote){
+         this._out.write (value);
+         return;
+      }//end if
+      this._out.write ('"');
+      int start = 0;
+      for (int i = 0; i < value.length (); ++i){
+         if (value.charAt (i) == '"'){
+            this._out.write (value, start, i - start + 1);
+            this._out.write ('"');
+            start = i + 1;
+         }//end if
+      }//end for
+      this._out.write (value, start, value.length () - start);
+      this._out.write ('"');
+   }//end csv
+
+   private static boolean isNumeric (int sqlType) {
+      switch (sqlType){
+         case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+         case Types.NUMERIC: case Types.DECIMAL:
+            return true;
+         default:
+            return false;
+      }//end switch
+   }//end isNumeric
+
+}//end ResultFormatter
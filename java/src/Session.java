@@ -0,0 +1,50 @@
+/*
+ * Session state for the Cafe application
+ * ======================================
+ *
+ */
+
+
+/**
+ * This class holds the state of one terminal session: the logged in user
+ * and the role found for them by find_type.  Each Cafe instance owns its
+ * own Session, so several sessions can share one process.
+ *
+ */
+public class Session {
+
+   // login of the authorised user, or null when nobody is logged in
+   private String login = null;
+
+   // user type from the Users table, e.g. Customer, Employee or Manager
+   private String type = null;
+
+   public String getLogin () {
+      return this.login;
+   }//end getLogin
+
+   public void setLogin (String login) {
+      this.login = login;
+   }//end setLogin
+
+   public String getType () {
+      return this.type;
+   }//end getType
+
+   public void setType (String type) {
+      this.type = type;
+   }//end setType
+
+   public boolean isLoggedIn () {
+      return this.login != null;
+   }//end isLoggedIn
+
+   /**
+    * Clears the logged in user and role.
+    */
+   public void logOut () {
+      this.login = null;
+      this.type = null;
+   }//end logOut
+
+}//end Session
@@ -0,0 +1,297 @@
+/*
+ * Session manager for the Cafe application
+ * ========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class authenticates users and keeps what a session needs to know
+ * about them.  A login checks the credentials and fetches the role in one
+ * query, and the result is kept in a bounded LRU cache of user profiles, so
+ * repeated logins, e.g. a whole shift logging in at once, and role lookups
+ * after login are answered from memory.  Cached profiles expire after a
+ * while and are dropped as soon as the user's row changes, either through
+ * invalidate or through the user_changed trigger's NOTIFY on the cafe_users
+ * channel.
+ *
+ * It also hands out the opaque tokens the HTTP API identifies logged in
+ * clients by; a token expires once it has been idle too long.
+ *
+ */
+public class SessionManager implements NotificationListener.Handler {
+
+   // channel the Users trigger notifies on, with the changed login as payload
+   public static final String CHANNEL = "cafe_users";
+
+   // default bounds: profiles cached, profile lifetime, tokens kept, token idle time
+   public static final int DEFAULT_MAX_PROFILES = 10000;
+   public static final long DEFAULT_PROFILE_TTL = 5 * 60 * 1000;
+   public static final int DEFAULT_MAX_TOKENS = 100000;
+   public static final long DEFAULT_TOKEN_IDLE = 30 * 60 * 1000;
+
+   /**
+    * What is known about one user.
+    */
+   public static class Profile {
+      public final String login;
+      // user type from the Users table, e.g. Customer, Employee or Manager
+      public final String type;
+      public final String phoneNum;
+
+      // salted digest of the password that last logged in, null if loaded without one
+      private final byte[] _credential;
+      private final long _loadedAt;
+
+      Profile (String login, String type, String phoneNum, byte[] credential, long loadedAt) {
+         this.login = login;
+         this.type = type;
+         this.phoneNum = phoneNum;
+         this._credential = credential;
+         this._loadedAt = loadedAt;
+      }//end Profile
+   }//end Profile
+
+   /**
+    * A LinkedHashMap in access order that drops its least recently used
+    * entry beyond a maximum size.
+    */
+   private static class Lru<K, V> extends LinkedHashMap<K, V> {
+      private static final long serialVersionUID = 1L;
+
+      private final int _max;
+
+      Lru (int max) {
+         super (16, 0.75f, true);
+         this._max = max;
+      }//end Lru
+
+      protected boolean removeEldestEntry (Map.Entry<K, V> eldest) {
+         return size () > this._max;
+      }//end removeEldestEntry
+   }//end Lru
+
+   /**
+    * A token's login and when it was last used.
+    */
+   private static class Token {
+      final String login;
+      long lastUsed;
+
+      Token (String login, long lastUsed) {
+         this.login = login;
+         this.lastUsed = lastUsed;
+      }//end Token
+   }//end Token
+
+   private final long _profileTtl;
+   private final long _tokenIdle;
+
+   // guarded by this
+   private final Lru<String, Profile> _profiles;
+   private final Lru<String, Token> _tokens;
+
+   // bumped on every invalidation, so a load that raced one is not kept
+   private long _generation = 0;
+
+   // salt for the cached password digests, new for every process
+   private final byte[] _salt = new byte[16];
+   private final SecureRandom _random = new SecureRandom ();
+
+   public SessionManager () {
+      this (DEFAULT_MAX_PROFILES, DEFAULT_PROFILE_TTL, DEFAULT_MAX_TOKENS, DEFAULT_TOKEN_IDLE);
+   }//end SessionManager
+
+   /**
+    * @param maxProfiles the most user profiles kept
+    * @param profileTtl milliseconds a profile is trusted before it is reloaded
+    * @param maxTokens the most tokens kept; the least recently used are dropped
+    * @param tokenIdle milliseconds a token lasts without being used
+    */
+   public SessionManager (int maxProfiles, long profileTtl, int maxTokens, long tokenIdle) {
+      this._profiles = new Lru<String, Profile> (maxProfiles);
+      this._tokens = new Lru<String, Token> (maxTokens);
+      this._profileTtl = profileTtl;
+      this._tokenIdle = tokenIdle;
+      this._random.nextBytes (this._salt);
+   }//end SessionManager
+
+   /**
+    * Checks a login and password.  A password that matches the cached
+    * profile is accepted without a query; otherwise one query checks the
+    * password and fetches the role together.
+    *
+    * @param esql the session to query through
+    * @param login the login typed by the user
+    * @param password the password typed by the user
+    * @return the user's profile, or null when the credentials do not match
+    * @throws java.sql.SQLException when the query failed
+    */
+   public Profile authenticate (Cafe esql, String login, String password) throws SQLException {
+      // the trimmed login is the one looked up, cached and handed on
+      String key = login.trim ();
+      byte[] credential = digest (password);
+      Profile cached = cached (key);
+      if (cached != null && cached._credential != null && MessageDigest.isEqual (cached._credential, credential))
+         return cached;
+      // a different password may be a new one set elsewhere, so ask the database
+      return load (esql, key, "SELECT type, phoneNum FROM Users WHERE login = ? AND password = ?", credential, key, password);
+   }//end authenticate
+
+   /**
+    * Returns a user's profile, loading it if it is not cached.
+    *
+    * @param esql the session to query through
+    * @param login the user's login
+    * @return the profile, or null when there is no such user
+    * @throws java.sql.SQLException when the query failed
+    */
+   public Profile profile (Cafe esql, String login) throws SQLException {
+      String key = login.trim ();
+      Profile cached = cached (key);
+      if (cached != null)
+         return cached;
+      return load (esql, key, "SELECT type, phoneNum FROM Users WHERE login = ?", null, key);
+   }//end profile
+
+   private synchronized Profile cached (String key) {
+      Profile profile = this._profiles.get (key);
+      if (profile != null && System.currentTimeMillis () - profile._loadedAt >= this._profileTtl){
+         this._profiles.remove (key);
+         return null;
+      }//end if
+      return profile;
+   }//end cached
+
+   private Profile load (Cafe esql, final String key, String query, final byte[] credential, Object... params)
+      throws SQLException {
+      long generation;
+      synchronized (this){
+         generation = this._generation;
+      }//end synchronized
+
+      final Profile[] found = new Profile[1];
+      esql.forEachRow (query, 0, new Cafe.RowHandler () {
+         public void handle (ResultSet rs) throws SQLException {
+            found[0] = new Profile (key, rs.getString (1), rs.getString (2), credential, System.currentTimeMillis ());
+         }
+      }, params);
+
+      synchronized (this){
+         if (found[0] != null && this._generation == generation){
+            // keep a known good password when only the profile was reloaded
+            Profile previous = this._profiles.get (key);
+            if (credential == null && previous != null && previous._credential != null)
+               found[0] = new Profile (key, found[0].type, found[0].phoneNum, previous._credential, found[0]._loadedAt);
+            this._profiles.put (key, found[0]);
+         }//end if
+      }//end synchronized
+      return found[0];
+   }//end load
+
+   /**
+    * Drops a user's cached profile, after their row has changed.
+    *
+    * @param login the user's login
+    */
+   public synchronized void invalidate (String login) {
+      ++this._generation;
+      this._profiles.remove (login);
+   }//end invalidate
+
+   /**
+    * Drops a changed user's profile when another process changes their
+    * row, or every profile after the listener reconnects.
+    */
+   public void notified (String payload) {
+      if (payload == null || payload.isEmpty ()){
+         synchronized (this){
+            ++this._generation;
+            this._profiles.clear ();
+         }//end synchronized
+      }else
+         invalidate (payload);
+   }//end notified
+
+   /*****************************************************************************/
+
+   /**
+    * Opens a session for an authenticated user.
+    *
+    * @param login the user's login
+    * @return a new token naming the session
+    */
+   public String open (String login) {
+      byte[] bytes = new byte[32];
+      this._random.nextBytes (bytes);
+      String token = Base64.getUrlEncoder ().withoutPadding ().encodeToString (bytes);
+      synchronized (this){
+         this._tokens.put (token, new Token (login, System.currentTimeMillis ()));
+      }//end synchronized
+      return token;
+   }//end open
+
+   /**
+    * Looks up the session a token names, and counts this as a use of it.
+    *
+    * @param token the token open returned
+    * @return the session's login, or null when the token is unknown or expired
+    */
+   public synchronized String resolve (String token) {
+      Token t = this._tokens.get (token);
+      if (t == null)
+         return null;
+      long now = System.currentTimeMillis ();
+      if (now - t.lastUsed >= this._tokenIdle){
+         this._tokens.remove (token);
+         return null;
+      }//end if
+      t.lastUsed = now;
+      return t.login;
+   }//end resolve
+
+   /**
+    * Ends the session a token names.
+    *
+    * @param token the token open returned
+    */
+   public synchronized void close (String token) {
+      this._tokens.remove (token);
+   }//end close
+
+   /**
+    * Ends every session of a user, e.g. after their password changed.
+    *
+    * @param login the user's login
+    */
+   public synchronized void closeAll (String login) {
+      Iterator<Token> it = this._tokens.values ().iterator ();
+      while (it.hasNext ())
+         if (it.next ().login.equals (login))
+            it.remove ();
+   }//end closeAll
+
+   private byte[] digest (String password) {
+      try{
+         MessageDigest sha = MessageDigest.getInstance ("SHA-256");
+         sha.update (this._salt);
+         return sha.digest (password.getBytes (StandardCharsets.UTF_8));
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException (e);
+      }//end try
+   }//end digest
+
+}//end SessionManager
@@ -0,0 +1,435 @@
+/*
+ * Item status writer for the Cafe application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class takes item status changes off the employee's path.  A change
+ * is checked against the allowed transitions, queued and shown at once,
+ * and a writer thread commits everything queued over the last few
+ * milliseconds as one batch in one transaction.  There is one writer and
+ * it writes in the order the changes were made, so the changes to an order
+ * are never applied out of order.
+ *
+ * An item only ever moves forward:
+ *
+ *    order processing   ->  Preparing, Ready, Finished
+ *    Preparing          ->  Ready, Finished
+ *    Ready              ->  Finished
+ *
+ * and Finished is final.  Statuses are matched regardless of case and
+ * stored spelled as above.  An item whose status is none of these, e.g.
+ * one typed in before the transitions were enforced, may move to any of
+ * them but order processing.  The update only applies while the item
+ * still has the status the change was checked against, so a change that
+ * another session or process beat to the item fails instead of moving it
+ * backwards or applying twice.
+ *
+ * The status shown for an item is its last change made here, until the
+ * change has been committed long enough for the kitchen queue to have
+ * heard of it; then the kitchen queue's, and for an order no longer on the
+ * queue the database's.
+ *
+ */
+public class StatusWriter implements Runnable {
+
+   // milliseconds changes are gathered before they are committed together, set with -Dcafe.status.flush
+   public static final long FLUSH_INTERVAL = Long.getLong ("cafe.status.flush", 5);
+
+   // most changes committed in one batch
+   private static final int MAX_BATCH = 500;
+
+   // most changes waiting to be written before submit blocks, should the database fall behind
+   private static final int MAX_QUEUED = 10000;
+
+   // milliseconds a committed change is still shown from here, long
+   // enough for its NOTIFY to reach the kitchen queue
+   private static final long SHOWN_FOR = 5 * 1000;
+
+   // why a change whose update found no row was not saved
+   static final String CHANGED = "the item was changed or removed meanwhile";
+
+   public static final String ORDER_PROCESSING = "order processing";
+   public static final String PREPARING = "Preparing";
+   public static final String READY = "Ready";
+   public static final String FINISHED = "Finished";
+
+   // the statuses each status may move to, keyed by lower case
+   private static final Map<String, List<String>> TRANSITIONS = new HashMap<String, List<String>> ();
+   static {
+      TRANSITIONS.put (ORDER_PROCESSING, Arrays.asList (PREPARING, READY, FINISHED));
+      TRANSITIONS.put (PREPARING.toLowerCase (), Arrays.asList (READY, FINISHED));
+      TRANSITIONS.put (READY.toLowerCase (), Arrays.asList (FINISHED));
+      TRANSITIONS.put (FINISHED.toLowerCase (), Collections.<String>emptyList ());
+   }
+
+   // lastUpdated is when the item reached its status, which the item rollup times finishing by;
+   // the last parameter is the status the change was checked against, so a change made
+   // meanwhile by another session or process fails it instead of being overwritten
+   static final String UPDATE =
+      "UPDATE ItemStatus SET status = ?, lastUpdated = now()::timestamp " +
+      "WHERE orderid = ? AND timeStampRecieved = ? AND itemName = ? AND lower(status) = lower(?)";
+
+   /**
+    * One status change, shown from the time it is made until SHOWN_FOR
+    * after it is committed.
+    */
+   private static class Change {
+      final int oid;
+      final Timestamp placed;
+      final String itemName;
+      final String from;
+      final String status;
+      final long made = System.nanoTime ();
+      long committed = 0;
+      boolean failed = false;
+      String reason = null;
+
+      Change (int oid, Timestamp placed, String itemName, String from, String status) {
+         this.oid = oid;
+         this.placed = placed;
+         this.itemName = itemName;
+         this.from = from;
+         this.status = status;
+      }//end Change
+   }//end Change
+
+   // the writer's own session, used only by the writer thread
+   private final Cafe _esql;
+   private final KitchenQueue _kitchen;
+
+   // changes not yet written, oldest first, guarded by this
+   private final ArrayDeque<Change> _queue = new ArrayDeque<Change> ();
+
+   // the last change to each item still shown from here, guarded by this
+   private final Map<String, Change> _shown = new HashMap<String, Change> ();
+
+   private boolean _running = false;
+   private Thread _thread = null;
+
+   /**
+    * Creates a new writer.  Nothing is written until start is called.
+    *
+    * @param pool the pool the writer borrows its connections from
+    * @param kitchen the kitchen queue to read statuses from
+    */
+   public StatusWriter (ConnectionPool pool, KitchenQueue kitchen) {
+      this._esql = new Cafe (pool, new MenuCache (), new SessionManager (), kitchen, null,
+                             new BufferedReader (new StringReader ("")),
+                             new PrintStream (OutputStream.nullOutputStream ()));
+      this._kitchen = kitchen;
+   }//end StatusWriter
+
+   /**
+    * Starts writing on a daemon thread.
+    */
+   public synchronized void start () {
+      this._running = true;
+      this._thread = new Thread (this, "cafe-status-writer");
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end start
+
+   /**
+    * Stops taking changes and returns once those already queued are
+    * written.
+    */
+   public void stop () {
+      Thread thread;
+      synchronized (this){
+         this._running = false;
+         thread = this._thread;
+         notifyAll ();
+      }//end synchronized
+      try{
+         if (thread != null)
+            thread.join ();
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end stop
+
+   /**
+    * Queues a status change, which is shown at once and written within
+    * FLUSH_INTERVAL.
+    *
+    * @param esql the session to look the current status up through, if it is not known here
+    * @param oid the order
+    * @param itemName the item of the order
+    * @param status the new status
+    * @return the new status, spelled as stored
+    * @throws IllegalArgumentException when there is no such item or it may not move to the status
+    * @throws java.sql.SQLException when the current status could not be looked up
+    */
+   public String submit (Cafe esql, int oid, String itemName, String status) throws SQLException {
+      return queue (esql, oid, itemName, status).status;
+   }//end submit
+
+   /**
+    * Queues a status change like submit, and returns once it is written.
+    *
+    * @return the new status, spelled as stored
+    * @throws IllegalArgumentException when there is no such item or it may not move to the status
+    * @throws java.sql.SQLException when the current status could not be looked up, or the
+    *         change could not be written, e.g. because the item was changed meanwhile
+    */
+   public String submitAndWait (Cafe esql, int oid, String itemName, String status) throws SQLException {
+      Change change = queue (esql, oid, itemName, status);
+      synchronized (this){
+         try{
+            // the writer drains the queue before it stops, so every change gets an outcome
+            while (change.committed == 0)
+               wait ();
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new IllegalStateException ("Interrupted while waiting for a status change to be written");
+         }//end try
+      }//end synchronized
+      if (change.failed)
+         throw new SQLException ("Status of " + itemName + " on order " + oid + " not saved: " + change.reason,
+                                 Cafe.EDIT_CONFLICT);
+      return change.status;
+   }//end submitAndWait
+
+   private Change queue (Cafe esql, int oid, String itemName, String status) throws SQLException {
+      String key = key (oid, itemName);
+      // the order's month, which the write is limited to
+      Timestamp placed = Cafe.OrderPlaced (esql, oid);
+      String current;
+      synchronized (this){
+         Change shown = this._shown.get (key);
+         current = shown == null ? null : shown.status;
+      }//end synchronized
+      if (current == null && placed != null)
+         current = stored (esql, this._kitchen, oid, placed, itemName);
+
+      synchronized (this){
+         try{
+            while (this._queue.size () >= MAX_QUEUED && this._running)
+               wait ();
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new IllegalStateException ("Interrupted while waiting to queue a status change");
+         }//end try
+         if (!this._running)
+            throw new IllegalStateException ("Status writer is stopped");
+         // another session may have changed the item while the status was looked up
+         Change shown = this._shown.get (key);
+         String from = shown == null ? current : shown.status;
+         Change change = new Change (oid, placed, itemName, from, transition (from, status, oid, itemName));
+         this._shown.put (key, change);
+         this._queue.add (change);
+         notifyAll ();
+         return change;
+      }//end synchronized
+   }//end queue
+
+   /**
+    * Returns the status of an item, including the changes not yet written.
+    *
+    * @param esql the session to look the status up through, if it is not known here
+    * @param oid the order
+    * @param itemName the item of the order
+    * @return the item's status, or null when there is no such item
+    * @throws java.sql.SQLException when the status could not be looked up
+    */
+   public String status (Cafe esql, int oid, String itemName) throws SQLException {
+      String shown = shown (oid, itemName);
+      if (shown != null)
+         return shown;
+      Timestamp placed = Cafe.OrderPlaced (esql, oid);
+      return placed == null ? null : stored (esql, this._kitchen, oid, placed, itemName);
+   }//end status
+
+   /**
+    * Returns the status of an item if it was changed here recently, without
+    * looking anywhere else.
+    *
+    * @return the item's latest status, or null when it was not changed recently
+    */
+   public synchronized String shown (int oid, String itemName) {
+      Change shown = this._shown.get (key (oid, itemName));
+      return shown == null ? null : shown.status;
+   }//end shown
+
+   /**
+    * Returns the status of an item as last written, from the kitchen queue
+    * for an open order it holds and from the database otherwise.
+    *
+    * @param placed when the order was placed, see Cafe.OrderPlaced
+    * @return the item's status, or null when there is no such item
+    * @throws java.sql.SQLException when the status could not be looked up
+    */
+   public static String stored (Cafe esql, KitchenQueue kitchen, int oid, Timestamp placed, String itemName)
+      throws SQLException {
+      KitchenQueue.Order order = kitchen.held (oid);
+      if (order != null)
+         for (KitchenQueue.Item item : order.items)
+            if (item.name.equals (itemName))
+               return item.status;
+      // an item added a moment ago may not have reached the queue yet
+      List<List<String>> rows = esql.executeQueryAndReturnResult (
+         "SELECT status FROM ItemStatus WHERE orderid = ? AND timeStampRecieved = ? AND itemName = ?", oid, placed, itemName);
+      return rows.isEmpty () ? null : rows.get (0).get (0);
+   }//end stored
+
+   /**
+    * Returns the statuses an item may move to.
+    *
+    * @param current the item's status
+    * @return the allowed next statuses, spelled as stored
+    */
+   public static List<String> next (String current) {
+      List<String> next = TRANSITIONS.get (current.toLowerCase ());
+      if (next != null)
+         return next;
+      return Arrays.asList (PREPARING, READY, FINISHED);
+   }//end next
+
+   /**
+    * Checks a status change against the allowed transitions.
+    *
+    * @param current the item's status, or null when there is no such item
+    * @param status the new status, in any case
+    * @param oid the order, for the error message
+    * @param itemName the item, for the error message
+    * @return the new status, spelled as stored
+    * @throws IllegalArgumentException when there is no such item or it may not move to the status
+    */
+   public static String transition (String current, String status, int oid, String itemName) {
+      if (current == null)
+         throw new IllegalArgumentException ("No item " + itemName + " on order " + oid);
+      String wanted = status == null ? "" : status.trim ();
+      for (String next : next (current))
+         if (next.equalsIgnoreCase (wanted))
+            return next;
+      List<String> allowed = next (current);
+      throw new IllegalArgumentException ("Cannot change " + itemName + " from " + current + " to " + wanted
+         + (allowed.isEmpty () ? "; it is final" : "; it may become " + String.join (", ", allowed)));
+   }//end transition
+
+   /*****************************************************************************/
+
+   public void run () {
+      List<Change> batch = new ArrayList<Change> ();
+      while (true){
+         synchronized (this){
+            try{
+               // gather the interval's changes, or as many as fit in a batch
+               while (this._running && (this._queue.isEmpty () || !due ()))
+                  wait (this._queue.isEmpty () ? 0 : Math.max (1, FLUSH_INTERVAL - age (this._queue.peek ())));
+            }catch (InterruptedException e){
+               this._running = false;
+            }//end try
+            if (this._queue.isEmpty () && !this._running)
+               return;
+            while (!this._queue.isEmpty () && batch.size () < MAX_BATCH)
+               batch.add (this._queue.poll ());
+            notifyAll ();
+         }//end synchronized
+
+         write (batch);
+
+         synchronized (this){
+            long now = System.nanoTime ();
+            for (Change change : batch){
+               change.committed = now;
+               // a failed change is not shown, unless a later one replaced it
+               if (change.failed && this._shown.get (key (change.oid, change.itemName)) == change)
+                  this._shown.remove (key (change.oid, change.itemName));
+            }//end for
+            Iterator<Change> it = this._shown.values ().iterator ();
+            while (it.hasNext ()){
+               Change shown = it.next ();
+               if (shown.committed != 0 && (now - shown.committed) / 1000000 > SHOWN_FOR)
+                  it.remove ();
+            }//end while
+            // wakes submitAndWait
+            notifyAll ();
+         }//end synchronized
+         batch.clear ();
+      }//end while
+   }//end run
+
+   /**
+    * Writes a batch in one transaction.  Should that fail, the changes are
+    * written one at a time so that one bad change does not lose the rest.
+    */
+   private void write (List<Change> batch) {
+      long start = this._esql.metrics.start ();
+      List<Object[]> rows = new ArrayList<Object[]> (batch.size ());
+      for (Change change : batch)
+         rows.add (new Object[] { change.status, change.oid, change.placed, change.itemName, change.from });
+      try{
+         this._esql.beginTransaction ();
+         try{
+            int[] counts = this._esql.executeBatch (UPDATE, rows);
+            this._esql.commit ();
+            for (int i = 0; i < batch.size (); ++i)
+               updated (batch.get (i), counts[i]);
+         }finally{
+            // no-op once the commit has gone through
+            this._esql.rollback ();
+         }//end try
+      }catch (SQLException e){
+         for (Change change : batch){
+            try{
+               updated (change, this._esql.executeUpdate (UPDATE, change.status, change.oid, change.placed,
+                                                          change.itemName, change.from));
+            }catch (SQLException e2){
+               failed (change, e2.getMessage ());
+            }//end try
+         }//end for
+      }//end try
+      this._esql.metrics.operation ("StatusWriter.flush", start);
+   }//end write
+
+   /**
+    * Fails a change whose update found no row, because the item was
+    * removed, swapped or given another status after the change was
+    * queued.  The driver may report SUCCESS_NO_INFO for a batched
+    * statement, which is taken as written.
+    */
+   private static void updated (Change change, int count) {
+      if (count == 0)
+         failed (change, CHANGED);
+   }//end updated
+
+   private static void failed (Change change, String reason) {
+      change.failed = true;
+      change.reason = reason;
+      System.err.println ("Status of " + change.itemName + " on order " + change.oid + " not saved: " + reason);
+   }//end failed
+
+   private boolean due () {
+      return this._queue.size () >= MAX_BATCH || age (this._queue.peek ()) >= FLUSH_INTERVAL;
+   }//end due
+
+   private static long age (Change change) {
+      return (System.nanoTime () - change.made) / 1000000;
+   }//end age
+
+   private static String key (int oid, String itemName) {
+      return oid + "\n" + itemName;
+   }//end key
+
+}//end StatusWriter
@@ -0,0 +1,110 @@
+/*
+ * Kitchen queue test for the Cafe application
+ * ===========================================
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This program checks that the kitchen queue follows an item swapped for
+ * another.  It places an order of two menu items for a customer, swaps
+ * the first for a third item, and waits for the queue to list the third
+ * and second items and nothing else; then it cancels the order.  It needs
+ * a database loaded with data/, and exits with 1 when the check fails.
+ *
+ *    java KitchenQueueTest <dbname> <port>
+ *
+ */
+public class KitchenQueueTest {
+
+   // milliseconds to wait for the notifications to reach the queue
+   private static final long TIMEOUT = 10 * 1000;
+
+   public static void main (String[] args) throws Exception {
+      if (args.length != 2){
+         System.err.println ("Usage: java [-classpath <classpath>] " + KitchenQueueTest.class.getName () + " <dbname> <port>");
+         System.exit (2);
+      }//end if
+
+      Class.forName ("org.postgresql.Driver");
+      String url = Cafe.connectionUrl (args[0], args[1]);
+      ConnectionPool pool = new ConnectionPool (url, 2, 0, 0, 30 * 1000);
+      MenuCache menu = new MenuCache ();
+      SessionManager sessions = new SessionManager ();
+      KitchenQueue kitchen = new KitchenQueue ();
+      NotificationListener listener = Cafe.startListener (url, menu, sessions, kitchen);
+      Cafe esql = new Cafe (pool, menu, sessions, kitchen, null, new BufferedReader (new StringReader ("")),
+                            new PrintStream (OutputStream.nullOutputStream ()));
+      int oid = -1;
+      int version = 0;
+      boolean passed = false;
+      try{
+         List<MenuCache.Item> items = menu.get (esql).items;
+         List<List<String>> customers = esql.executeQueryAndReturnResult (
+            "SELECT login FROM Users WHERE type = 'Customer' LIMIT 1");
+         if (items.size () < 3 || customers.isEmpty ())
+            throw new SQLException ("Not enough menu items or customers; load data/ first");
+         String first = items.get (0).name, second = items.get (1).name;
+         MenuCache.Item third = items.get (2);
+
+         // a queue fed by the listener hands out the same view until something
+         // changes, while one without it loads a new list on every read
+         long deadline = System.currentTimeMillis () + TIMEOUT;
+         while (kitchen.open (esql) != kitchen.open (esql)){
+            if (System.currentTimeMillis () > deadline)
+               throw new SQLException ("The listener did not connect");
+            Thread.sleep (50);
+         }//end while
+
+         oid = Cafe.PlaceOrder (esql, customers.get (0).get (0), Arrays.asList (first, second));
+         passed = await (esql, kitchen, oid, Arrays.asList (first, second));
+         if (passed){
+            version = Cafe.SwapOrderItem (esql, oid, version, first, third);
+            passed = await (esql, kitchen, oid, Arrays.asList (third.name, second));
+         }//end if
+      }finally{
+         if (oid >= 0)
+            Cafe.CancelOrder (esql, oid, version);
+         listener.stop ();
+         pool.close ();
+      }//end try
+      System.out.println (passed ? "KitchenQueueTest passed" : "KitchenQueueTest FAILED");
+      System.exit (passed ? 0 : 1);
+   }//end main
+
+   /**
+    * Waits for the queue to list exactly the given items for an order.
+    */
+   private static boolean await (Cafe esql, KitchenQueue kitchen, int oid, List<String> expected)
+      throws SQLException, InterruptedException {
+      long deadline = System.currentTimeMillis () + TIMEOUT;
+      List<String> names = null;
+      while (System.currentTimeMillis () < deadline){
+         names = null;
+         for (KitchenQueue.Order order : kitchen.open (esql)){
+            if (order.orderid != oid)
+               continue;
+            names = new ArrayList<String> ();
+            for (KitchenQueue.Item item : order.items)
+               names.add (item.name);
+         }//end for
+         if (expected.equals (names))
+            return true;
+         Thread.sleep (50);
+      }//end while
+      System.err.println ("Order " + oid + ": expected " + expected + " on the kitchen queue, found " + names);
+      return false;
+   }//end await
+
+}//end KitchenQueueTest
@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# compare index size and point lookup time of char(50) and varchar(50)
+# keys over ROWS generated keys (10M unless set)
+psql -h 127.0.0.1 -v rows=${ROWS:-10000000} -v lookups=${LOOKUPS:-100000} mydb < $DIR/../src/bench_key_types.sql
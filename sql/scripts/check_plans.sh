@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# seed generated order history (10M orders unless ORDERS is set), then
+# check that each Cafe query shape uses its intended index.
+# Pass --no-seed to re-check an already seeded database.
+if [ "$1" != "--no-seed" ]; then
+   psql -h 127.0.0.1 -v orders=${ORDERS:-10000000} mydb < $DIR/../src/generate_orders.sql
+fi
+psql -h 127.0.0.1 mydb < $DIR/../src/check_plans.sql
@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# add the next AHEAD months' partitions (3 unless set) and archive paid
+# months older than KEEP (12 months unless set); meant for a nightly cron job
+psql -h 127.0.0.1 -v ahead=${AHEAD:-3} -v keep="${KEEP:-12 months}" mydb < $DIR/../src/maintain_partitions.sql
@@ -0,0 +1,9 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+#set the script to exit out on error
+set -e
+
+# bring the manager report rollups up to date, recomputing the orders of
+# the last SETTLE (1 day unless set); meant for a cron job every few minutes
+psql -h 127.0.0.1 -v settle="${SETTLE:-1 day}" mydb < $DIR/../src/refresh_rollups.sql
@@ -0,0 +1,70 @@
+-- Compares char(50) and varchar(50) keys at production scale.  It builds
+-- two copies of the same generated logins and item names, one of each
+-- type, and reports for each the size of the key indexes and the time of
+-- random point lookups shaped like LogIn and the menu's item lookup.
+--
+--   psql -v rows=10000000 -v lookups=100000 mydb < bench_key_types.sql
+--
+-- The copies are temporary tables and leave nothing behind.
+
+\set ON_ERROR_STOP on
+\if :{?rows}
+\else
+\set rows 10000000
+\endif
+\if :{?lookups}
+\else
+\set lookups 100000
+\endif
+
+CREATE TEMP TABLE keys_char(login char(50) PRIMARY KEY, itemName char(50) NOT NULL);
+CREATE TEMP TABLE keys_varchar(login varchar(50) PRIMARY KEY, itemName varchar(50) NOT NULL);
+
+INSERT INTO keys_char
+	SELECT 'user' || g, 'Menu Item ' || g FROM generate_series(1, :rows) g;
+INSERT INTO keys_varchar
+	SELECT 'user' || g, 'Menu Item ' || g FROM generate_series(1, :rows) g;
+CREATE UNIQUE INDEX keys_char_item_idx ON keys_char (itemName);
+CREATE UNIQUE INDEX keys_varchar_item_idx ON keys_varchar (itemName);
+ANALYZE keys_char;
+ANALYZE keys_varchar;
+
+SELECT c.relname AS index, pg_size_pretty(pg_relation_size(c.oid)) AS size
+FROM pg_class c
+WHERE c.relname IN ('keys_char_pkey', 'keys_char_item_idx', 'keys_varchar_pkey', 'keys_varchar_item_idx')
+ORDER BY c.relname;
+
+-- Looks up random keys of one table by one column, with a varchar
+-- parameter as the JDBC driver sends it, and returns the mean time per
+-- lookup.  The same seed gives both tables the same keys.
+CREATE FUNCTION pg_temp.time_lookups(tab text, col text, prefix text, n int, total int) RETURNS interval AS $$
+DECLARE
+	started timestamptz;
+	found int := 0;
+	hit int;
+BEGIN
+	PERFORM setseed(0.5);
+	started := clock_timestamp();
+	FOR i IN 1..n LOOP
+		EXECUTE format('SELECT 1 FROM %I WHERE %I = $1', tab, col)
+			INTO hit USING (prefix || (1 + floor(random() * total)::int))::varchar;
+		found := found + coalesce(hit, 0);
+	END LOOP;
+	IF found <> n THEN
+		RAISE EXCEPTION '% found only % of % keys', tab, found, n;
+	END IF;
+	RETURN (clock_timestamp() - started) / n;
+END;
+$$ LANGUAGE plpgsql;
+
+-- run each once first, so both start with a warm cache
+SELECT pg_temp.time_lookups('keys_char', 'login', 'user', :lookups, :rows),
+	pg_temp.time_lookups('keys_varchar', 'login', 'user', :lookups, :rows) \g /dev/null
+
+SELECT 'login' AS lookup,
+	pg_temp.time_lookups('keys_char', 'login', 'user', :lookups, :rows) AS char_50,
+	pg_temp.time_lookups('keys_varchar', 'login', 'user', :lookups, :rows) AS varchar_50
+UNION ALL
+SELECT 'itemName',
+	pg_temp.time_lookups('keys_char', 'itemName', 'Menu Item ', :lookups, :rows),
+	pg_temp.time_lookups('keys_varchar', 'itemName', 'Menu Item ', :lookups, :rows);
@@ -0,0 +1,167 @@
+-- Checks that the query shapes that look up or change a few rows, as
+-- issued by java/src/Cafe.java, SessionManager, StatusWriter and
+-- ApiServer, are planned on the index they were written for; the
+-- plain inserts, the user and menu maintenance statements and the
+-- rollup reports are left out.  Run it after generate_orders.sql so
+-- the planner sees production-sized tables; any shape that falls back to
+-- another plan stops the script with an error.
+--
+-- Cafe keeps its statements prepared, and after a few executions the
+-- server switches them to a generic plan, so the shapes are prepared here
+-- and checked with their generic plan.  String parameters are declared
+-- varchar because that is how the JDBC driver sends them, the same type
+-- as the key columns.
+
+\set ON_ERROR_STOP on
+SET plan_cache_mode = force_generic_plan;
+
+-- expected is a regular expression over the acceptable index names.  The
+-- partitions of Orders and ItemStatus have indexes of their own, which
+-- are checked by the name of the index they were created from.
+CREATE FUNCTION pg_temp.expect_plan(label text, stmt text, expected text) RETURNS void AS $$
+DECLARE
+	plan json;
+	used text;
+BEGIN
+	EXECUTE 'EXPLAIN (FORMAT JSON) ' || stmt INTO plan;
+	SELECT string_agg(DISTINCT format('"Index Name": "%s"', coalesce(pg_partition_root(m[1]::regclass), m[1]::regclass)), ' ')
+	INTO used
+	FROM regexp_matches(plan::text, '"Index Name": "([^"]+)"', 'g') m;
+	IF coalesce(used, '') !~ format('"Index Name": "(%s)"', expected) THEN
+		RAISE EXCEPTION '% is not using %: %', label, expected, plan;
+	END IF;
+	RAISE NOTICE '% uses %', label, expected;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a customer with unpaid orders and one of their orders, as sample parameters
+SELECT login AS sample_login, orderid AS sample_order, timeStampRecieved AS sample_placed
+FROM Orders WHERE paid = false ORDER BY orderid DESC LIMIT 1 \gset
+SELECT type AS sample_type FROM Menu LIMIT 1 \gset
+
+-- SessionManager.authenticate and .profile
+PREPARE log_in(varchar, varchar) AS
+	SELECT type, phoneNum FROM Users WHERE login = $1 AND password = $2;
+PREPARE profile(varchar) AS
+	SELECT type, phoneNum FROM Users WHERE login = $1;
+-- Cafe.OrderPlaced, among the last day's orders and then in every month
+PREPARE order_placed_recent(int) AS
+	SELECT timeStampRecieved FROM Orders WHERE orderid = $1 AND timeStampRecieved >= NOW() - '1 day'::INTERVAL;
+PREPARE order_placed(int) AS
+	SELECT timeStampRecieved FROM Orders WHERE orderid = $1;
+-- Cafe.OrderHistoryPage, one keyset page and its items
+PREPARE order_history(varchar, int, int) AS
+	SELECT O.orderid, O.paid, O.timeStampRecieved, O.total FROM Orders O
+	WHERE O.login = $1 AND O.orderid < $2 ORDER BY O.orderid DESC LIMIT $3;
+PREPARE history_items(int[], timestamp) AS
+	SELECT I.orderid, I.itemName, I.lastUpdated, I.status FROM ItemStatus I
+	WHERE I.orderid = ANY($1) AND I.timeStampRecieved >= $2 ORDER BY I.orderid, I.itemName;
+-- the per-order statements pass the order's timeStampRecieved, so only its month is read
+PREPARE update_order(varchar, int, timestamp) AS
+	SELECT O.orderid FROM Orders O WHERE O.login = $1 AND O.paid = false AND O.orderid = $2 AND O.timeStampRecieved = $3;
+PREPARE order_items(int, timestamp) AS
+	SELECT * FROM ItemStatus I WHERE I.orderid = $1 AND I.timeStampRecieved = $2;
+PREPARE order_version(int, timestamp) AS
+	SELECT version FROM Orders WHERE orderid = $1 AND timeStampRecieved = $2 AND paid = false;
+PREPARE order_paid(int, timestamp) AS
+	UPDATE Orders SET paid = true WHERE orderid = $1 AND timeStampRecieved = $2;
+-- the version-checked edits of Cafe.AddOrderItem, SwapOrderItem, RemoveOrderItem and CancelOrder
+PREPARE add_item(int, timestamp, int, varchar, varchar, varchar, varchar) AS
+	WITH o AS (UPDATE Orders SET total = total + M.price, version = version + 1 FROM Menu M
+		WHERE Orders.orderid = $1 AND Orders.timeStampRecieved = $2 AND Orders.paid = false AND Orders.version = $3 AND M.itemName = $4
+		RETURNING Orders.orderid, Orders.version, Orders.timeStampRecieved),
+	i AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved)
+		SELECT o.orderid, $5, now()::timestamp, $6, $7, o.timeStampRecieved FROM o RETURNING orderid)
+	SELECT o.version FROM o JOIN i USING (orderid);
+PREPARE swap_item(int, timestamp, int, varchar, varchar, varchar, timestamp, varchar) AS
+	WITH o AS (UPDATE Orders SET total = total + N.price - P.price, version = version + 1
+		FROM ItemStatus I, Menu P, Menu N
+		WHERE Orders.orderid = $1 AND Orders.timeStampRecieved = $2 AND Orders.paid = false AND Orders.version = $3
+		AND I.orderid = Orders.orderid AND I.timeStampRecieved = Orders.timeStampRecieved
+		AND I.itemName = $4 AND P.itemName = I.itemName AND N.itemName = $5
+		RETURNING Orders.orderid, Orders.version),
+	s AS (UPDATE ItemStatus SET (itemName, lastUpdated) = ($6, now()::timestamp) FROM o
+		WHERE ItemStatus.orderid = o.orderid AND ItemStatus.timeStampRecieved = $7 AND ItemStatus.itemName = $8
+		RETURNING ItemStatus.orderid)
+	SELECT o.version FROM o JOIN s USING (orderid);
+PREPARE remove_item(int, timestamp, int, varchar, timestamp, varchar) AS
+	WITH o AS (UPDATE Orders SET total = total - M.price, version = version + 1
+		FROM ItemStatus I, Menu M
+		WHERE Orders.orderid = $1 AND Orders.timeStampRecieved = $2 AND Orders.paid = false AND Orders.version = $3
+		AND I.orderid = Orders.orderid AND I.timeStampRecieved = Orders.timeStampRecieved
+		AND I.itemName = $4 AND M.itemName = I.itemName
+		RETURNING Orders.orderid, Orders.version),
+	d AS (DELETE FROM ItemStatus USING o WHERE ItemStatus.orderid = o.orderid
+		AND ItemStatus.timeStampRecieved = $5 AND ItemStatus.itemName = $6
+		RETURNING ItemStatus.orderid)
+	SELECT o.version FROM o JOIN d USING (orderid);
+PREPARE remove_empty_order(int, timestamp) AS
+	DELETE FROM Orders O WHERE O.orderid = $1 AND O.timeStampRecieved = $2
+	AND NOT EXISTS (SELECT 1 FROM ItemStatus I WHERE I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved);
+PREPARE cancel_order(int, timestamp, int) AS
+	UPDATE Orders SET version = version + 1 WHERE orderid = $1 AND timeStampRecieved = $2 AND paid = false AND version = $3;
+-- StatusWriter.UPDATE
+PREPARE item_status(varchar, int, timestamp, varchar, varchar) AS
+	UPDATE ItemStatus SET status = $1, lastUpdated = now()::timestamp
+	WHERE orderid = $2 AND timeStampRecieved = $3 AND itemName = $4 AND lower(status) = lower($5);
+-- Cafe.Favorites and ReorderFavorites
+PREPARE favorites(varchar) AS
+	SELECT itemName FROM UserFavorites WHERE login = $1 ORDER BY position;
+PREPARE reorder_favorites(varchar, varchar, varchar, varchar, varchar) AS
+	WITH o AS (INSERT INTO Orders (login, paid, timeStampRecieved, total)
+		SELECT $1, false, now()::timestamp, sum(M.price)
+		FROM UserFavorites F JOIN Menu M ON M.itemName = F.itemName WHERE F.login = $2
+		HAVING count(*) > 0 RETURNING orderid, timeStampRecieved),
+	i AS (INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved)
+		SELECT o.orderid, F.itemName, now()::timestamp, $3, $4, o.timeStampRecieved
+		FROM o, UserFavorites F WHERE F.login = $5)
+	SELECT orderid FROM o;
+PREPARE current_orders AS
+	SELECT O.orderid, O.total, O.login, I.itemName, I.lastUpdated
+	FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved
+		AND I.timeStampRecieved >= NOW() - '1 day'::INTERVAL
+	WHERE O.paid = false AND O.timeStampRecieved >= NOW() - '1 day'::INTERVAL
+	ORDER BY O.orderid;
+-- ApiServer: GET /orders, GET /orders/<id> and the ownership check of an edit
+PREPARE api_orders(varchar) AS
+	SELECT O.orderid, O.login, O.paid, O.total, I.itemName, I.status, I.lastUpdated, I.comments
+	FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved
+	WHERE O.login = $1 AND O.paid = false ORDER BY O.orderid DESC;
+PREPARE api_order(int, timestamp) AS
+	SELECT O.orderid, O.login, O.paid, O.total, I.itemName, I.status, I.lastUpdated, I.comments
+	FROM Orders O LEFT JOIN ItemStatus I ON I.orderid = O.orderid AND I.timeStampRecieved = O.timeStampRecieved
+	WHERE O.orderid = $1 AND O.timeStampRecieved = $2;
+PREPARE api_own_unpaid(varchar, int, timestamp) AS
+	SELECT O.version FROM Orders O
+	WHERE O.login = $1 AND O.paid = false AND O.orderid = $2 AND O.timeStampRecieved = $3;
+PREPARE menu_type(varchar) AS
+	SELECT M.itemName FROM Menu M WHERE M.type = $1;
+
+SELECT pg_temp.expect_plan('LogIn', format('EXECUTE log_in(%L, %L)', :'sample_login', 'x'), 'users_pkey');
+SELECT pg_temp.expect_plan('profile', format('EXECUTE profile(%L)', :'sample_login'), 'users_pkey');
+SELECT pg_temp.expect_plan('OrderPlaced recent', format('EXECUTE order_placed_recent(%s)', :sample_order), 'orders_pkey');
+SELECT pg_temp.expect_plan('OrderPlaced', format('EXECUTE order_placed(%s)', :sample_order), 'orders_pkey');
+SELECT pg_temp.expect_plan('ViewOrderHistory', format('EXECUTE order_history(%L, %s, 5)', :'sample_login', :sample_order), 'orders_login_orderid_idx');
+SELECT pg_temp.expect_plan('ViewOrderHistory items', format('EXECUTE history_items(%L, %L)', ARRAY[:sample_order], now() - interval '1 month'), 'itemstatus_pkey');
+SELECT pg_temp.expect_plan('UpdateOrder', format('EXECUTE update_order(%L, %s, %L)', :'sample_login', :sample_order, :'sample_placed'), 'orders_pkey|orders_login_unpaid_idx');
+SELECT pg_temp.expect_plan('order items', format('EXECUTE order_items(%s, %L)', :sample_order, :'sample_placed'), 'itemstatus_pkey');
+SELECT pg_temp.expect_plan('order version', format('EXECUTE order_version(%s, %L)', :sample_order, :'sample_placed'), 'orders_pkey');
+SELECT pg_temp.expect_plan('EmployeeUpdateOrder paid', format('EXECUTE order_paid(%s, %L)', :sample_order, :'sample_placed'), 'orders_pkey');
+SELECT pg_temp.expect_plan('AddOrderItem', format('EXECUTE add_item(%s, %L, 0, %L, %L, %L, %L)', :sample_order, :'sample_placed', 'x', 'x', 'x', 'x'), 'orders_pkey');
+SELECT pg_temp.expect_plan('SwapOrderItem', format('EXECUTE swap_item(%s, %L, 0, %L, %L, %L, %L, %L)', :sample_order, :'sample_placed', 'x', 'y', 'y', :'sample_placed', 'x'), 'itemstatus_pkey');
+SELECT pg_temp.expect_plan('RemoveOrderItem', format('EXECUTE remove_item(%s, %L, 0, %L, %L, %L)', :sample_order, :'sample_placed', 'x', :'sample_placed', 'x'), 'itemstatus_pkey');
+SELECT pg_temp.expect_plan('RemoveOrderItem empty order', format('EXECUTE remove_empty_order(%s, %L)', :sample_order, :'sample_placed'), 'orders_pkey');
+SELECT pg_temp.expect_plan('CancelOrder', format('EXECUTE cancel_order(%s, %L, 0)', :sample_order, :'sample_placed'), 'orders_pkey');
+SELECT pg_temp.expect_plan('StatusWriter', format('EXECUTE item_status(%L, %s, %L, %L, %L)', 'Ready', :sample_order, :'sample_placed', 'x', 'Preparing'), 'itemstatus_pkey');
+SELECT pg_temp.expect_plan('Favorites', format('EXECUTE favorites(%L)', :'sample_login'), 'userfavorites_pkey');
+SELECT pg_temp.expect_plan('ReorderFavorites', format('EXECUTE reorder_favorites(%L, %L, %L, %L, %L)', :'sample_login', :'sample_login', 'x', 'x', :'sample_login'), 'userfavorites_pkey');
+SELECT pg_temp.expect_plan('ViewCurrentOrder', 'EXECUTE current_orders', 'orders_unpaid_received_idx');
+SELECT pg_temp.expect_plan('GET /orders', format('EXECUTE api_orders(%L)', :'sample_login'), 'orders_login_unpaid_idx');
+SELECT pg_temp.expect_plan('GET /orders/<id>', format('EXECUTE api_order(%s, %L)', :sample_order, :'sample_placed'), 'orders_pkey');
+SELECT pg_temp.expect_plan('order edit ownership', format('EXECUTE api_own_unpaid(%L, %s, %L)', :'sample_login', :sample_order, :'sample_placed'), 'orders_pkey|orders_login_unpaid_idx');
+
+-- Menu holds a handful of rows, where a sequential scan is the right
+-- plan; this only checks that the index is usable once the menu grows.
+SET enable_seqscan = off;
+SELECT pg_temp.expect_plan('BrowseMenuType', format('EXECUTE menu_type(%L)', :'sample_type'), 'menu_type_idx');
+RESET enable_seqscan;
@@ -0,0 +1,64 @@
+-- Indexes for the access paths used by java/src/Cafe.java.
+--
+-- Cafe always writes "paid = false" as a literal rather than a bind
+-- parameter, so the partial indexes below match the cached generic plans
+-- of its prepared statements as well as one-off custom plans.
+-- sql/src/check_plans.sql verifies each query shape against them.
+--
+-- Orders and ItemStatus are partitioned by month; an index on either is
+-- created on every partition, including the ones added later.
+
+-- UpdateOrder and the API's order list: a customer's unpaid orders,
+-- newest first.  Only unpaid orders are indexed, and total is carried in
+-- the index so the list is an index-only scan.  orders_login_orderid_idx
+-- below has the same key, but finding the unpaid orders in it means
+-- reading past every paid order of the customer's history; this one holds
+-- only the handful still open.  It costs little to keep: an order leaves
+-- it when paid, and that update already touches every index, since paid
+-- is carried in orders_login_orderid_idx.
+CREATE INDEX orders_login_unpaid_idx
+	ON Orders (login, orderid DESC)
+	INCLUDE (total)
+	WHERE paid = false;
+
+-- ViewOrderHistory: a page of a customer's orders, paid or not, newest
+-- first, starting below the last orderid of the previous page.  Each page
+-- is a short index-only walk however far back it is.
+CREATE INDEX orders_login_orderid_idx
+	ON Orders (login, orderid DESC)
+	INCLUDE (paid, timeStampRecieved, total);
+
+-- ViewCurrentOrder: unpaid orders received in the last day.  Paid orders
+-- leave the index as soon as they are settled, so it stays small however
+-- long the history grows.
+CREATE INDEX orders_unpaid_received_idx
+	ON Orders (timeStampRecieved)
+	INCLUDE (orderid, total, login)
+	WHERE paid = false;
+
+-- refresh_rollups: the orders and items placed since a watermark.  Both
+-- tables are appended to in time order, so a BRIN index finds the recent
+-- rows for next to no upkeep on inserts.
+CREATE INDEX orders_received_brin_idx
+	ON Orders USING brin (timeStampRecieved);
+CREATE INDEX itemstatus_received_brin_idx
+	ON ItemStatus USING brin (timeStampRecieved);
+
+-- BrowseMenuType: item names of one menu type.
+CREATE INDEX menu_type_idx
+	ON Menu (type)
+	INCLUDE (itemName);
+
+-- UpdateOrder, ViewOrderHistory and ViewCurrentOrder: the items of one
+-- order, or of a page of orders, are found through the primary key
+-- (orderid, itemName, timeStampRecieved), which leads with orderid, so
+-- ItemStatus needs no index of its own for them; one would only cost a
+-- write per inserted item.  Nothing indexes status or lastUpdated, so a
+-- status change can be a HOT update that touches no index.  Databases
+-- indexed before this drop the index they had.
+DROP INDEX IF EXISTS itemstatus_orderid_idx;
+
+-- Menu item deletes and renames cascade to UserFavorites; without this
+-- each one would scan the whole table.
+CREATE INDEX userfavorites_itemname_idx
+	ON UserFavorites (itemName);
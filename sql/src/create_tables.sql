@@ -2,37 +2,154 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE UserFavorites;
+DROP TABLE SalesHourly;
+DROP TABLE ItemDaily;
+DROP TABLE RollupWatermark;
+DROP TABLE RollupStale;
+DROP SCHEMA cafe_archive CASCADE;
 
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(50) NOT NULL,
+	type varchar(8) NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
-	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
+	price numeric(10,2) NOT NULL,
+	description varchar(400),
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
+-- Orders and ItemStatus are partitioned by month of timeStampRecieved, so
+-- the queries on recent orders only touch recent partitions, and old paid
+-- months can be archived whole; see order_partitions.sql.  A partitioned
+-- table's keys must include the partition key, so orderid is unique
+-- through its sequence alone, and the loaders run check_import_orderids
+-- before they move orders in.
 CREATE TABLE Orders(
-	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	orderid serial NOT NULL,
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
-	total real NOT NULL,
-	PRIMARY KEY(orderid));
+	total numeric(10,2) NOT NULL,
+	-- bumped by every edit of the order, for optimistic concurrency checks
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
 
+-- timeStampRecieved is a copy of the order's, which puts each item in the
+-- same month's partition as its order.
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
-	PRIMARY KEY(orderid,itemName),
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
-	FOREIGN KEY(itemName) REFERENCES Menu(itemName));
+	status varchar(20), 
+	comments varchar(130), 
+	timeStampRecieved timestamp NOT NULL,
+	PRIMARY KEY(orderid,itemName,timeStampRecieved),
+	FOREIGN KEY(orderid,timeStampRecieved) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+	PARTITION BY RANGE (timeStampRecieved);
+
+-- A user's favorite menu items, in the order the user listed them.  The
+-- primary key doubles as the index for looking up one user's favorites.
+CREATE TABLE UserFavorites(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	position smallint NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+-- Rollups for the manager reports, so the reports never scan the order
+-- history.  refresh_rollups in rollups.sql recomputes only the rows from
+-- each rollup's watermark on, which covers the orders that are usually
+-- still edited or paid, and the older rows listed in RollupStale.
+CREATE TABLE SalesHourly(
+	hour timestamp NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour));
+
+CREATE TABLE ItemDaily(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	ordered integer NOT NULL,
+	finished integer NOT NULL,
+	-- seconds from the order to the item's last update, summed over the finished items
+	finishSeconds double precision NOT NULL,
+	PRIMARY KEY(day,itemName));
+
+CREATE TABLE RollupWatermark(
+	rollup varchar(20) NOT NULL,
+	-- rows from here on may still change, and every refresh recomputes them
+	openFrom timestamp NOT NULL,
+	refreshedAt timestamp,
+	PRIMARY KEY(rollup));
+
+INSERT INTO RollupWatermark (rollup, openFrom) VALUES ('sales', '-infinity'), ('items', '-infinity');
+
+-- rollup rows behind their watermark whose orders or items changed since
+-- the last refresh; see mark_rollups_stale
+CREATE TABLE RollupStale(
+	rollup varchar(20) NOT NULL,
+	bucket timestamp NOT NULL,
+	PRIMARY KEY(rollup,bucket));
+
+-- Running Cafe processes cache the menu in memory; tell them to drop it
+-- whenever Menu changes, whoever changed it.
+CREATE OR REPLACE FUNCTION notify_menu_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cafe_menu', '');
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER menu_changed
+	AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Menu
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_menu_changed();
+
+-- Running Cafe processes cache user profiles; tell them which user changed.
+CREATE OR REPLACE FUNCTION notify_user_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cafe_users', OLD.login);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER user_changed
+	AFTER UPDATE OR DELETE ON Users
+	FOR EACH ROW EXECUTE PROCEDURE notify_user_changed();
+
+-- notify_order_changed and notify_item_changed
+\ir kitchen_notify.sql
+
+CREATE TRIGGER order_changed
+	AFTER INSERT OR UPDATE OR DELETE ON Orders
+	FOR EACH ROW EXECUTE PROCEDURE notify_order_changed();
+
+CREATE TRIGGER item_changed
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH ROW EXECUTE PROCEDURE notify_item_changed();
+
+-- add_order_partitions and archive_order_partitions
+\ir order_partitions.sql
+
+-- refresh_rollups and mark_rollups_stale
+\ir rollups.sql
+
+CREATE TRIGGER order_rollups_stale
+	AFTER INSERT OR UPDATE OR DELETE ON Orders
+	FOR EACH ROW EXECUTE PROCEDURE mark_rollups_stale('sales', 'hour');
+
+CREATE TRIGGER item_rollups_stale
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH ROW EXECUTE PROCEDURE mark_rollups_stale('items', 'day');
+
+-- this month and the next three; sql/scripts/maintain_partitions.sh keeps adding more
+SELECT add_order_partitions(now()::timestamp, now()::timestamp + interval '3 months');
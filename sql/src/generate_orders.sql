@@ -0,0 +1,63 @@
+-- Generates synthetic order history on top of the loaded Users and Menu
+-- rows, for checking query plans at production scale.
+--
+--   psql -v orders=10000000 mydb < generate_orders.sql
+--
+-- Orders are spread over the last three years with increasing orderid.
+-- Everything older than a day is paid except one order in a thousand, and
+-- each order has one to three distinct items.
+
+\set ON_ERROR_STOP on
+-- skip the per-row kitchen notifications; one NOTIFY at the end instead
+SET cafe.bulk_load = on;
+\if :{?orders}
+\else
+\set orders 10000000
+\endif
+
+SELECT COALESCE(MAX(orderid), 0) AS base FROM Orders \gset
+SELECT count(*) AS users FROM Users \gset
+SELECT count(*) AS items FROM Menu \gset
+
+CREATE TEMP TABLE seed_users AS
+	SELECT row_number() OVER (ORDER BY login) - 1 AS n, login FROM Users;
+CREATE TEMP TABLE seed_menu AS
+	SELECT row_number() OVER (ORDER BY itemName) - 1 AS n, itemName, price FROM Menu;
+CREATE UNIQUE INDEX ON seed_users (n);
+CREATE UNIQUE INDEX ON seed_menu (n);
+
+SELECT add_order_partitions(now()::timestamp - interval '1095 days', now()::timestamp);
+
+INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total)
+SELECT :base + g,
+	u.login,
+	s.ts < now() - interval '1 day' AND g % 1000 <> 0,
+	s.ts,
+	(SELECT sum(m.price)
+	   FROM generate_series(0, g % 3) k
+	   JOIN seed_menu m ON m.n = (g + k) % :items)
+FROM generate_series(1, :orders) g
+CROSS JOIN LATERAL (SELECT now() - interval '1095 days' * ((:orders - g)::float8 / :orders) AS ts) s
+JOIN seed_users u ON u.n = g % :users;
+
+INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved)
+SELECT o.orderid,
+	m.itemName,
+	o.timeStampRecieved,
+	CASE WHEN o.paid THEN 'Finished' ELSE 'order processing' END,
+	'thank you for your order',
+	o.timeStampRecieved
+FROM Orders o
+CROSS JOIN LATERAL generate_series(0, (o.orderid - :base) % 3) k
+JOIN seed_menu m ON m.n = ((o.orderid - :base) + k) % :items
+WHERE o.orderid > :base;
+
+SELECT setval('orders_orderid_seq', (SELECT MAX(orderid) FROM Orders));
+
+VACUUM ANALYZE Orders;
+VACUUM ANALYZE ItemStatus;
+
+-- roll up the generated history now rather than in the first report
+SELECT refresh_rollups('1 day');
+
+NOTIFY cafe_kitchen;
@@ -0,0 +1,47 @@
+-- The kitchen notifications of Orders and ItemStatus, included by
+-- create_tables.sql and the migrations that recreate the tables or change
+-- their columns.  On its own it replaces the functions in place:
+--
+--   psql -f kitchen_notify.sql mydb
+
+-- Running Cafe processes keep a queue of open orders for the kitchen; send
+-- them every changed Orders and ItemStatus row, so they never have to poll.
+-- Bulk loads SET cafe.bulk_load = on to skip this, and send one empty
+-- NOTIFY cafe_kitchen at the end to make the processes reload instead.
+CREATE OR REPLACE FUNCTION notify_order_changed() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('cafe.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', OLD.orderid, 'deleted', true)::text);
+	ELSE
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', NEW.orderid, 'login', NEW.login,
+			'paid', NEW.paid, 'placed', NEW.timeStampRecieved, 'total', NEW.total::text)::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- An item swapped for another keeps its row under the new name; 'old'
+-- carries the name it had, so the queue replaces the item instead of
+-- adding a second one.
+CREATE OR REPLACE FUNCTION notify_item_changed() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('cafe.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', OLD.orderid, 'item', OLD.itemName,
+			'deleted', true)::text);
+	ELSIF TG_OP = 'UPDATE' AND OLD.itemName <> NEW.itemName THEN
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', NEW.orderid, 'item', NEW.itemName,
+			'old', OLD.itemName, 'status', NEW.status, 'updated', NEW.lastUpdated,
+			'comments', NEW.comments)::text);
+	ELSE
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', NEW.orderid, 'item', NEW.itemName,
+			'status', NEW.status, 'updated', NEW.lastUpdated, 'comments', NEW.comments)::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
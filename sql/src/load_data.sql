@@ -1,17 +1,54 @@
-COPY MENU
-FROM '/home/csmajs/nwill016/Downloads/CS166_CafeDatabase-master/data/menu.csv'
-WITH DELIMITER ';';
+-- Loads data/*.csv with client-side \copy, so it works from any host.
+-- BulkImport (java/scripts/import.sh) does the same in parallel and
+-- reports bad lines instead of stopping at the first one.
+--
+--   psql -v datadir=/path/to/data -f load_data.sql mydb
 
-COPY USERS
-FROM '/home/csmajs/nwill016/Downloads/CS166_CafeDatabase-master/data/users.csv'
-WITH DELIMITER ';';
+-- skip the per-row kitchen notifications; one NOTIFY at the end instead
+SET cafe.bulk_load = on;
 
-COPY ORDERS
-FROM '/home/csmajs/nwill016/Downloads/CS166_CafeDatabase-master/data/orders.csv'
-WITH DELIMITER ';';
-ALTER SEQUENCE orders_orderid_seq RESTART 87257;
+\set menu_csv :datadir '/menu.csv'
+\set users_csv :datadir '/users.csv'
+\set orders_csv :datadir '/orders.csv'
+\set itemstatus_csv :datadir '/itemStatus.csv'
 
-COPY ITEMSTATUS
-FROM '/home/csmajs/nwill016/Downloads/CS166_CafeDatabase-master/data/itemStatus.csv'
-WITH DELIMITER ';';
+\copy MENU FROM :'menu_csv' WITH DELIMITER ';'
 
+\ir load_users.sql
+
+-- orders go through staging to create the months they fall in first, and
+-- items to pick up their order's timeStampRecieved, which the files lack
+CREATE TEMP TABLE orders_import(
+	orderid integer,
+	login varchar(50),
+	paid boolean,
+	timeStampRecieved timestamp,
+	total numeric(10,2));
+\copy orders_import FROM :'orders_csv' WITH DELIMITER ';'
+SELECT add_order_partitions(min(timeStampRecieved), max(timeStampRecieved)) FROM orders_import;
+-- in one transaction, so a repeated orderid leaves Orders as it was
+BEGIN;
+SELECT check_import_orderids('orders_import');
+INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total)
+SELECT orderid, login, paid, timeStampRecieved, total FROM orders_import;
+COMMIT;
+SELECT setval('orders_orderid_seq', COALESCE((SELECT max(orderid) FROM Orders), 0) + 1, false);
+DROP TABLE orders_import;
+
+CREATE TEMP TABLE itemstatus_import(
+	orderid integer,
+	itemName varchar(50),
+	lastUpdated timestamp,
+	status varchar(20),
+	comments varchar(130));
+\copy itemstatus_import FROM :'itemstatus_csv' WITH DELIMITER ';'
+-- an item of an unknown order fails on the missing timeStampRecieved
+INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved)
+SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, O.timeStampRecieved
+FROM itemstatus_import I LEFT JOIN Orders O ON O.orderid = I.orderid;
+DROP TABLE itemstatus_import;
+
+-- roll up the loaded history now rather than in the first report
+SELECT refresh_rollups('1 day');
+
+NOTIFY cafe_kitchen;
@@ -0,0 +1,25 @@
+-- Loads users.csv, whose fourth column is a comma separated list of
+-- favorite items, into Users and UserFavorites.  Included by load_data.sql
+-- and seed_bench.sql with :users_csv already set.  Favorites are matched
+-- to menu items ignoring case, so Menu has to be loaded first.
+
+CREATE TEMP TABLE users_csv(
+	login varchar(50),
+	phoneNum varchar(16),
+	password varchar(50),
+	favItems varchar(400),
+	type varchar(8));
+
+\copy users_csv FROM :'users_csv' WITH DELIMITER ';'
+
+INSERT INTO Users (login, phoneNum, password, type)
+SELECT login, phoneNum, password, type FROM users_csv;
+
+INSERT INTO UserFavorites (login, itemName, position)
+SELECT U.login, M.itemName, row_number() OVER (PARTITION BY U.login ORDER BY min(F.n)) - 1
+FROM users_csv U
+	CROSS JOIN LATERAL unnest(string_to_array(U.favItems, ',')) WITH ORDINALITY AS F(name, n)
+	JOIN Menu M ON lower(M.itemName) = lower(trim(F.name))
+GROUP BY U.login, M.itemName;
+
+DROP TABLE users_csv;
@@ -0,0 +1,23 @@
+-- Keeps the monthly partitions of Orders and ItemStatus in shape; run it
+-- regularly, e.g. nightly from cron through sql/scripts/maintain_partitions.sh.
+-- It adds the partitions for the next :ahead months (3 unless set), so
+-- new orders always find their month, and archives the paid months that
+-- ended more than :keep ago (12 months unless set).
+--
+--   psql -v ahead=3 -v keep='12 months' mydb < maintain_partitions.sql
+--
+-- Detaching a partition briefly locks Orders or ItemStatus, so run it when
+-- the Cafe is quiet.
+
+\set ON_ERROR_STOP on
+\if :{?ahead}
+\else
+\set ahead 3
+\endif
+\if :{?keep}
+\else
+\set keep '12 months'
+\endif
+
+SELECT add_order_partitions(now()::timestamp, now()::timestamp + :ahead * interval '1 month') AS added;
+SELECT archive_order_partitions(:'keep') AS archived;
@@ -0,0 +1,34 @@
+-- Moves the comma separated Users.favItems lists of an existing database
+-- into the UserFavorites relation and drops the column.  Names are matched
+-- to menu items ignoring case and surrounding spaces, e.g. "coffee" is
+-- Coffee; names that match no menu item, and repeats, are dropped.
+--
+--   psql mydb < migrate_favorites.sql
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+CREATE TABLE UserFavorites(
+	login char(50) NOT NULL,
+	itemName char(50) NOT NULL,
+	position smallint NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE);
+
+CREATE INDEX userfavorites_itemname_idx
+	ON UserFavorites (itemName);
+
+INSERT INTO UserFavorites (login, itemName, position)
+SELECT U.login, M.itemName, row_number() OVER (PARTITION BY U.login ORDER BY min(F.n)) - 1
+FROM Users U
+	CROSS JOIN LATERAL unnest(string_to_array(U.favItems, ',')) WITH ORDINALITY AS F(name, n)
+	JOIN Menu M ON lower(trim(M.itemName)) = lower(trim(F.name))
+GROUP BY U.login, M.itemName;
+
+ALTER TABLE Users DROP COLUMN favItems;
+
+COMMIT;
+
+ANALYZE UserFavorites;
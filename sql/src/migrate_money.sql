@@ -0,0 +1,37 @@
+-- Moves the money columns of a database created with real prices and
+-- totals to numeric(10,2), so sums and running totals are exact.  Values
+-- are rounded to the cent; totals that drifted are not recomputed, since
+-- menu prices may have changed since the order was placed.
+--
+--   psql mydb < migrate_money.sql
+--
+-- ALTER ... TYPE rewrites each table and rebuilds its indexes under an
+-- exclusive lock, so run it while the Cafe is closed.
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+ALTER TABLE Menu ALTER COLUMN price TYPE numeric(10,2) USING round(price::numeric, 2);
+ALTER TABLE Orders ALTER COLUMN total TYPE numeric(10,2) USING round(total::numeric, 2);
+
+-- the kitchen payload now carries the total as text, read back exactly
+CREATE OR REPLACE FUNCTION notify_order_changed() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('cafe.bulk_load', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', OLD.orderid, 'deleted', true)::text);
+	ELSE
+		PERFORM pg_notify('cafe_kitchen', json_build_object('order', NEW.orderid, 'login', trim(NEW.login),
+			'paid', NEW.paid, 'placed', NEW.timeStampRecieved, 'total', NEW.total::text)::text);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+COMMIT;
+
+ANALYZE Menu;
+ANALYZE Orders;
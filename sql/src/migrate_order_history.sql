@@ -0,0 +1,15 @@
+-- Adds the index ViewOrderHistory pages through to a database created
+-- before order history was paginated.
+--
+--   psql mydb < migrate_order_history.sql
+--
+-- Building it locks Orders against writes, so run it while the Cafe is
+-- quiet.
+
+\set ON_ERROR_STOP on
+
+CREATE INDEX orders_login_orderid_idx
+	ON Orders (login, orderid DESC)
+	INCLUDE (paid, timeStampRecieved, total);
+
+ANALYZE Orders;
@@ -0,0 +1,6 @@
+-- Adds the version column UpdateOrder's optimistic checks rely on to a
+-- database created before it existed.  Existing orders start at version 0.
+--
+--   psql mydb < migrate_order_version.sql
+
+ALTER TABLE Orders ADD COLUMN IF NOT EXISTS version integer NOT NULL DEFAULT 0;
@@ -0,0 +1,95 @@
+-- Moves Orders and ItemStatus of a database created before they were
+-- partitioned into the monthly partitioned tables of create_tables.sql.
+-- The old tables are renamed out of the way, the months they cover are
+-- created, and the rows are copied over; items take their order's
+-- timeStampRecieved.  orderid keeps its sequence.
+--
+--   psql -f migrate_partitions.sql mydb
+--
+-- Every row is copied under an exclusive lock, so run it while the Cafe
+-- is closed; sql/scripts/maintain_partitions.sh takes over from there.
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+\ir order_partitions.sql
+
+-- skip the per-row kitchen notifications; one NOTIFY at the end instead
+SET LOCAL cafe.bulk_load = on;
+
+-- keep the sequence when the old Orders goes
+ALTER SEQUENCE orders_orderid_seq OWNED BY NONE;
+
+ALTER TABLE ItemStatus RENAME TO itemstatus_unpartitioned;
+ALTER TABLE Orders RENAME TO orders_unpartitioned;
+-- free the index names for the new tables
+ALTER INDEX itemstatus_pkey RENAME TO itemstatus_unpartitioned_pkey;
+ALTER INDEX itemstatus_orderid_idx RENAME TO itemstatus_unpartitioned_orderid_idx;
+ALTER INDEX orders_pkey RENAME TO orders_unpartitioned_pkey;
+ALTER INDEX orders_orderid_key RENAME TO orders_unpartitioned_orderid_key;
+ALTER INDEX orders_login_unpaid_idx RENAME TO orders_unpartitioned_login_unpaid_idx;
+ALTER INDEX orders_unpaid_received_idx RENAME TO orders_unpartitioned_unpaid_received_idx;
+
+CREATE TABLE Orders(
+	orderid integer NOT NULL DEFAULT nextval('orders_orderid_seq'),
+	login varchar(50), 
+	paid boolean,
+	timeStampRecieved timestamp NOT NULL,
+	total numeric(10,2) NOT NULL,
+	version integer NOT NULL DEFAULT 0,
+	PRIMARY KEY(orderid,timeStampRecieved))
+	PARTITION BY RANGE (timeStampRecieved);
+ALTER SEQUENCE orders_orderid_seq OWNED BY Orders.orderid;
+
+CREATE TABLE ItemStatus(
+	orderid integer,
+	itemName varchar(50), 
+	lastUpdated timestamp NOT NULL,
+	status varchar(20), 
+	comments varchar(130), 
+	timeStampRecieved timestamp NOT NULL,
+	PRIMARY KEY(orderid,itemName,timeStampRecieved),
+	FOREIGN KEY(orderid,timeStampRecieved) REFERENCES Orders(orderid,timeStampRecieved),
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName))
+	PARTITION BY RANGE (timeStampRecieved);
+
+SELECT add_order_partitions(COALESCE(min(timeStampRecieved), now()::timestamp), now()::timestamp + interval '3 months')
+FROM orders_unpartitioned;
+
+INSERT INTO Orders (orderid, login, paid, timeStampRecieved, total, version)
+SELECT orderid, login, paid, timeStampRecieved, total, version FROM orders_unpartitioned;
+
+INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments, timeStampRecieved)
+SELECT I.orderid, I.itemName, I.lastUpdated, I.status, I.comments, O.timeStampRecieved
+FROM itemstatus_unpartitioned I JOIN orders_unpartitioned O ON O.orderid = I.orderid;
+
+DROP TABLE itemstatus_unpartitioned;
+DROP TABLE orders_unpartitioned;
+
+-- the indexes of create_indexes.sql, now on every partition
+CREATE INDEX orders_login_unpaid_idx
+	ON Orders (login, orderid DESC)
+	INCLUDE (total)
+	WHERE paid = false;
+CREATE INDEX orders_unpaid_received_idx
+	ON Orders (timeStampRecieved)
+	INCLUDE (orderid, total, login)
+	WHERE paid = false;
+
+-- the functions the triggers call, so they exist and are current
+\ir kitchen_notify.sql
+
+CREATE TRIGGER order_changed
+	AFTER INSERT OR UPDATE OR DELETE ON Orders
+	FOR EACH ROW EXECUTE PROCEDURE notify_order_changed();
+CREATE TRIGGER item_changed
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH ROW EXECUTE PROCEDURE notify_item_changed();
+
+COMMIT;
+
+ANALYZE Orders;
+ANALYZE ItemStatus;
+
+NOTIFY cafe_kitchen;
@@ -0,0 +1,61 @@
+-- Adds the manager report rollups to a database created before them and
+-- builds them from the whole order history once; from then on
+-- refresh_rollups.sql keeps them current from their watermarks.
+--
+--   psql -f migrate_rollups.sql mydb
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+CREATE TABLE SalesHourly(
+	hour timestamp NOT NULL,
+	orders integer NOT NULL,
+	revenue numeric(12,2) NOT NULL,
+	paidRevenue numeric(12,2) NOT NULL,
+	PRIMARY KEY(hour));
+
+CREATE TABLE ItemDaily(
+	day date NOT NULL,
+	itemName varchar(50) NOT NULL,
+	ordered integer NOT NULL,
+	finished integer NOT NULL,
+	finishSeconds double precision NOT NULL,
+	PRIMARY KEY(day,itemName));
+
+CREATE TABLE RollupWatermark(
+	rollup varchar(20) NOT NULL,
+	openFrom timestamp NOT NULL,
+	refreshedAt timestamp,
+	PRIMARY KEY(rollup));
+
+INSERT INTO RollupWatermark (rollup, openFrom) VALUES ('sales', '-infinity'), ('items', '-infinity');
+
+-- rollup rows behind their watermark whose orders or items changed since
+-- the last refresh; see mark_rollups_stale
+CREATE TABLE RollupStale(
+	rollup varchar(20) NOT NULL,
+	bucket timestamp NOT NULL,
+	PRIMARY KEY(rollup,bucket));
+
+CREATE INDEX orders_received_brin_idx
+	ON Orders USING brin (timeStampRecieved);
+CREATE INDEX itemstatus_received_brin_idx
+	ON ItemStatus USING brin (timeStampRecieved);
+
+\ir rollups.sql
+
+CREATE TRIGGER order_rollups_stale
+	AFTER INSERT OR UPDATE OR DELETE ON Orders
+	FOR EACH ROW EXECUTE PROCEDURE mark_rollups_stale('sales', 'hour');
+
+CREATE TRIGGER item_rollups_stale
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH ROW EXECUTE PROCEDURE mark_rollups_stale('items', 'day');
+
+SELECT refresh_rollups('1 day');
+
+COMMIT;
+
+ANALYZE SalesHourly;
+ANALYZE ItemDaily;
@@ -0,0 +1,65 @@
+-- Moves the text columns of a database created with char(N) columns to
+-- varchar(N).  char(N) blank-pads every value to N characters, which
+-- widens every key in the indexes and makes each comparison skip the
+-- padding; varchar(N) keeps the same length limits without it.  Trailing
+-- blanks are dropped on the way, as char(N) already ignored them.
+--
+--   psql -f migrate_varchar.sql mydb
+--
+-- ALTER ... TYPE rewrites each table and rebuilds its indexes under an
+-- exclusive lock, so run it while the Cafe is closed.
+
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+-- the keys on both sides of these change type, so they are re-added after
+ALTER TABLE ItemStatus DROP CONSTRAINT itemstatus_itemname_fkey;
+ALTER TABLE UserFavorites DROP CONSTRAINT userfavorites_login_fkey;
+ALTER TABLE UserFavorites DROP CONSTRAINT userfavorites_itemname_fkey;
+
+ALTER TABLE Users
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN type TYPE varchar(8) USING rtrim(type);
+
+ALTER TABLE Menu
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type),
+	ALTER COLUMN description TYPE varchar(400) USING rtrim(description),
+	ALTER COLUMN imageURL TYPE varchar(256) USING rtrim(imageURL);
+
+ALTER TABLE Orders
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login);
+
+ALTER TABLE ItemStatus
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN status TYPE varchar(20) USING rtrim(status),
+	ALTER COLUMN comments TYPE varchar(130) USING rtrim(comments);
+
+ALTER TABLE UserFavorites
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName);
+
+ALTER TABLE ItemStatus ADD FOREIGN KEY(itemName) REFERENCES Menu(itemName);
+ALTER TABLE UserFavorites ADD FOREIGN KEY(login) REFERENCES Users(login) ON DELETE CASCADE;
+ALTER TABLE UserFavorites ADD FOREIGN KEY(itemName) REFERENCES Menu(itemName) ON UPDATE CASCADE ON DELETE CASCADE;
+
+-- the notification payloads no longer need trimming
+CREATE OR REPLACE FUNCTION notify_user_changed() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('cafe_users', OLD.login);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+\ir kitchen_notify.sql
+
+COMMIT;
+
+ANALYZE Users;
+ANALYZE Menu;
+ANALYZE Orders;
+ANALYZE ItemStatus;
+ANALYZE UserFavorites;
@@ -0,0 +1,88 @@
+-- Partition upkeep for the monthly partitioned Orders and ItemStatus,
+-- included by create_tables.sql and migrate_partitions.sql and called by
+-- maintain_partitions.sql, and the orderid check the loaders run.
+
+-- Creates the monthly partitions of Orders and ItemStatus for every month
+-- from from_ts to to_ts that has none yet, named orders_YYYYMM and
+-- itemstatus_YYYYMM.  There is no default partition, so an order outside
+-- every month fails; loaders call this for the range they load.
+CREATE OR REPLACE FUNCTION add_order_partitions(from_ts timestamp, to_ts timestamp) RETURNS integer AS $$
+DECLARE
+	month timestamp := date_trunc('month', from_ts);
+	created integer := 0;
+BEGIN
+	WHILE month <= to_ts LOOP
+		IF to_regclass('orders_' || to_char(month, 'YYYYMM')) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF Orders FOR VALUES FROM (%L) TO (%L)',
+				'orders_' || to_char(month, 'YYYYMM'), month, month + interval '1 month');
+			EXECUTE format('CREATE TABLE %I PARTITION OF ItemStatus FOR VALUES FROM (%L) TO (%L)',
+				'itemstatus_' || to_char(month, 'YYYYMM'), month, month + interval '1 month');
+			created := created + 1;
+		END IF;
+		month := month + interval '1 month';
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Raises a unique_violation when an orderid in staging, a table of
+-- orders about to be moved into Orders, repeats there or is already in
+-- Orders.  The primary key holds orderid together with timeStampRecieved,
+-- so it only keeps orderid unique as long as every orderid comes from
+-- orders_orderid_seq or from a load that ran this check first.
+CREATE OR REPLACE FUNCTION check_import_orderids(staging regclass) RETURNS void AS $$
+DECLARE
+	oid integer;
+BEGIN
+	EXECUTE format('SELECT orderid FROM %s GROUP BY orderid HAVING count(*) > 1 LIMIT 1', staging) INTO oid;
+	IF oid IS NOT NULL THEN
+		RAISE unique_violation USING MESSAGE = format('orderid %s appears more than once in %s', oid, staging);
+	END IF;
+	EXECUTE format('SELECT S.orderid FROM %s S JOIN Orders O ON O.orderid = S.orderid LIMIT 1', staging) INTO oid;
+	IF oid IS NOT NULL THEN
+		RAISE unique_violation USING MESSAGE = format('orderid %s from %s is already in Orders', oid, staging);
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the months that ended more than keep ago and whose orders are
+-- all paid, and moves their partitions to the cafe_archive schema, where
+-- they can still be queried but no longer weigh on Orders and ItemStatus.
+-- A month with an unpaid order stays until the order is settled.
+CREATE OR REPLACE FUNCTION archive_order_partitions(keep interval) RETURNS integer AS $$
+DECLARE
+	part record;
+	unpaid boolean;
+	fk name;
+	archived integer := 0;
+BEGIN
+	CREATE SCHEMA IF NOT EXISTS cafe_archive;
+	FOR part IN
+		SELECT c.relname AS orders, 'itemstatus_' || substr(c.relname, 8) AS items
+		FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = 'orders'::regclass
+			AND to_timestamp(substr(c.relname, 8), 'YYYYMM')::timestamp + interval '1 month' <= now()::timestamp - keep
+		ORDER BY c.relname
+	LOOP
+		EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE paid IS NOT TRUE)', part.orders) INTO unpaid;
+		CONTINUE WHEN unpaid;
+		-- the items first, so no remaining item refers to the orders; a
+		-- detached partition keeps its own copy of the foreign key to
+		-- Orders, which has to go too, and is re-added against the archive
+		EXECUTE format('ALTER TABLE ItemStatus DETACH PARTITION %I', part.items);
+		FOR fk IN
+			SELECT conname FROM pg_constraint
+			WHERE conrelid = part.items::regclass AND confrelid = 'orders'::regclass
+		LOOP
+			EXECUTE format('ALTER TABLE %I DROP CONSTRAINT %I', part.items, fk);
+		END LOOP;
+		EXECUTE format('ALTER TABLE Orders DETACH PARTITION %I', part.orders);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA cafe_archive', part.orders);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA cafe_archive', part.items);
+		EXECUTE format('ALTER TABLE cafe_archive.%I ADD FOREIGN KEY (orderid, timeStampRecieved) REFERENCES cafe_archive.%I',
+			part.items, part.orders);
+		archived := archived + 1;
+	END LOOP;
+	RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
@@ -0,0 +1,15 @@
+-- Brings the manager report rollups up to date; run it every few minutes,
+-- e.g. from cron through sql/scripts/refresh_rollups.sh.  Orders placed
+-- in the last :settle (1 day unless set) are recomputed on every run, as
+-- they may still change; older ones were rolled up by an earlier run and
+-- are recomputed only for the hours and days in which one changed since.
+--
+--   psql -v settle='1 day' mydb < refresh_rollups.sql
+
+\set ON_ERROR_STOP on
+\if :{?settle}
+\else
+\set settle '1 day'
+\endif
+
+SELECT refresh_rollups(:'settle');
@@ -0,0 +1,97 @@
+-- Refreshes the manager report rollups, SalesHourly and ItemDaily, from
+-- Orders and ItemStatus; included by create_tables.sql and
+-- migrate_rollups.sql and called by refresh_rollups.sql and the Cafe's
+-- manager reports.
+
+-- Recomputes each rollup from its watermark on, then moves the watermark
+-- up to settle before now: orders older than that are rarely edited, paid
+-- or finished any more, so their rollup rows are left alone, except for
+-- the ones mark_rollups_stale listed in RollupStale since the last
+-- refresh, which are recomputed too.  Rows before a watermark survive
+-- their orders being archived.  An item counts as finished when its
+-- status says Finished.
+CREATE OR REPLACE FUNCTION refresh_rollups(settle interval) RETURNS void AS $$
+DECLARE
+	sales_from timestamp;
+	items_from timestamp;
+	stale_hours timestamp[];
+	stale_days timestamp[];
+BEGIN
+	-- one refresh at a time; a second one waits here and then finds little left to do.
+	-- The lock also waits out the changes in flight, see mark_rollups_stale
+	SELECT openFrom INTO sales_from FROM RollupWatermark WHERE rollup = 'sales' FOR UPDATE;
+	SELECT openFrom INTO items_from FROM RollupWatermark WHERE rollup = 'items' FOR UPDATE;
+
+	-- the stale rows from the watermarks on are recomputed anyway
+	WITH stale AS (DELETE FROM RollupStale WHERE rollup = 'sales' RETURNING bucket)
+	SELECT array_agg(bucket) INTO stale_hours FROM stale WHERE bucket < sales_from;
+	WITH stale AS (DELETE FROM RollupStale WHERE rollup = 'items' RETURNING bucket)
+	SELECT array_agg(bucket) INTO stale_days FROM stale WHERE bucket < items_from;
+
+	DELETE FROM SalesHourly WHERE hour >= sales_from OR hour = ANY(stale_hours);
+	INSERT INTO SalesHourly (hour, orders, revenue, paidRevenue)
+	SELECT date_trunc('hour', timeStampRecieved), count(*), sum(total),
+		COALESCE(sum(total) FILTER (WHERE paid), 0)
+	FROM Orders
+	WHERE timeStampRecieved >= sales_from
+	GROUP BY 1
+	UNION ALL
+	SELECT S.hour, count(*), sum(O.total),
+		COALESCE(sum(O.total) FILTER (WHERE O.paid), 0)
+	FROM unnest(stale_hours) AS S(hour)
+	JOIN Orders O ON O.timeStampRecieved >= S.hour AND O.timeStampRecieved < S.hour + interval '1 hour'
+	GROUP BY 1;
+
+	DELETE FROM ItemDaily WHERE day >= items_from OR day = ANY(stale_days::date[]);
+	INSERT INTO ItemDaily (day, itemName, ordered, finished, finishSeconds)
+	SELECT timeStampRecieved::date, itemName, count(*),
+		count(*) FILTER (WHERE lower(status) = 'finished'),
+		COALESCE(sum(extract(epoch FROM lastUpdated - timeStampRecieved)) FILTER (WHERE lower(status) = 'finished'), 0)
+	FROM ItemStatus
+	WHERE timeStampRecieved >= items_from
+	GROUP BY 1, 2
+	UNION ALL
+	SELECT S.day::date, I.itemName, count(*),
+		count(*) FILTER (WHERE lower(I.status) = 'finished'),
+		COALESCE(sum(extract(epoch FROM I.lastUpdated - I.timeStampRecieved)) FILTER (WHERE lower(I.status) = 'finished'), 0)
+	FROM unnest(stale_days) AS S(day)
+	JOIN ItemStatus I ON I.timeStampRecieved >= S.day AND I.timeStampRecieved < S.day + interval '1 day'
+	GROUP BY 1, 2;
+
+	-- sales by the hour and items by the day, so each watermark starts a whole row
+	UPDATE RollupWatermark SET openFrom = date_trunc('hour', now()::timestamp - settle), refreshedAt = now()
+	WHERE rollup = 'sales';
+	UPDATE RollupWatermark SET openFrom = date_trunc('day', now()::timestamp - settle), refreshedAt = now()
+	WHERE rollup = 'items';
+END;
+$$ LANGUAGE plpgsql;
+
+-- Lists the rollup row a changed Orders or ItemStatus row counts in as
+-- stale when it is behind the rollup's watermark, so the next refresh
+-- recomputes it: an old order paid or edited late, an item finished days
+-- after it was ordered.  TG_ARGV[0] names the rollup and TG_ARGV[1] the
+-- width of its rows, the way date_trunc takes it.  timeStampRecieved
+-- never changes, so OLD and NEW fall in the same row.
+--
+-- The watermark is read FOR SHARE and held until the change commits, so
+-- a refresh, which takes it FOR UPDATE, cannot move it past a change still
+-- in flight: the refresh waits for the change and then sees it, or the
+-- change waits for the refresh and then compares with its new watermark.
+CREATE OR REPLACE FUNCTION mark_rollups_stale() RETURNS trigger AS $$
+DECLARE
+	placed timestamp;
+	open_from timestamp;
+BEGIN
+	IF TG_OP = 'DELETE' THEN
+		placed := OLD.timeStampRecieved;
+	ELSE
+		placed := NEW.timeStampRecieved;
+	END IF;
+	SELECT openFrom INTO open_from FROM RollupWatermark WHERE rollup = TG_ARGV[0] FOR SHARE;
+	IF placed < open_from THEN
+		INSERT INTO RollupStale (rollup, bucket) VALUES (TG_ARGV[0], date_trunc(TG_ARGV[1], placed))
+		ON CONFLICT DO NOTHING;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
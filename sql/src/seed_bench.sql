@@ -0,0 +1,22 @@
+-- Loads the sample users and menu from data/ with client-side \copy, so it
+-- works from any host, and adds filler menu items so that a single order
+-- can hold twenty distinct items.
+--
+--   psql -v datadir=/path/to/data -f seed_bench.sql mydb
+
+\set ON_ERROR_STOP on
+
+\set menu_csv :datadir '/menu.csv'
+\set users_csv :datadir '/users.csv'
+\copy Menu FROM :'menu_csv' WITH DELIMITER ';'
+\ir load_users.sql
+
+INSERT INTO Menu (itemName, type, price, description, imageURL)
+SELECT 'Bench Item ' || g, 'Bench', 1.00 + g * 0.25, '', ''
+FROM generate_series(1, 20) g;
+
+-- the customer CafeBenchmark orders as, with three favorites to reorder
+INSERT INTO Users (login, password, type) VALUES ('cafe_bench', 'cafe_bench', 'Customer');
+INSERT INTO UserFavorites (login, itemName, position)
+SELECT 'cafe_bench', 'Bench Item ' || g, g - 1
+FROM generate_series(1, 3) g;